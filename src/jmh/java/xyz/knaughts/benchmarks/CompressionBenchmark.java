@@ -0,0 +1,46 @@
+package xyz.knaughts.benchmarks;
+
+import com.goterl.lazysodium.exceptions.SodiumException;
+import org.openjdk.jmh.annotations.*;
+import xyz.knaughts.utils.Cryptography;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Cryptography#encrypt(String)} and {@link Cryptography#decrypt(String)} of note-like text with and
+ * without compression. Titles are never compressed, so for them both should match.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"" + Fixtures.TITLE_LENGTH, "" + Fixtures.CONTENT_LENGTH})
+    public int length;
+
+    @Param({"false", "true"})
+    public boolean compress;
+
+    private String plaintext;
+    private String ciphertext;
+
+    @Setup
+    public void setup() throws SodiumException {
+        Fixtures.initCryptography(compress);
+        plaintext = Fixtures.prose(length);
+        ciphertext = Cryptography.encrypt(plaintext);
+    }
+
+    @Benchmark
+    public String encrypt() throws SodiumException {
+        return Cryptography.encrypt(plaintext);
+    }
+
+    @Benchmark
+    public String decrypt() throws SodiumException {
+        return Cryptography.decrypt(ciphertext);
+    }
+}
@@ -0,0 +1,109 @@
+package xyz.knaughts.benchmarks;
+
+import com.goterl.lazysodium.LazySodiumJava;
+import com.goterl.lazysodium.SodiumJava;
+import com.goterl.lazysodium.exceptions.SodiumException;
+import com.goterl.lazysodium.interfaces.SecretBox;
+import com.goterl.lazysodium.utils.LibraryLoader;
+import org.openjdk.jmh.annotations.*;
+import xyz.knaughts.utils.Cryptography;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Cryptography#encrypt(String)} and {@link Cryptography#decrypt(String)} for note titles and
+ * contents, next to the byte methods they're built on and the string-based LazySodium path they replaced. Run with
+ * <code>-prof gc</code> to compare the allocations per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptographyBenchmark {
+
+    private static final LazySodiumJava sodium = new LazySodiumJava(new SodiumJava(LibraryLoader.Mode.BUNDLED_ONLY), StandardCharsets.UTF_8);
+
+    @Param({"" + Fixtures.TITLE_LENGTH, "" + Fixtures.CONTENT_LENGTH})
+    public int length;
+
+    private byte[] key;
+    private String plaintext;
+    private String ciphertext;
+
+    private byte[] message;
+    private byte[] record;
+    private int recordLength;
+    private byte[] output;
+
+    @Setup
+    public void setup() throws SodiumException {
+        key = Fixtures.initCryptography();
+        plaintext = Fixtures.text(length);
+        ciphertext = Cryptography.encrypt(plaintext);
+
+        message = plaintext.getBytes(StandardCharsets.UTF_8);
+        record = new byte[Cryptography.encryptedLength(message.length)];
+        recordLength = Cryptography.encrypt(message, message.length, record);
+        output = new byte[record.length];
+    }
+
+    @Benchmark
+    public String encrypt() throws SodiumException {
+        return Cryptography.encrypt(plaintext);
+    }
+
+    @Benchmark
+    public String decrypt() throws SodiumException {
+        return Cryptography.decrypt(ciphertext);
+    }
+
+    @Benchmark
+    public int encryptBytes() throws SodiumException {
+        return Cryptography.encrypt(message, message.length, output);
+    }
+
+    @Benchmark
+    public int decryptBytes() throws SodiumException {
+        return Cryptography.decrypt(record, recordLength, output);
+    }
+
+    /**
+     * The v3 encryption as it was before the byte methods: a fresh nonce, box and record per string, and
+     * {@link Base64} to encode.
+     */
+    @Benchmark
+    public String encryptBaseline() throws SodiumException {
+        final byte[] message = plaintext.getBytes(StandardCharsets.UTF_8);
+        final byte[] nonce = sodium.randomBytesBuf(SecretBox.NONCEBYTES);
+        final byte[] box = new byte[SecretBox.MACBYTES + message.length];
+        if (!sodium.cryptoSecretBoxEasy(box, message, message.length, nonce, key))
+            throw new SodiumException("Could not encrypt message.");
+
+        final byte[] record = new byte[2 + SecretBox.NONCEBYTES + box.length];
+        record[0] = 3;
+        System.arraycopy(nonce, 0, record, 2, nonce.length);
+        System.arraycopy(box, 0, record, 2 + SecretBox.NONCEBYTES, box.length);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(record);
+    }
+
+    /**
+     * The v3 decryption as it was before the byte methods: {@link Base64} to decode, then copies of the nonce and box
+     * and a fresh message per string.
+     */
+    @Benchmark
+    public String decryptBaseline() throws SodiumException {
+        final byte[] record = Base64.getUrlDecoder().decode(ciphertext);
+        final int headerBytes = 2 + SecretBox.NONCEBYTES;
+        final byte[] nonce = Arrays.copyOfRange(record, 2, headerBytes);
+        final byte[] box = Arrays.copyOfRange(record, headerBytes, record.length);
+        final byte[] message = new byte[box.length - SecretBox.MACBYTES];
+        if (!sodium.cryptoSecretBoxOpenEasy(message, box, box.length, nonce, key))
+            throw new SodiumException("Could not decrypt message.");
+        return new String(message, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,51 @@
+package xyz.knaughts.benchmarks;
+
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import net.dv8tion.jda.api.entities.User;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import xyz.knaughts.models.Embeds;
+import xyz.knaughts.models.Note;
+import xyz.knaughts.models.NotesResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures rendering a page of the notes list with {@link Embeds#notesListEmbed(NotesResponse, User, long)}, including
+ * building the final {@link MessageEmbed}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmbedsBenchmark {
+
+    private List<Note> notes;
+    private User user;
+
+    @Setup
+    public void setup() {
+        user = Fixtures.user();
+        notes = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            notes.add(Note.of(
+                    Fixtures.noteId(),
+                    Fixtures.text(Fixtures.TITLE_LENGTH),
+                    Fixtures.text(Fixtures.CONTENT_LENGTH),
+                    Fixtures.TIMESTAMP,
+                    Fixtures.TIMESTAMP
+            ));
+        }
+    }
+
+    @Benchmark
+    public void notesListEmbed(Blackhole bh) {
+        final Embeds.EmbedBuilderRowPair pair = Embeds.notesListEmbed(new NotesResponse(notes, 2, 5), user, 1L);
+        bh.consume(pair.embedBuilder().build());
+        bh.consume(pair.row());
+    }
+}
@@ -0,0 +1,117 @@
+package xyz.knaughts.benchmarks;
+
+import com.goterl.lazysodium.utils.Key;
+import net.dv8tion.jda.api.entities.User;
+import xyz.knaughts.utils.Cryptography;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Shared inputs for the benchmarks. Sizes mirror the limits of the note modals: 30 characters for a title and
+ * 500 characters for the content.
+ */
+final class Fixtures {
+    static final int TITLE_LENGTH = 30;
+    static final int CONTENT_LENGTH = 500;
+
+    /**
+     * A PocketBase timestamp as returned in the <code>created</code> and <code>updated</code> fields.
+     */
+    static final String TIMESTAMP = "2023-11-20 18:42:07.512Z";
+
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ 0123456789 .,!?";
+
+    /**
+     * Words to build note-like prose from, deliberately more varied than the compression dictionary.
+     */
+    private static final String[] WORDS = ("the and to of a in is for on with that this it you I we my our your "
+            + "remember buy pick up milk eggs bread tomorrow tonight Monday Friday meeting with Sam at 3pm "
+            + "call mom about the birthday party next week don't forget to bring chapter 7 homework exam "
+            + "server raid boss guild role channel movie night pizza recipe bake for 20 minutes at 180C "
+            + "idea app that tracks plants watering schedule book recommendations from Alex password hint "
+            + "dentist appointment rent due on the 1st car service renew passport flights to Lisbon").split(" ");
+
+    private static final Random random = new Random(42);
+
+    private Fixtures() {
+    }
+
+    /**
+     * Initializes {@link Cryptography} with a random key so benchmarks don't need a console.
+     * @return the key.
+     */
+    static byte[] initCryptography() {
+        return initCryptography(false);
+    }
+
+    /**
+     * Initializes {@link Cryptography} with a random key so benchmarks don't need a console.
+     * @param compress whether to compress before encrypting.
+     * @return the key.
+     */
+    static byte[] initCryptography(boolean compress) {
+        final byte[] key = new byte[32];
+        random.nextBytes(key);
+        Cryptography.init(Map.of(Cryptography.LEGACY_KEY_ID, Key.fromBytes(key)), Cryptography.LEGACY_KEY_ID, compress);
+        return key;
+    }
+
+    /**
+     * Returns random printable text of a given length.
+     * @param length the number of characters.
+     * @return the text.
+     */
+    static String text(int length) {
+        final StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+            sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        return sb.toString();
+    }
+
+    /**
+     * Returns random English-like note text of a given length, for benchmarks where the content matters, such as
+     * compression.
+     * @param length the number of characters.
+     * @return the text.
+     */
+    static String prose(int length) {
+        final StringBuilder sb = new StringBuilder(length + 16);
+        while (sb.length() < length) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+            sb.append(random.nextInt(10) == 0 ? ". " : " ");
+        }
+        return sb.substring(0, length);
+    }
+
+    /**
+     * Returns a random 15 character note ID in the same shape as PocketBase record IDs.
+     * @return the ID.
+     */
+    static String noteId() {
+        final String chars = "abcdefghijklmnopqrstuvwxyz0123456789";
+        final StringBuilder sb = new StringBuilder(15);
+        for (int i = 0; i < 15; i++)
+            sb.append(chars.charAt(random.nextInt(chars.length())));
+        return sb.toString();
+    }
+
+    /**
+     * Returns a {@link User} that only answers the calls made while rendering embeds.
+     * @return the user.
+     */
+    static User user() {
+        return (User) Proxy.newProxyInstance(User.class.getClassLoader(), new Class<?>[]{User.class}, (proxy, method, args) ->
+                switch (method.getName()) {
+                    case "getId" -> "123456789012345678";
+                    case "getIdLong" -> 123456789012345678L;
+                    case "getName", "getEffectiveName" -> "knaughty";
+                    case "getAvatarUrl", "getEffectiveAvatarUrl" -> null;
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    case "toString" -> "User:knaughty";
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
@@ -0,0 +1,91 @@
+package xyz.knaughts.benchmarks;
+
+import com.google.gson.Gson;
+import com.goterl.lazysodium.exceptions.SodiumException;
+import org.openjdk.jmh.annotations.*;
+import xyz.knaughts.database.NoteRecord;
+import xyz.knaughts.database.RecordList;
+import xyz.knaughts.database.Responses;
+import xyz.knaughts.utils.Cryptography;
+
+import okio.Buffer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures decoding the PocketBase list responses read by <code>Database.getNotes</code> and
+ * <code>Database.getNote</code>. The typed benchmarks stream from the raw bytes like {@link Responses} does with a
+ * response source, the untyped ones are the previous string and <code>Map.class</code> decoding kept for comparison. The payloads
+ * hold real ciphertexts so their size matches production.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonDecodingBenchmark {
+
+    private final Gson gson = new Gson();
+
+    private byte[] notesBytes;
+    private byte[] noteBytes;
+
+    @Setup
+    public void setup() throws SodiumException {
+        Fixtures.initCryptography();
+        notesBytes = listResponse(3).getBytes(StandardCharsets.UTF_8);
+        noteBytes = listResponse(1).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public RecordList<NoteRecord> getNotes() throws IOException {
+        return Responses.readNoteList(source(notesBytes));
+    }
+
+    @Benchmark
+    public RecordList<NoteRecord> getNote() throws IOException {
+        return Responses.readNoteList(source(noteBytes));
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public List<Map<String, String>> getNotesUntyped() {
+        final Map<String, Object> responseMap = gson.fromJson(new String(notesBytes, StandardCharsets.UTF_8), Map.class);
+        return (List<Map<String, String>>) responseMap.get("items");
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public List<Map<String, String>> getNoteUntyped() {
+        final Map<String, Object> responseMap = gson.fromJson(new String(noteBytes, StandardCharsets.UTF_8), Map.class);
+        return (List<Map<String, String>>) responseMap.get("items");
+    }
+
+    private static Buffer source(byte[] body) {
+        return new Buffer().write(body);
+    }
+
+    /**
+     * Builds a PocketBase list response body with a number of encrypted notes.
+     * @param count the number of items.
+     * @return the JSON body.
+     */
+    private static String listResponse(int count) throws SodiumException {
+        final StringBuilder sb = new StringBuilder("{\"page\":1,\"perPage\":3,\"totalItems\":14,\"totalPages\":5,\"items\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"id\":\"").append(Fixtures.noteId())
+                    .append("\",\"title\":\"").append(Cryptography.encrypt(Fixtures.text(Fixtures.TITLE_LENGTH)))
+                    .append("\",\"content\":\"").append(Cryptography.encrypt(Fixtures.text(Fixtures.CONTENT_LENGTH)))
+                    .append("\",\"created\":\"").append(Fixtures.TIMESTAMP)
+                    .append("\",\"updated\":\"").append(Fixtures.TIMESTAMP)
+                    .append("\"}");
+        }
+        return sb.append("]}").toString();
+    }
+}
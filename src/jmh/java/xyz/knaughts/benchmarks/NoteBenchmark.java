@@ -0,0 +1,35 @@
+package xyz.knaughts.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import xyz.knaughts.models.Note;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures constructing a {@link Note}, which parses and reformats the <code>created</code> and
+ * <code>updated</code> timestamps.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NoteBenchmark {
+
+    private String id;
+    private String title;
+    private String content;
+
+    @Setup
+    public void setup() {
+        id = Fixtures.noteId();
+        title = Fixtures.text(Fixtures.TITLE_LENGTH);
+        content = Fixtures.text(Fixtures.CONTENT_LENGTH);
+    }
+
+    @Benchmark
+    public Note construct() {
+        return Note.of(id, title, content, Fixtures.TIMESTAMP, Fixtures.TIMESTAMP);
+    }
+}
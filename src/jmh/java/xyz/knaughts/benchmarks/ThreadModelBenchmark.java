@@ -0,0 +1,120 @@
+package xyz.knaughts.benchmarks;
+
+import com.goterl.lazysodium.exceptions.SodiumException;
+import org.openjdk.jmh.annotations.*;
+import xyz.knaughts.utils.Cryptography;
+import xyz.knaughts.utils.VirtualThreads;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the two ways of running database reads: the default model, where the HTTP call runs on OkHttp's dispatcher
+ * and decryption continues on the decode pool, and the virtual thread mode, where each read runs start to finish on
+ * its own virtual thread. Each operation is a burst of concurrent reads, each a simulated PocketBase round trip
+ * followed by decrypting a note.
+ * <p>
+ * The peak number of platform threads so far in the trial is reported next to each score, as the
+ * <code>peakPlatformThreads</code> counter. The <code>virtual</code> mode needs Java 21 or
+ * later and fails its setup on older runtimes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThreadModelBenchmark {
+
+    /**
+     * The size of OkHttp's dispatcher with the default concurrency limits.
+     */
+    private static final int DISPATCHER_THREADS = 72;
+
+    @Param({"platform", "virtual"})
+    public String mode;
+
+    @Param({"100", "1000"})
+    public int reads;
+
+    @Param({"5"})
+    public int latencyMillis;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private ExecutorService dispatcher;
+    private ExecutorService decodePool;
+    private ExecutorService virtual;
+    private String title;
+    private String content;
+
+    @Setup
+    public void setup() throws SodiumException {
+        Fixtures.initCryptography();
+        title = Cryptography.encrypt(Fixtures.text(Fixtures.TITLE_LENGTH));
+        content = Cryptography.encrypt(Fixtures.text(Fixtures.CONTENT_LENGTH));
+
+        if (mode.equals("virtual")) {
+            virtual = VirtualThreads.newExecutor("benchmark-virtual-");
+        } else {
+            dispatcher = Executors.newFixedThreadPool(DISPATCHER_THREADS);
+            decodePool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+        threads.resetPeakThreadCount();
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (virtual != null) virtual.shutdown();
+        if (dispatcher != null) dispatcher.shutdown();
+        if (decodePool != null) decodePool.shutdown();
+    }
+
+    @Benchmark
+    public void burst(ThreadCounters counters) {
+        final CompletableFuture<?>[] futures = new CompletableFuture[reads];
+        if (virtual != null) {
+            for (int i = 0; i < reads; i++)
+                futures[i] = CompletableFuture.supplyAsync(() -> {
+                    roundTrip();
+                    return decrypt();
+                }, virtual);
+        } else {
+            for (int i = 0; i < reads; i++)
+                futures[i] = CompletableFuture.runAsync(this::roundTrip, dispatcher)
+                        .thenApplyAsync(ignored -> decrypt(), decodePool);
+        }
+        CompletableFuture.allOf(futures).join();
+        counters.peakPlatformThreads = threads.getPeakThreadCount();
+    }
+
+    /**
+     * The counters JMH reports alongside the score.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class ThreadCounters {
+        public long peakPlatformThreads;
+    }
+
+    private void roundTrip() {
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String decrypt() {
+        try {
+            return Cryptography.decrypt(title) + Cryptography.decrypt(content);
+        } catch (SodiumException e) {
+            throw new CompletionException(e);
+        }
+    }
+}
@@ -8,14 +8,26 @@ import xyz.knaughts.database.Database;
 import xyz.knaughts.events.OnGuildJoinEvent;
 import xyz.knaughts.events.OnGuildLeaveEvent;
 import xyz.knaughts.events.OnReadyEvent;
+import xyz.knaughts.events.ShardMonitor;
+import xyz.knaughts.metrics.Metrics;
+import xyz.knaughts.models.Note;
 import net.dv8tion.jda.api.JDA;
-import net.dv8tion.jda.api.JDABuilder;
 import net.dv8tion.jda.api.entities.Activity;
+import net.dv8tion.jda.api.entities.User;
 import net.dv8tion.jda.api.interactions.commands.build.Commands;
+import net.dv8tion.jda.api.sharding.DefaultShardManagerBuilder;
+import net.dv8tion.jda.api.sharding.ShardManager;
+import net.dv8tion.jda.api.utils.FileUpload;
+import net.dv8tion.jda.api.utils.MarkdownSanitizer;
 import net.dv8tion.jda.api.utils.cache.CacheFlag;
 import net.dv8tion.jda.internal.utils.JDALogger;
 import org.slf4j.Logger;
 import xyz.knaughts.utils.Cryptography;
+import xyz.knaughts.utils.Env;
+import xyz.knaughts.utils.VirtualThreads;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The Knaughts bot client.
@@ -23,36 +35,77 @@ import xyz.knaughts.utils.Cryptography;
 public class KnaughtsBot {
     public static final Logger LOG = JDALogger.getLog(KnaughtsBot.class);
 
-    public static void main(String[] args) throws InterruptedException {
+    public static void main(String[] args) {
         LOG.info("Starting bot...");
         Cryptography.init();
         Database.init();
+        Runtime.getRuntime().addShutdownHook(new Thread(Database::shutdown, "knaughts-shutdown"));
+
+        final int metricsPort = Env.getInt("KNAUGHTS_METRICS_PORT", -1);
+        if (metricsPort >= 0)
+            Metrics.serve(Env.get("KNAUGHTS_METRICS_HOST", "127.0.0.1"), metricsPort);
 
-        final JDABuilder builder = JDABuilder
+        final ShardMonitor shardMonitor = new ShardMonitor(Env.getLong("KNAUGHTS_SHARD_MONITOR_INTERVAL", TimeUnit.MINUTES.toMillis(1)));
+        final int shardsTotal = Env.getInt("KNAUGHTS_SHARDS_TOTAL", 1);
+        // -1 lets Discord pick the total, in which case this process runs every shard
+        final int shardsMin = shardsTotal > 0 ? Env.getInt("KNAUGHTS_SHARDS_MIN", 0) : 0;
+        final int shardsMax = shardsTotal > 0 ? Env.getInt("KNAUGHTS_SHARDS_MAX", shardsTotal - 1) : -1;
+        final DefaultShardManagerBuilder builder = DefaultShardManagerBuilder
                 .createDefault(System.getenv("KNAUGHTS_BOT_TOKEN"))
                 .disableCache(CacheFlag.ACTIVITY)
                 .setLargeThreshold(50)
                 .setActivity(Activity.watching("for /note"))
+                .setShardsTotal(shardsTotal)
                 .addEventListeners(
                     new NoteCommand(),
                     new AboutCommand(),
                     new NotesCommand(),
                     new OnGuildJoinEvent(),
                     new OnGuildLeaveEvent(),
-                    new OnReadyEvent()
+                    new OnReadyEvent(shardsMax - shardsMin + 1),
+                    shardMonitor
                 );
 
+        if (shardsTotal > 0)
+            builder.setShards(shardsMin, shardsMax);
+        // listeners run on a virtual thread per event instead of the gateway thread, so they're free to block
+        if (VirtualThreads.isEnabled())
+            builder.setEventPool(VirtualThreads.newExecutor("knaughts-events-"), true);
+
         LOG.info("Building bot...");
-        final JDA bot = builder.build();
+        final ShardManager bot = builder.build();
+        shardMonitor.start(bot);
+        Database.onRejectedNote((userId, note) -> sendRejectedNote(bot, userId, note));
+    }
 
+    /**
+     * Sends a note whose write was acknowledged but then rejected by the database back to its owner in a DM, so it
+     * isn't lost.
+     * @param bot the shard manager to send the DM with.
+     * @param userId the Discord user ID of the note's owner.
+     * @param note the note as it was written.
+     */
+    private static void sendRejectedNote(ShardManager bot, String userId, Note note) {
+        bot.retrieveUserById(userId)
+                .flatMap(User::openPrivateChannel)
+                .flatMap(channel -> channel.sendMessage("Your note **" + MarkdownSanitizer.escape(note.title())
+                                + "** couldn't be saved after all. Here it is, so you can save it again with /note.")
+                        .addFiles(FileUpload.fromData(note.content().getBytes(StandardCharsets.UTF_8), "note.txt")))
+                .queue(null, e -> LOG.error("Failed sending rejected note " + note.id() + " back to its owner: " + e));
+    }
+
+    /**
+     * Registers the slash commands. Commands are global, so this only needs to be done by one shard.
+     * @param shard the shard to register the commands with.
+     */
+    public static void registerCommands(JDA shard) {
         LOG.info("Registering commands...");
-        bot.updateCommands().addCommands(
+        shard.updateCommands().addCommands(
                 Commands.slash("note", "Create a new note"),
                 Commands.slash("notes", "View your notes")
-                        .addOption(OptionType.STRING, "id", "The ID of the note you want to view. Leave blank if you want to see all.", false),
+                        .addOption(OptionType.STRING, "id", "The ID of the note you want to view. Leave blank if you want to see all.", false)
+                        .addOption(OptionType.STRING, "search", "Words to search your notes for.", false),
                 Commands.slash("about", "About Knaughts")
         ).queue();
-
-        bot.awaitReady();
     }
-}
\ No newline at end of file
+}
@@ -61,6 +61,6 @@ public class AboutCommand extends ListenerAdapter {
                                 )
                         )
                 )
-        ).setEphemeral(true).queue();
+        ).setEphemeral(true).queue(Interactions.replied(event));
     }
 }
@@ -0,0 +1,128 @@
+package xyz.knaughts.commands;
+
+import net.dv8tion.jda.api.interactions.InteractionHook;
+import net.dv8tion.jda.api.interactions.callbacks.IMessageEditCallback;
+import net.dv8tion.jda.api.interactions.callbacks.IReplyCallback;
+import net.dv8tion.jda.api.utils.messages.MessageCreateData;
+import net.dv8tion.jda.api.utils.messages.MessageEditData;
+import xyz.knaughts.utils.Env;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A reply to an interaction that waits on the database. Discord fails an interaction that isn't acknowledged within 3
+ * seconds, so if the reply isn't ready by <code>KNAUGHTS_DEFER_AFTER</code> milliseconds (default 2000) after the
+ * interaction was created, the interaction is deferred and the reply is sent through its hook once it's ready. Replies
+ * that are ready in time are sent directly, without the extra request.
+ * <p>
+ * Create the reply as soon as the interaction is received, so the deadline starts before the database request.
+ */
+final class DeferredReply {
+
+    private static final long DEFER_AFTER = Env.getLong("KNAUGHTS_DEFER_AFTER", 2_000);
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "knaughts-deferrals");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final int PENDING = 0;
+    private static final int REPLIED = 1;
+    private static final int DEFERRED = 2;
+
+    private final IReplyCallback event;
+    private final IMessageEditCallback editCallback;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+    private final ScheduledFuture<?> deadline;
+
+    private DeferredReply(IReplyCallback event, IMessageEditCallback editCallback) {
+        this.event = event;
+        this.editCallback = editCallback;
+        // measured from when Discord created the interaction, as the gateway may have taken a while to deliver it
+        final long age = System.currentTimeMillis() - event.getTimeCreated().toInstant().toEpochMilli();
+        this.deadline = timer.schedule(this::defer, Math.max(0, Math.min(DEFER_AFTER, DEFER_AFTER - age)), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts the deadline of a reply sent as a new ephemeral message.
+     * @param event the interaction to reply to.
+     * @return the reply.
+     */
+    static DeferredReply reply(IReplyCallback event) {
+        return new DeferredReply(event, null);
+    }
+
+    /**
+     * Starts the deadline of a reply that edits the message of a component interaction.
+     * @param event the component interaction whose message to edit.
+     * @return the reply.
+     */
+    static <T extends IReplyCallback & IMessageEditCallback> DeferredReply edit(T event) {
+        return new DeferredReply(event, event);
+    }
+
+    private void defer() {
+        if (!state.compareAndSet(PENDING, DEFERRED)) return;
+        Interactions.deferred(event);
+        if (editCallback != null)
+            editCallback.deferEdit().queue();
+        else
+            event.deferReply(true).queue();
+    }
+
+    /**
+     * Sends the reply: a new ephemeral message, or an edit of the component's message for {@link #edit} replies.
+     * @param message the message to send.
+     */
+    void send(MessageCreateData message) {
+        send(message, hook -> {});
+    }
+
+    /**
+     * Sends the reply: a new ephemeral message, or an edit of the component's message for {@link #edit} replies.
+     * @param message the message to send.
+     * @param then called with the interaction's hook once the reply has been sent.
+     */
+    void send(MessageCreateData message, Consumer<InteractionHook> then) {
+        final Consumer<InteractionHook> sent = hook -> {
+            Interactions.record(event);
+            then.accept(hook);
+        };
+
+        if (state.compareAndSet(PENDING, REPLIED)) {
+            deadline.cancel(false);
+            if (editCallback != null)
+                editCallback.editMessage(MessageEditData.fromCreateData(message)).queue(sent);
+            else
+                event.reply(message).setEphemeral(true).queue(sent);
+        } else {
+            // the hook holds requests until the deferral has been acknowledged
+            final InteractionHook hook = event.getHook();
+            hook.editOriginal(MessageEditData.fromCreateData(message)).queue(edited -> sent.accept(hook));
+        }
+    }
+
+    /**
+     * Sends the reply as a new ephemeral message, even for {@link #edit} replies. Used for errors, which shouldn't
+     * replace the component's message.
+     * @param message the message to send.
+     */
+    void sendEphemeral(MessageCreateData message) {
+        if (editCallback == null) {
+            send(message);
+            return;
+        }
+
+        if (state.compareAndSet(PENDING, REPLIED)) {
+            deadline.cancel(false);
+            event.reply(message).setEphemeral(true).queue(Interactions.replied(event));
+        } else {
+            event.getHook().sendMessage(message).setEphemeral(true).queue(Interactions.replied(event));
+        }
+    }
+}
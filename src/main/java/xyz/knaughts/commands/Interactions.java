@@ -0,0 +1,73 @@
+package xyz.knaughts.commands;
+
+import net.dv8tion.jda.api.interactions.Interaction;
+import net.dv8tion.jda.api.interactions.commands.SlashCommandInteraction;
+import net.dv8tion.jda.api.interactions.components.buttons.ButtonInteraction;
+import net.dv8tion.jda.api.interactions.modals.ModalInteraction;
+import xyz.knaughts.metrics.Counter;
+import xyz.knaughts.metrics.Histogram;
+import xyz.knaughts.metrics.Metrics;
+
+import java.util.function.Consumer;
+
+/**
+ * Records the end-to-end latency of interactions: from when Discord created the interaction to when the bot's reply
+ * was accepted, and how many had to be deferred. Interactions are grouped by type, such as <code>command.notes</code>
+ * or <code>button.view</code>.
+ */
+final class Interactions {
+
+    private static final Histogram interactionSeconds = Metrics.histogram(
+            "knaughts_interaction_seconds", "Time from an interaction being created to its reply being sent.", "type", Histogram.LATENCY_BUCKETS);
+    private static final Counter deferrals = Metrics.counter(
+            "knaughts_interaction_deferrals_total", "Interactions deferred because their reply wasn't ready in time.", "type");
+
+    private Interactions() {
+    }
+
+    /**
+     * Returns a success callback for a reply that records the interaction's latency.
+     * @param interaction the interaction being replied to.
+     * @return the callback, to pass to {@link net.dv8tion.jda.api.requests.RestAction#queue(Consumer)}.
+     */
+    static <T> Consumer<T> replied(Interaction interaction) {
+        return ignored -> record(interaction);
+    }
+
+    /**
+     * Records the latency of an interaction whose reply was just sent.
+     * @param interaction the interaction.
+     */
+    static void record(Interaction interaction) {
+        final long latencyMillis = System.currentTimeMillis() - interaction.getTimeCreated().toInstant().toEpochMilli();
+        interactionSeconds.observe(typeOf(interaction), Math.max(0, latencyMillis) * 1_000_000);
+    }
+
+    /**
+     * Counts an interaction that was deferred.
+     * @param interaction the interaction.
+     */
+    static void deferred(Interaction interaction) {
+        deferrals.inc(typeOf(interaction));
+    }
+
+    /**
+     * Returns the type of an interaction, made only from the command name or the action in the component ID so the
+     * number of types stays small.
+     * @param interaction the interaction.
+     * @return the type.
+     */
+    private static String typeOf(Interaction interaction) {
+        if (interaction instanceof SlashCommandInteraction command)
+            return "command." + command.getName();
+        if (interaction instanceof ButtonInteraction button) {
+            final String[] args = button.getComponentId().split("\\.");
+            return args.length > 2 ? "button." + args[2] : "button.unknown";
+        }
+        if (interaction instanceof ModalInteraction modal) {
+            final String[] args = modal.getModalId().split("-");
+            return args.length > 3 ? "modal." + args[3] : "modal.unknown";
+        }
+        return "other";
+    }
+}
@@ -8,6 +8,7 @@ import net.dv8tion.jda.api.interactions.components.ActionRow;
 import net.dv8tion.jda.api.interactions.components.text.TextInput;
 import net.dv8tion.jda.api.interactions.components.text.TextInputStyle;
 import net.dv8tion.jda.api.interactions.modals.Modal;
+import net.dv8tion.jda.api.utils.messages.MessageCreateData;
 import xyz.knaughts.models.Embeds;
 
 /**
@@ -41,7 +42,7 @@ public class NoteCommand extends ListenerAdapter {
                 .addComponents(ActionRow.of(title), ActionRow.of(content))
                 .build();
 
-        event.replyModal(modal).queue();
+        event.replyModal(modal).queue(Interactions.replied(event));
     }
 
     /**
@@ -51,12 +52,13 @@ public class NoteCommand extends ListenerAdapter {
     @Override
     public void onModalInteraction(ModalInteractionEvent event) {
         if (!event.getModalId().equals("k-notes-modal-create")) return;
+        final DeferredReply reply = DeferredReply.reply(event);
         final String title = event.getValues().get(0).getAsString();
         final String content = event.getValues().get(1).getAsString();
         Database.postNote(event.getUser().getId(), title, content)
-                .thenAccept(id -> event.reply("Your note has been created! Note ID: `" + id + "`").setEphemeral(true).queue())
+                .thenAccept(id -> reply.send(MessageCreateData.fromContent("Your note has been created! Note ID: `" + id + "`")))
                 .exceptionally(e -> {
-                    event.replyEmbeds(Embeds.notesCreateErrorEmbed()).setEphemeral(true).queue();
+                    reply.send(MessageCreateData.fromEmbeds(Embeds.notesCreateErrorEmbed()));
                     return null;
                 });
     }
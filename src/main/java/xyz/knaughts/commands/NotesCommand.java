@@ -1,23 +1,27 @@
 package xyz.knaughts.commands;
 
+import net.dv8tion.jda.api.entities.MessageEmbed;
 import net.dv8tion.jda.api.entities.User;
 import net.dv8tion.jda.api.events.interaction.ModalInteractionEvent;
 import net.dv8tion.jda.api.events.interaction.component.ButtonInteractionEvent;
 import net.dv8tion.jda.api.interactions.callbacks.IReplyCallback;
+import net.dv8tion.jda.api.interactions.commands.OptionMapping;
 import net.dv8tion.jda.api.interactions.components.ActionRow;
 import net.dv8tion.jda.api.interactions.components.text.TextInput;
 import net.dv8tion.jda.api.interactions.components.text.TextInputStyle;
 import net.dv8tion.jda.api.interactions.modals.Modal;
+import net.dv8tion.jda.api.utils.messages.MessageCreateData;
 import xyz.knaughts.exceptions.NoteNotFoundException;
 import xyz.knaughts.database.Database;
 import xyz.knaughts.exceptions.NotesListNotFoundException;
 import xyz.knaughts.models.Embeds;
 import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
-import xyz.knaughts.models.Note;
+import xyz.knaughts.models.NotesResponse;
+import xyz.knaughts.metrics.Metrics;
+import xyz.knaughts.utils.HashedWheelTimer;
 
 import java.util.ArrayList;
-import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
@@ -26,6 +30,18 @@ import java.util.concurrent.TimeUnit;
  */
 public class NotesCommand extends ListenerAdapter {
 
+    private static final long LIST_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Times out notes lists that haven't been paged through for {@link #LIST_TIMEOUT}. Each list has one timeout, keyed
+     * by the ID of the <code>/notes</code> interaction that created it, which every page pushes back.
+     */
+    private static final HashedWheelTimer<Long> listTimeouts = new HashedWheelTimer<>("knaughts-notes-timeouts", 1_000, 64);
+
+    static {
+        Metrics.gauge("knaughts_notes_lists_active", "Notes lists that haven't timed out yet.", listTimeouts::size);
+    }
+
     /**
      * Determines which EmbedBuilder to send based on whether an id is provided; either sends
      * a single note or a list of notes, or an error embed if an error occurs.
@@ -35,14 +51,18 @@ public class NotesCommand extends ListenerAdapter {
     public void onSlashCommandInteraction(SlashCommandInteractionEvent event) {
         if (!event.getName().equals("notes")) return;
 
-        if (!event.getOptions().isEmpty()) {
-            if (event.getOption("id").getAsString().length() != 15) {
-                event.replyEmbeds(Embeds.noteInvalidIdErrorEmbed()).setEphemeral(true).queue();
+        final OptionMapping id = event.getOption("id");
+        final OptionMapping search = event.getOption("search");
+        if (id != null) {
+            if (id.getAsString().length() != 15) {
+                event.replyEmbeds(Embeds.noteInvalidIdErrorEmbed()).setEphemeral(true).queue(Interactions.replied(event));
             } else {
-                handleViewNote(event, event.getOption("id").getAsString(), event.getUser());
+                handleViewNote(event, id.getAsString(), event.getUser());
             }
+        } else if (search != null) {
+            handleSearchNotes(event, search.getAsString());
         } else {
-            handleGetNotes(event, 1, false);
+            handleGetNotes(event, DeferredReply.reply(event), 1, event.getIdLong(), null);
         }
     }
 
@@ -58,7 +78,9 @@ public class NotesCommand extends ListenerAdapter {
         final User user = event.getUser();
 
         switch (args[2]) {
-            case "next", "prev" -> handleGetNotes(event, Integer.parseInt(args[4]), true);
+            // buttons from before the list ID was added to them fall back to the message ID
+            case "next", "prev" -> handleGetNotes(event, DeferredReply.edit(event), Integer.parseInt(args[4]),
+                    args.length > 5 ? Long.parseLong(args[5]) : event.getMessageIdLong(), args.length > 6 ? args[6] : null);
             case "view" -> handleViewNote(event, args[3], user);
             case "edit" -> handleEditNote(event, args[3]);
             case "delete" -> handleDeleteNote(event, args[3], user);
@@ -74,19 +96,14 @@ public class NotesCommand extends ListenerAdapter {
     public void onModalInteraction(ModalInteractionEvent event) {
         if (!event.getModalId().startsWith("k-notes-modal-edit")) return;
 
+        final DeferredReply reply = DeferredReply.reply(event);
         final String[] args = event.getModalId().split("-");
         final var title = event.getValues().get(0).getAsString();
         final var content = event.getValues().get(1).getAsString();
         Database.patchNote(event.getUser().getId(), args[4], title, content)
-                .thenAccept(note -> {
-                    final Embeds.EmbedBuilderRowPair pair = Embeds.noteEmbed(event.getUser().getName(), event.getUser().getAvatarUrl(), note);
-                    event.replyEmbeds(pair.embedBuilder().build())
-                            .setActionRow(pair.row())
-                            .setEphemeral(true)
-                            .queue();
-                })
+                .thenAccept(note -> reply.send(Embeds.noteEmbed(event.getUser().getName(), event.getUser().getAvatarUrl(), note).toMessage()))
                 .exceptionally(e -> {
-                    event.replyEmbeds(Embeds.noteEditErrorEmbed()).setEphemeral(true).queue();
+                    reply.send(MessageCreateData.fromEmbeds(Embeds.noteEditErrorEmbed()));
                     return null;
                 });
     }
@@ -94,21 +111,38 @@ public class NotesCommand extends ListenerAdapter {
     /**
      * Sends a database request to get a list of the user's notes which then sends an embed with the notes' information.
      * @param event the slash command interaction event.
+     * @param reply the reply to send the list with; an edit of the original message if a user is cycling through pages.
      * @param page the page number to get.
-     * @param edit whether to edit or reply to the original message.
+     * @param listId the ID of the list, which is the ID of the <code>/notes</code> interaction that created it.
+     * @param cursor the cursor of the page when paginating by keyset, or null.
      */
-    private void handleGetNotes(IReplyCallback event, int page, boolean edit) {
-        Database.getNotes(event.getUser().getId(), page)
+    private void handleGetNotes(IReplyCallback event, DeferredReply reply, int page, long listId, String cursor) {
+        Database.getNotes(event.getUser().getId(), page, cursor)
                 .thenAccept(future -> {
                     final var notes = future.notes();
 
                     if (notes.isEmpty())
-                        event.replyEmbeds(Embeds.notesListNotFoundErrorEmbed()).setEphemeral(true).queue();
+                        reply.sendEphemeral(MessageCreateData.fromEmbeds(Embeds.notesListNotFoundErrorEmbed()));
                     else
-                        sendNotesList(event, future.currentPage(), future.totalPages(), notes, event.getUser(), edit);
+                        sendNotesList(reply, listId, future, event.getUser());
                 })
                 .exceptionally(e -> {
-                    handleNoteGetError(event, e.getCause());
+                    handleNoteGetError(reply, e.getCause());
+                    return null;
+                });
+    }
+
+    /**
+     * Sends a database request to search the user's notes which then sends an embed with the matching notes.
+     * @param event the slash command interaction event.
+     * @param query the words to search for.
+     */
+    private void handleSearchNotes(IReplyCallback event, String query) {
+        final DeferredReply reply = DeferredReply.reply(event);
+        Database.searchNotes(event.getUser().getId(), query)
+                .thenAccept(notes -> reply.send(Embeds.searchResultsEmbed(notes, event.getUser(), query).toMessage()))
+                .exceptionally(e -> {
+                    handleNoteGetError(reply, e.getCause());
                     return null;
                 });
     }
@@ -120,16 +154,11 @@ public class NotesCommand extends ListenerAdapter {
      * @param user the user who sent the slash command.
      */
     private void handleViewNote(IReplyCallback event, String noteId, User user) {
+        final DeferredReply reply = DeferredReply.reply(event);
         Database.getNote(noteId, event.getUser().getId())
-                .thenAccept(note -> {
-                    final Embeds.EmbedBuilderRowPair pair = Embeds.noteEmbed(user.getName(), user.getAvatarUrl(), note);
-                    event.replyEmbeds(pair.embedBuilder().build())
-                            .setActionRow(pair.row())
-                            .setEphemeral(true)
-                            .queue();
-                })
+                .thenAccept(note -> reply.send(Embeds.noteEmbed(user.getName(), user.getAvatarUrl(), note).toMessage()))
                 .exceptionally(e -> {
-                    handleNoteGetError(event, e.getCause());
+                    handleNoteGetError(reply, e.getCause());
                     return null;
                 });
     }
@@ -160,7 +189,7 @@ public class NotesCommand extends ListenerAdapter {
                             .addComponents(ActionRow.of(title), ActionRow.of(content))
                             .build();
 
-                    event.replyModal(modal).queue();
+                    event.replyModal(modal).queue(Interactions.replied(event));
                 })
                 .exceptionally(e -> {
                     handleNoteGetError(event, e.getCause());
@@ -175,45 +204,28 @@ public class NotesCommand extends ListenerAdapter {
      * @param user the user who sent the slash command.
      */
     private void handleDeleteNote(ButtonInteractionEvent event, String noteId, User user) {
+        final DeferredReply reply = DeferredReply.reply(event);
         Database.deleteNote(noteId, user.getId())
-                .thenAccept(deleted -> {
-                    if (deleted)
-                        event.replyEmbeds(Embeds.noteDeleteEmbed()).setEphemeral(true).queue();
-                    else
-                        event.replyEmbeds(Embeds.noteDeleteErrorEmbed()).setEphemeral(true).queue();
-                })
+                .thenAccept(deleted -> reply.send(MessageCreateData.fromEmbeds(deleted ? Embeds.noteDeleteEmbed() : Embeds.noteDeleteErrorEmbed())))
                 .exceptionally(e -> {
-                    event.replyEmbeds(Embeds.noteDeleteErrorEmbed()).setEphemeral(true).queue();
+                    reply.send(MessageCreateData.fromEmbeds(Embeds.noteDeleteErrorEmbed()));
                     return null;
                 });
     }
 
     /**
-     * Sends an embed with a list of notes.
-     * @param event the slash command interaction event.
-     * @param currentPage the current page number.
-     * @param totalPages the total number of pages.
-     * @param notes the list of notes.
+     * Sends an embed with a list of notes and (re)schedules the list's timeout, using the hook of the latest page so
+     * the timeout edits the message through the freshest interaction token.
+     * @param reply the reply to send the list with.
+     * @param listId the ID of the list.
+     * @param page the page of notes.
      * @param user the user who sent the slash command.
-     * @param edit whether to edit or reply to the original message. Should be true if a user is cycling through pages.
      */
-    private void sendNotesList(IReplyCallback event, int currentPage, int totalPages, List<Note> notes, User user, boolean edit) {
-        final Embeds.EmbedBuilderRowPair pair = Embeds.notesListEmbed(currentPage, totalPages, notes, user);
-        if (edit && !(event instanceof ButtonInteractionEvent)) {
-            throw new IllegalArgumentException("Cannot edit a message that is not a button interaction event");
-        }
-
-        if (edit) {
-            ((ButtonInteractionEvent) event).deferEdit().setEmbeds(pair.embedBuilder().build()).setActionRow(pair.row())
-                    .queue(hook -> hook.editOriginalEmbeds(Embeds.timeoutEmbed())
-                            .setComponents(new ArrayList<>())
-                            .queueAfter(30, TimeUnit.SECONDS));
-        } else {
-            event.deferReply().setEmbeds(pair.embedBuilder().build()).setActionRow(pair.row()).setEphemeral(true)
-                    .queue(hook -> hook.editOriginalEmbeds(Embeds.timeoutEmbed())
-                            .setComponents(new ArrayList<>())
-                            .queueAfter(30, TimeUnit.SECONDS));
-        }
+    private void sendNotesList(DeferredReply reply, long listId, NotesResponse page, User user) {
+        final Embeds.EmbedBuilderRowPair pair = Embeds.notesListEmbed(page, user, listId);
+        reply.send(pair.toMessage(), hook -> listTimeouts.schedule(listId, LIST_TIMEOUT, () -> hook.editOriginalEmbeds(Embeds.timeoutEmbed())
+                .setComponents(new ArrayList<>())
+                .queue()));
     }
 
     /**
@@ -222,11 +234,24 @@ public class NotesCommand extends ListenerAdapter {
      * @param throwable the exception.
      */
     private void handleNoteGetError(IReplyCallback event, Throwable throwable) {
+        event.replyEmbeds(errorEmbed(throwable)).setEphemeral(true).queue(Interactions.replied(event));
+    }
+
+    /**
+     * Sends an error embed based on the exception as a new ephemeral message.
+     * @param reply the reply to send the error with.
+     * @param throwable the exception.
+     */
+    private void handleNoteGetError(DeferredReply reply, Throwable throwable) {
+        reply.sendEphemeral(MessageCreateData.fromEmbeds(errorEmbed(throwable)));
+    }
+
+    private MessageEmbed errorEmbed(Throwable throwable) {
         if (throwable instanceof NoteNotFoundException)
-            event.replyEmbeds(Embeds.noteInvalidIdErrorEmbed()).setEphemeral(true).queue();
+            return Embeds.noteInvalidIdErrorEmbed();
         else if (throwable instanceof NotesListNotFoundException)
-            event.replyEmbeds(Embeds.notesListNotFoundErrorEmbed()).setEphemeral(true).queue();
+            return Embeds.notesListNotFoundErrorEmbed();
         else
-            event.replyEmbeds(Embeds.notesGetErrorEmbed()).setEphemeral(true).queue();
+            return Embeds.notesGetErrorEmbed();
     }
 }
\ No newline at end of file
@@ -0,0 +1,147 @@
+package xyz.knaughts.database;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+import static xyz.knaughts.KnaughtsBot.LOG;
+
+/**
+ * An adaptive concurrency limit for requests to the database, using additive increase, multiplicative decrease
+ * (AIMD). Every request holds a {@link Permit} while it's in flight. When a request fails, times out or takes longer
+ * than the latency threshold, the limit shrinks by the backoff ratio; while requests succeed and the limit is being
+ * used, it grows by one.
+ * <p>
+ * Requests over the limit wait in a bounded queue. When the queue is full, new requests are rejected straight away,
+ * so an overloaded database results in quick failures instead of every interaction timing out.
+ */
+final class AdaptiveLimiter {
+
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+    private final int maxQueued;
+
+    private final Queue<CompletableFuture<Permit>> queue = new ArrayDeque<>();
+    private double limit;
+    private int inFlight;
+
+    /**
+     * @param name the name of the limiter, used in logs.
+     * @param initialLimit the limit to start with.
+     * @param minLimit the lowest the limit can shrink to.
+     * @param maxLimit the highest the limit can grow to.
+     * @param latencyThreshold the latency in milliseconds above which a request counts as overload.
+     * @param maxQueued the maximum number of requests waiting for a permit.
+     */
+    AdaptiveLimiter(String name, int initialLimit, int minLimit, int maxLimit, long latencyThreshold, int maxQueued) {
+        this.name = name;
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyThresholdNanos = latencyThreshold * 1_000_000;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Acquires a permit to send a request.
+     * @return a {@link CompletableFuture} that completes with the permit once the request may be sent, or completes
+     * exceptionally with a {@link RejectedExecutionException} if the queue is full.
+     */
+    CompletableFuture<Permit> acquire() {
+        synchronized (this) {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                return CompletableFuture.completedFuture(new Permit());
+            }
+            if (queue.size() < maxQueued) {
+                final CompletableFuture<Permit> future = new CompletableFuture<>();
+                queue.add(future);
+                return future;
+            }
+        }
+        return CompletableFuture.failedFuture(new RejectedExecutionException("Too many `" + name + "` requests to the database."));
+    }
+
+    /**
+     * @return the current concurrency limit.
+     */
+    synchronized int limit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return the highest the limit can grow to.
+     */
+    int maxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * @return the number of requests in flight.
+     */
+    synchronized int inFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return the number of requests waiting for a permit.
+     */
+    synchronized int queued() {
+        return queue.size();
+    }
+
+    /**
+     * Adjusts the limit after a request finished and admits as many waiting requests as the new limit allows.
+     * @param latencyNanos how long the request took.
+     * @param dropped whether the request failed in a way that signals overload.
+     */
+    private void release(long latencyNanos, boolean dropped) {
+        final List<CompletableFuture<Permit>> admitted = new ArrayList<>(1);
+        synchronized (this) {
+            final int previous = (int) limit;
+            if (dropped || latencyNanos > latencyThresholdNanos)
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+            else if (inFlight * 2 >= limit)
+                limit = Math.min(maxLimit, limit + 1);
+
+            if ((int) limit != previous)
+                LOG.debug("Database `" + name + "` concurrency limit " + previous + " -> " + (int) limit + " (" + inFlight + " in flight, " + queue.size() + " queued)");
+
+            inFlight--;
+            while (inFlight < (int) limit && !queue.isEmpty()) {
+                inFlight++;
+                admitted.add(queue.poll());
+            }
+        }
+
+        // completed outside the lock, as the waiting requests are sent from here
+        for (final CompletableFuture<Permit> next : admitted)
+            next.complete(new Permit());
+    }
+
+    /**
+     * A permit to have one request in flight. Must be released exactly once.
+     */
+    final class Permit {
+        private final long start = System.nanoTime();
+        private boolean released;
+
+        /**
+         * Releases the permit.
+         * @param dropped whether the request failed in a way that signals overload, such as a network error, a
+         *                timeout or a 5xx/429 response.
+         */
+        void release(boolean dropped) {
+            if (released) return;
+            released = true;
+            AdaptiveLimiter.this.release(System.nanoTime() - start, dropped);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package xyz.knaughts.database;
+
+import static xyz.knaughts.KnaughtsBot.LOG;
+
+/**
+ * A circuit breaker for one database endpoint. After enough consecutive failures the breaker opens and requests to the
+ * endpoint fail straight away instead of piling up on a database that's down. Once the open time has passed, the
+ * breaker is half-open and lets a single probe request through: the breaker closes again if it succeeds and reopens if
+ * it fails.
+ */
+final class CircuitBreaker {
+
+    /**
+     * The states of a breaker, with the values they're exported as.
+     */
+    enum State {
+        CLOSED(0), HALF_OPEN(1), OPEN(2);
+
+        final int value;
+
+        State(int value) {
+            this.value = value;
+        }
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private boolean probing;
+
+    /**
+     * @param name the name of the endpoint, used in logs and metrics.
+     * @param failureThreshold the number of consecutive failures that opens the breaker.
+     * @param openTime how long the breaker stays open before probing, in milliseconds.
+     */
+    CircuitBreaker(String name, int failureThreshold, long openTime) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openTime * 1_000_000;
+    }
+
+    /**
+     * Asks the breaker whether a request may be sent. A request that's let through must be followed by exactly one
+     * of {@link #success}, {@link #failure} or {@link #cancel}.
+     * @return whether the request may be sent.
+     */
+    synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAt < openNanos) {
+                DatabaseMetrics.breakerRejected(name);
+                return false;
+            }
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probing) {
+                DatabaseMetrics.breakerRejected(name);
+                return false;
+            }
+            probing = true;
+        }
+        return true;
+    }
+
+    /**
+     * Records a request the database answered.
+     */
+    synchronized void success() {
+        failures = 0;
+        probing = false;
+        if (state != State.CLOSED)
+            transition(State.CLOSED);
+    }
+
+    /**
+     * Records a request that failed because of the database, such as a timeout or a server error.
+     */
+    synchronized void failure() {
+        probing = false;
+        if (state == State.HALF_OPEN || ++failures >= failureThreshold) {
+            openedAt = System.nanoTime();
+            if (state != State.OPEN)
+                transition(State.OPEN);
+        }
+    }
+
+    /**
+     * Records a request that was let through but never sent, so it neither closes nor opens the breaker.
+     */
+    synchronized void cancel() {
+        probing = false;
+    }
+
+    /**
+     * @return the current state.
+     */
+    synchronized State state() {
+        return state;
+    }
+
+    private void transition(State to) {
+        if (to == State.OPEN)
+            LOG.warn("Circuit breaker for `" + name + "` opened" + (state == State.HALF_OPEN ? " after a failed probe." : " after " + failures + " failures."));
+        else
+            LOG.info("Circuit breaker for `" + name + "` is now " + to.name().toLowerCase().replace('_', '-') + ".");
+        state = to;
+        DatabaseMetrics.breakerTransition(name, to);
+    }
+}
@@ -1,114 +1,283 @@
 package xyz.knaughts.database;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import com.goterl.lazysodium.exceptions.SodiumException;
 import xyz.knaughts.exceptions.NoteNotFoundException;
 import xyz.knaughts.exceptions.NotesListNotFoundException;
 import xyz.knaughts.models.Note;
-import okhttp3.*;
-import org.jetbrains.annotations.NotNull;
 import xyz.knaughts.models.NotesResponse;
 import xyz.knaughts.utils.Cryptography;
+import xyz.knaughts.utils.Env;
+import xyz.knaughts.utils.LongHashSet;
+import xyz.knaughts.utils.SearchTokens;
+import xyz.knaughts.utils.VirtualThreads;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.LongPredicate;
 
 import static xyz.knaughts.KnaughtsBot.LOG;
 
 /**
- * A wrapper around the Knaughts bot database. Knaughts bot uses <a href="https://pocketbase.io/">PocketBase</a> as its
- * database. As of late 2023, there is no Java SDK so the REST API is used.
+ * A wrapper around the Knaughts bot database. Notes are encrypted before they're handed to the {@link NoteStore} and
+ * decrypted after they're read back, with a cache of decrypted notes in front of the store.
+ * <p>
+ * The storage backend is picked at startup with the <code>KNAUGHTS_DB_BACKEND</code> environment variable:
+ * <ul>
+ *     <li><code>pocketbase</code> (default): <a href="https://pocketbase.io/">PocketBase</a>, see {@link PocketBaseStore}.</li>
+ *     <li><code>local</code>: an embedded log file for single node deployments, see {@link LocalStore}.</li>
+ * </ul>
  */
 public final class Database {
 
     /**
-     * The HTTP client used to make requests to the database. Knaughts bot uses <a href="https://square.github.io/okhttp/">OkHttp</a>
-     * for HTTP-related functionality.
+     * The cache of decrypted notes in front of {@link #getNote} and {@link #getNotes}. Writes go through it so reads
+     * stay consistent with what's in the database.
      */
-    private static final OkHttpClient client = new OkHttpClient();
+    private static final NoteCache cache = new NoteCache(
+            Env.getInt("KNAUGHTS_CACHE_MAX_NOTES", 10_000),
+            Env.getLong("KNAUGHTS_CACHE_TTL", TimeUnit.MINUTES.toMillis(10))
+    );
 
     /**
-     * The base URL of the database.
+     * The worker pool notes are decrypted on, keeping OkHttp's dispatcher threads free for I/O. The futures returned
+     * by {@link #getNotes} and {@link #getNote} complete on these workers, so callers must only chain non-blocking
+     * work onto them, such as queueing JDA replies.
      */
-    private static final String BASE_URL = System.getenv("KNAUGHTS_DB_BASE_URL");
+    private static final DecodePool decodePool = new DecodePool(
+            Env.getInt("KNAUGHTS_DECODE_THREADS", Runtime.getRuntime().availableProcessors()),
+            Env.getInt("KNAUGHTS_DECODE_QUEUE_SIZE", 1_000)
+    );
 
     /**
-     * The admin auth token for the database. Currently, all requests are made via an admin account so that all
-     * users are able to use the database for their notes securely.
+     * The executor database continuations such as decryption run on: the {@link #decodePool}, or in the virtual
+     * thread mode, a new virtual thread per task. Virtual threads are cheap to block, so there callers can simply
+     * join the returned futures.
      */
-    private static String AUTH_TOKEN;
+    private static final Executor continuations = VirtualThreads.isEnabled()
+            ? VirtualThreads.newExecutor("knaughts-db-")
+            : decodePool;
 
     /**
-     * The Gson instance used to parse JSON responses from the database.
+     * Coalesces concurrent reads of the same notes list window, such as a double-clicked page button or a page read
+     * racing its window's prefetch, into one request and one decrypt.
      */
-    private static final Gson gson = new Gson();
+    private static final SingleFlight<WindowKey, NotesWindow> windowFlights = new SingleFlight<>();
+
+    /**
+     * Coalesces concurrent reads of the same note, such as the view and edit buttons firing close together, into one
+     * request and one decrypt.
+     */
+    private static final SingleFlight<NoteKey, Note> noteFlights = new SingleFlight<>();
+
+    /**
+     * Serializes the writes of each note, so a key rotation checking that a note is unchanged and then replacing it
+     * can't have an edit of the note land in between.
+     */
+    private static final SerialWrites<String> noteWrites = new SerialWrites<>();
+
+    /**
+     * The number of notes shown per page of the notes list.
+     */
+    private static final int NOTES_PER_PAGE = 3;
+
+    /**
+     * The number of notes fetched per request for the notes list, a whole number of pages so pages never span two
+     * windows.
+     */
+    private static final int NOTES_PER_WINDOW = NOTES_PER_PAGE * Math.max(1, Env.getInt("KNAUGHTS_NOTES_WINDOW_PAGES", 10));
+
+    /**
+     * How many pages from the end of a window the next window is prefetched.
+     */
+    private static final int PREFETCH_PAGES = 2;
+
+    /**
+     * Whether the notes list is read by keyset rather than by page, set with <code>KNAUGHTS_NOTES_PAGINATION</code>
+     * (<code>offset</code> or <code>keyset</code>). Keyset reads skip counting the user's notes and don't slow down
+     * deeper into the list, but the total number of pages isn't known.
+     */
+    private static final boolean KEYSET_PAGINATION = Env.get("KNAUGHTS_NOTES_PAGINATION", "offset").equals("keyset");
+
+    /**
+     * The maximum number of notes a search returns.
+     */
+    private static final int SEARCH_RESULTS = 5;
+
+    private static NoteStore notes;
+    private static ServerStore servers;
+
+    /**
+     * Merges and batches server updates before they're written to {@link #servers}.
+     */
+    private static ServerWriteBehind serverWrites;
+
+    /**
+     * The journal note writes go through before reaching {@link #notes}, or null if it's disabled.
+     */
+    private static WriteJournal journal;
+
+    /**
+     * Called with the owner and note of each journaled write the database rejected, or null until the bot sets it.
+     */
+    private static BiConsumer<String, Note> rejectedNotes;
+
+    /**
+     * The writes rejected before {@link #rejectedNotes} was set.
+     */
+    private static final List<NoteRecord> unclaimedRejections = new ArrayList<>();
 
     private Database() {
     }
 
     /**
-     * Sends an initial authentication request to the database and starts a {@link TokenRefresh} thread to refresh it
-     * periodically
+     * Opens the storage backend selected by <code>KNAUGHTS_DB_BACKEND</code>.
      */
     public static void init() {
         LOG.info("Initialising database...");
 
-        if (BASE_URL == null || BASE_URL.isEmpty())
-            throw new RuntimeException("KNAUGHTS_DB_BASE_URL environment variable not found/set.");
+        final String backend = Env.get("KNAUGHTS_DB_BACKEND", "pocketbase");
+        PocketBaseStore pocketBase = null;
+        switch (backend) {
+            case "pocketbase" -> {
+                pocketBase = PocketBaseStore.connect();
+                notes = pocketBase;
+                servers = pocketBase;
+            }
+            case "local" -> {
+                final LocalStore store = LocalStore.open(
+                        Path.of(Env.get("KNAUGHTS_LOCAL_STORE_PATH", "data/knaughts.log")),
+                        Env.getLong("KNAUGHTS_LOCAL_STORE_SYNC_INTERVAL", TimeUnit.SECONDS.toMillis(1)),
+                        Env.getLong("KNAUGHTS_LOCAL_STORE_COMPACTION_INTERVAL", TimeUnit.MINUTES.toMillis(10))
+                );
+                notes = store;
+                servers = store;
+            }
+            default -> throw new RuntimeException("Unknown KNAUGHTS_DB_BACKEND: " + backend);
+        }
+
+        final String journalPath = Env.get("KNAUGHTS_WRITE_JOURNAL_PATH", "");
+        if (!journalPath.isEmpty()) {
+            journal = WriteJournal.open(Path.of(journalPath), notes,
+                    Env.getLong("KNAUGHTS_WRITE_JOURNAL_SYNC_INTERVAL", 20),
+                    userId -> {
+                        cache.windowsChanged(userId);
+                        forgetFlights(userId);
+                    },
+                    Database::writeRejected);
+        }
 
-        AUTH_TOKEN = authenticate(false);
+        serverWrites = new ServerWriteBehind(
+                servers,
+                Env.getLong("KNAUGHTS_SERVER_FLUSH_INTERVAL", TimeUnit.SECONDS.toMillis(2)),
+                Env.getInt("KNAUGHTS_SERVER_BATCH_SIZE", 50)
+        );
+        DatabaseMetrics.registerGauges(decodePool, serverWrites, journal, pocketBase);
 
-        new TokenRefresh().start();
+        LOG.info("Database initialised with the " + backend + " backend.");
 
-        LOG.info("Database initialised.");
+        if (Env.getBoolean("KNAUGHTS_SEARCH_BACKFILL", false))
+            backfillSearchTokens();
+        if (Env.getBoolean("KNAUGHTS_KEY_ROTATION", false))
+            rotateKeys();
     }
 
     /**
-     * Authenticates an admin account with the database and returns the auth token.
-     * @param reAuth whether to re-authenticate with the database.
-     * @return the admin auth token.
-     */
-    private static String authenticate(boolean reAuth) {
-        String token;
-
-        final RequestBody body = new FormBody.Builder()
-                .add("identity", System.getenv("KNAUGHTS_DB_IDENTITY"))
-                .add("password", System.getenv("KNAUGHTS_DB_PASSWORD"))
-                .build();
-
-        final Request r = reAuth
-                ? new Request.Builder()
-                    .addHeader("Authorization", "Bearer " + AUTH_TOKEN)
-                    .url(buildUrl("/api/admins/auth-refresh"))
-                    .post(RequestBody.create(new byte[0]))
-                    .build()
-                : new Request.Builder()
-                    .url(buildUrl("/api/admins/auth-with-password"))
-                    .addHeader("Content-Type", "multipart/form-data")
-                    .post(body)
-                    .build();
-
-        try (Response resp = client.newCall(r).execute()) {
-            if (resp.body() != null && resp.code() == 200) {
-                final JsonObject json = new Gson().fromJson(resp.body().string(), JsonObject.class);
-                token = json.get("token").getAsString();
-                LOG.info("Admin auth token successfully generated.");
-            } else {
-                throw new RuntimeException("Response for admin auth token not okay.");
-            }
-        } catch (Exception e) {
-            throw new RuntimeException("There was an error getting the admin auth token: " + e);
+     * Re-encrypts the notes that aren't encrypted with the current key in the background, logging the result.
+     */
+    private static void rotateKeys() {
+        LOG.info("Rotating notes to cryptography key " + Cryptography.currentKeyId() + "...");
+        final KeyRotation rotation = new KeyRotation(notes, Database::replaceNote, continuations,
+                Path.of(Env.get("KNAUGHTS_KEY_ROTATION_CHECKPOINT_PATH", "data/key-rotation.checkpoint")),
+                Env.getInt("KNAUGHTS_KEY_ROTATION_PAGE_SIZE", 200),
+                Env.getInt("KNAUGHTS_KEY_ROTATION_PARALLELISM", 2),
+                Env.getInt("KNAUGHTS_KEY_ROTATION_RATE", 50));
+        rotation.run().handle((result, e) -> {
+            if (e != null)
+                LOG.error("Failed rotating cryptography keys: " + e);
+            else
+                LOG.info("Rotated notes to cryptography key " + result.keyId() + " in " + result.took().toMillis() + "ms: "
+                        + result.rotated() + " re-encrypted, " + result.changed() + " edited meanwhile, " + result.failed() + " failed.");
+            return null;
+        });
+    }
+
+    /**
+     * Sets what to do with notes whose journaled writes were acknowledged to their owner but then rejected by the
+     * database, such as sending them back to their owner. Writes rejected before it's set are handed to it right away.
+     * @param listener called with the owner's Discord user ID and the decrypted note as it was written.
+     */
+    public static synchronized void onRejectedNote(BiConsumer<String, Note> listener) {
+        rejectedNotes = listener;
+        for (final NoteRecord record : unclaimedRejections)
+            writeRejected(record);
+        unclaimedRejections.clear();
+    }
+
+    /**
+     * Drops a note whose journaled write was rejected from the cache, and hands it to {@link #rejectedNotes}.
+     * @param record the rejected write.
+     */
+    private static synchronized void writeRejected(NoteRecord record) {
+        cache.noteChanged(record.userId(), record.id());
+        forgetFlights(record.userId());
+        if (rejectedNotes == null) {
+            unclaimedRejections.add(record);
+            return;
         }
 
-        return token;
+        try {
+            rejectedNotes.accept(record.userId(), decryptNote(record));
+        } catch (CompletionException e) {
+            LOG.error("Failed handing back rejected note " + record.id() + ": " + e.getCause());
+        }
+    }
+
+    /**
+     * Indexes the notes written before notes were indexed for search in the background, logging the result.
+     */
+    private static void backfillSearchTokens() {
+        LOG.info("Backfilling note search tokens...");
+        new SearchBackfill(notes, continuations, Env.getInt("KNAUGHTS_SEARCH_BACKFILL_PAGE_SIZE", 200)).run().handle((result, e) -> {
+            if (e != null)
+                LOG.error("Failed backfilling note search tokens: " + e);
+            else
+                LOG.info("Backfilled note search tokens in " + result.took().toMillis() + "ms: " + result.indexed()
+                        + " indexed, " + result.skipped() + " skipped.");
+            return null;
+        });
+    }
+
+    /**
+     * Writes any pending server updates, then closes the storage backends if they hold any resources.
+     */
+    public static void shutdown() {
+        if (serverWrites != null)
+            serverWrites.shutdown();
+        if (journal != null)
+            journal.close();
+
+        close(notes);
+        if (servers != notes)
+            close(servers);
+    }
+
+    private static void close(Object store) {
+        if (!(store instanceof Closeable closeable)) return;
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOG.error("Failed closing the database: " + e);
+        }
     }
 
     /**
@@ -119,43 +288,24 @@ public final class Database {
      * @return a {@link CompletableFuture} that completes with the ID of the note.
      */
     public static CompletableFuture<String> postNote(String userId, String title, String content) {
-        final CompletableFuture<String> future = new CompletableFuture<>();
-        String encryptedContent, encryptedTitle;
+        final long start = System.nanoTime();
+        final String encryptedContent, encryptedTitle, searchTokens;
         try {
             encryptedContent = Cryptography.encrypt(content);
             encryptedTitle = Cryptography.encrypt(title);
+            searchTokens = SearchTokens.of(userId, title, content);
         } catch (SodiumException e) {
-            future.completeExceptionally(errorOf("Failed encrypting note: " + e));
-            return future;
+            return DatabaseMetrics.timed("postNote", start, CompletableFuture.failedFuture(errorOf("Failed encrypting note: " + e)));
         }
 
-        final Map<String, String> parts = Map.of(
-                "discord_user_id", userId,
-                "title", encryptedTitle,
-                "content", encryptedContent
-        );
-        final String url = "/api/collections/notes/records";
-
-        client.newCall(postRequest(url, parts)).enqueue(
-            new Callback() {
-                @Override
-                public void onFailure(@NotNull Call call, @NotNull IOException e) {
-                    future.completeExceptionally(errorOf("Failed posting to `notes` on the database: " + e));
-                }
-
-                @Override
-                public void onResponse(@NotNull Call call, @NotNull Response response) throws IOException {
-                    if (response.code() != 200 || response.body() == null) {
-                        future.completeExceptionally(errorOf("There was an error posting to `notes` on the database."));
-                    } else {
-                        final String json = response.body().string();
-                        final JsonObject jsonObject = JsonParser.parseString(json).getAsJsonObject();
-                        future.complete(jsonObject.get("id").getAsString());
-                    }
-                }
-            }
-        );
-        return future;
+        final CompletableFuture<NoteRecord> written = journal != null
+                ? journal.postNote(userId, encryptedTitle, encryptedContent, searchTokens)
+                : notes.postNote(userId, encryptedTitle, encryptedContent, searchTokens);
+        return DatabaseMetrics.timed("postNote", start, written.thenApply(record -> {
+            cache.noteWritten(userId, Note.of(record.id(), title, content, record.created(), record.updated()));
+            forgetFlights(userId);
+            return record.id();
+        }));
     }
 
     /**
@@ -167,355 +317,324 @@ public final class Database {
      * @return a {@link CompletableFuture} that completes with the updated note.
      */
     public static CompletableFuture<Note> patchNote(String userId, String noteId, String title, String content) {
-        final CompletableFuture<Note> future = new CompletableFuture<>();
-        final String encryptedContent, encryptedTitle;
+        final long start = System.nanoTime();
+        final String encryptedContent, encryptedTitle, searchTokens;
         try {
             encryptedContent = Cryptography.encrypt(content);
             encryptedTitle = Cryptography.encrypt(title);
+            searchTokens = SearchTokens.of(userId, title, content);
         } catch (SodiumException e) {
-            future.completeExceptionally(errorOf("Failed encrypting note: " + e));
-            return future;
+            return DatabaseMetrics.timed("patchNote", start, CompletableFuture.failedFuture(errorOf("Failed encrypting note: " + e)));
         }
 
-        final Map<String, String> parts = Map.of(
-                "discord_user_id", userId,
-                "title", encryptedTitle,
-                "content", encryptedContent
-        );
-        final String url = "/api/collections/notes/records/" + noteId + "?fields=id,title,content,created,updated";
-
-        client.newCall(patchRequest(url, parts)).enqueue(
-                new Callback() {
-                    @Override
-                    public void onFailure(@NotNull Call call, @NotNull IOException e) {
-                        future.completeExceptionally(errorOf("Failed patching to `notes` on the database: " + e));
-                    }
-
-                    @Override
-                    public void onResponse(@NotNull Call call, @NotNull Response response) throws IOException {
-                        if (response.code() != 200 || response.body() == null) {
-                            future.completeExceptionally(errorOf("There was an error patching to `notes` on the database."));
-                        } else {
-                            final String json = response.body().string();
-                            final JsonObject jsonObject = gson.fromJson(json, JsonObject.class);
-
-                            // using the edited title and content param values to save having to decrypt
-                            future.complete(new Note(
-                                    jsonObject.get("id").getAsString(),
-                                    title,
-                                    content,
-                                    jsonObject.get("created").getAsString(),
-                                    jsonObject.get("updated").getAsString())
-                            );
-                        }
-                    }
-                }
-        );
+        final CompletableFuture<NoteRecord> written = noteWrites.run(noteId, () -> {
+            if (journal == null)
+                return notes.patchNote(userId, noteId, encryptedTitle, encryptedContent, searchTokens);
+            final Note cached = cache.getNote(userId, noteId);
+            return journal.patchNote(userId, noteId, encryptedTitle, encryptedContent, searchTokens, cached == null ? null : cached.created());
+        });
+        return DatabaseMetrics.timed("patchNote", start, written.thenApply(record -> {
+            // using the edited title and content param values to save having to decrypt
+            final Note note = Note.of(record.id(), title, content, record.created(), record.updated());
+            cache.noteWritten(userId, note);
+            forgetFlights(userId);
+            return note;
+        }));
+    }
 
-        return future;
+    /**
+     * Replaces a note re-encrypted by a key rotation, unless it was edited since it was read. The replacement is
+     * serialized with the edits of the note, and a note with journaled edits that haven't reached the store yet counts
+     * as edited, so an edit is never overwritten by the rotation.
+     * @param expected the note as it was read.
+     * @param replacement the re-encrypted note.
+     * @return a {@link CompletableFuture} that completes with whether the note was replaced.
+     */
+    private static CompletableFuture<Boolean> replaceNote(NoteRecord expected, NoteRecord replacement) {
+        return noteWrites.run(expected.id(), () -> {
+            if (journal != null && !journal.replayed(expected.id()).isDone())
+                return CompletableFuture.completedFuture(false);
+            return notes.replaceNote(expected, replacement.title(), replacement.content(), replacement.searchTokens());
+        }).thenApply(replaced -> {
+            if (replaced) {
+                // same title and content, but the cached note's updated time is stale now
+                cache.noteChanged(expected.userId(), expected.id());
+                forgetFlights(expected.userId());
+            }
+            return replaced;
+        });
     }
 
     /**
-     * Sends a request to the database to create a new server record with `bot_in_server` set to true.
+     * Queues a server record with `bot_in_server` set to true to be written to the database, creating the record if
+     * it doesn't exist.
      * @param serverId the ID of the server to create.
      */
     public static void postServer(String serverId) {
-        final String url = "/api/collections/servers/records";
-        final Map<String, String> parts = Map.of(
-                "guild_id", serverId,
-                "bot_in_server", String.valueOf(true)
-        );
-
-        client.newCall(postRequest(url, parts)).enqueue(
-                new Callback() {
-                    @Override
-                    public void onFailure(@NotNull Call call, @NotNull IOException e) {
-                        LOG.error("Failed posting to `servers` on the database: " + e);
-                    }
-
-                    @Override
-                    public void onResponse(@NotNull Call call, @NotNull Response response) {
-                        int code = response.code();
-                        if (code != 200 && code != 400) { // 400 means the server already exists
-                            LOG.error("There was an error posting to `servers` on the database with server id " + serverId);
-                        } else if (code == 400) {
-                            Database.patchServer(Long.parseLong(serverId), true);
-                        }
-                    }
-                }
-        );
+        DatabaseMetrics.serverUpdate("postServer");
+        serverWrites.put(Long.parseLong(serverId), true);
     }
 
     /**
-     * Sends a request to the database to update a server record.
+     * Queues an update to a server record to be written to the database.
      * @param serverId the ID of the server to update.
      */
     public static void patchServer(long serverId, boolean botInServer) {
-        final String url = "/api/collections/servers/records/" + serverId;
-        final Map<String, String> parts = Map.of(
-                "bot_in_server", String.valueOf(botInServer)
-        );
+        DatabaseMetrics.serverUpdate("patchServer");
+        serverWrites.put(serverId, botInServer);
+    }
 
-        client.newCall(patchRequest(url, parts)).enqueue(
-                new Callback() {
-                    @Override
-                    public void onFailure(@NotNull Call call, @NotNull IOException e) {
-                        LOG.error("Failed patching to `servers` on the database: " + e);
-                    }
-
-                    @Override
-                    public void onResponse(@NotNull Call call, @NotNull Response response) {
-                        if (response.code() != 200) {
-                            LOG.error("There was an error patching to `servers` on the database with id " + serverId);
-                        }
-                    }
-                }
-        );
+    /**
+     * Reconciles the stored servers with the guilds the bot is in, queueing writes for servers whose `bot_in_server`
+     * is wrong and for guilds with no record. Logs how many records were touched once the writes are flushed.
+     * @param guildIds the IDs of the guilds the bot is in. The set is consumed by the reconciliation.
+     * @param owned which stored servers belong to this process's shards.
+     * @return a {@link CompletableFuture} that completes when the reconciliation is done.
+     */
+    public static CompletableFuture<Void> reconcileServers(LongHashSet guildIds, LongPredicate owned) {
+        LOG.info("Reconciling servers with " + guildIds.size() + " guilds...");
+        final ServerReconciler reconciler = new ServerReconciler(servers, serverWrites, Env.getInt("KNAUGHTS_RECONCILE_PAGE_SIZE", 500));
+        return reconciler.reconcile(guildIds, owned).handle((result, e) -> {
+            if (e != null)
+                LOG.error("Failed reconciling servers: " + e);
+            else
+                LOG.info("Reconciled " + result.checked() + " servers with " + result.guilds() + " guilds in " + result.took().toMillis()
+                        + "ms: touched " + result.touched() + " (" + result.updated() + " updated, " + result.created() + " created).");
+            return null;
+        });
     }
 
     /**
-     * Sends a request to the database to get a list of notes for a user.
+     * Gets a page of a user's notes list. Notes are fetched a window of several pages at a time and pages are served
+     * from the cached window, so paging through the list rarely waits on the database; the next window is prefetched
+     * in the background as the user nears the end of the current one.
      * @param userId the Discord user ID of the user to get notes for.
      * @param page the page of notes to get.
+     * @param cursor the cursor of the page from the {@link NotesResponse} of the page before or after it, or null for
+     *               the first page or when paginating by offset.
      * @return a {@link CompletableFuture} that completes with a {@link NotesResponse} containing the notes.
      */
-    public static CompletableFuture<NotesResponse> getNotes(String userId, int page) {
-        final String url = "/api/collections/notes/records?perPage=3&page=" + page + "&filter=(discord_user_id='" + userId + "')&fields=id,title,content,created,updated&sort=-created";
-        final List<Note> notes = new ArrayList<>();
-        final CompletableFuture<NotesResponse> future = new CompletableFuture<>();
-
-        client.newCall(getRequest(url)).enqueue(
-                new Callback() {
-                    @Override
-                    public void onFailure(@NotNull Call call, @NotNull IOException e) {
-                        future.completeExceptionally(errorOf("Failed getting to `notes` on the database: " + e));
-                    }
-
-                    @SuppressWarnings("unchecked")
-                    @Override
-                    public void onResponse(@NotNull Call call, @NotNull Response response) throws IOException {
-                        if (response.code() != 200 || response.body() == null) {
-                            future.completeExceptionally(errorOf("There was an error getting to `notes` on the database."));
-                            return;
-                        }
-
-                        final String json = response.body().string();
-                        final Map<String, Object> responseMap = gson.fromJson(json, Map.class);
-                        final List<Map<String, String>> items = (List<Map<String, String>>) responseMap.get("items");
-
-                        for (final Map<String, String> item : items) {
-                            final String decryptedContent, decryptedTitle;
-                            try {
-                                decryptedContent = Cryptography.decrypt(item.get("content"));
-                                decryptedTitle = Cryptography.decrypt(item.get("title"));
-                            } catch (SodiumException e) {
-                                future.completeExceptionally(errorOf("Failed decrypting note: " + e));
-                                return;
-                            }
-                            notes.add(new Note(item.get("id"), decryptedTitle, decryptedContent, item.get("created"), item.get("updated")));
-                        }
-
-                        if (items.isEmpty())
-                            future.completeExceptionally(new NotesListNotFoundException(("No notes found.")));
-                        else
-                            future.complete(new NotesResponse(notes, (int) ((double) responseMap.get("page")),  (int) ((double) responseMap.get("totalPages"))));
-                    }
-                }
-        );
+    public static CompletableFuture<NotesResponse> getNotes(String userId, int page, String cursor) {
+        final long start = System.nanoTime();
+        final int window = (page - 1) * NOTES_PER_PAGE / NOTES_PER_WINDOW + 1;
+        final NotesWindow cached = cache.getWindow(userId, window);
+        if (cached != null) {
+            DatabaseMetrics.record("getNotes", start, false);
+            return servePage(cached, userId, page);
+        }
 
-        return future;
+        return DatabaseMetrics.timed("getNotes", start, getWindow(userId, window, NoteCursor.decode(cursor))
+                .thenCompose(notes -> servePage(notes, userId, page)));
     }
 
     /**
-     * Sends a request to the database to get a single note for a user.
-     * @param noteId the ID of the note to get.
-     * @param userId the Discord user ID of the user to get the note for.
-     * @return a {@link CompletableFuture} that completes with a {@link Note}.
+     * Slices a page out of its window and prefetches the next window if the page is near the end of this one.
+     * @param window the window the page is in.
+     * @param userId the Discord user ID of the notes' owner.
+     * @param page the page number.
+     * @return a {@link CompletableFuture} that completes with the page, or fails if it has no notes.
      */
-    public static CompletableFuture<Note> getNote(String noteId, String userId) {
-        final String url = "/api/collections/notes/records?filter=(id='" + noteId + "' && discord_user_id='" + userId + "')&fields=id,title,content,created,updated";
-        final CompletableFuture<Note> future = new CompletableFuture<>();
-
-        client.newCall(getRequest(url)).enqueue(
-                new Callback() {
-                    @Override
-                    public void onFailure(@NotNull Call call, @NotNull IOException e) {
-                        future.completeExceptionally(errorOf("Failed getting a note on `notes` on the database: " + e));
-                    }
-
-                    @SuppressWarnings("unchecked")
-                    @Override
-                    public void onResponse(@NotNull Call call, @NotNull Response response) throws IOException {
-                        if (response.code() != 200 || response.body() == null) {
-                            future.completeExceptionally(errorOf("There was an error getting a note on the database."));
-                        } else {
-                            final String json = response.body().string();
-                            final Map<String, Object> responseMap = gson.fromJson(json, Map.class);
-                            final List<Map<String, String>> items = (List<Map<String, String>>) responseMap.get("items");
-
-                            if (items.isEmpty()) {
-                                future.completeExceptionally(new NoteNotFoundException("Note not found."));
-                            } else {
-                                final String decryptedContent, decryptedTitle;
-                                try {
-                                    decryptedContent = Cryptography.decrypt(items.get(0).get("content"));
-                                    decryptedTitle = Cryptography.decrypt(items.get(0).get("title"));
-                                } catch (SodiumException e) {
-                                    future.completeExceptionally(errorOf("Failed decrypting note: " + e));
-                                    return;
-                                }
-
-                                future.complete(new Note(
-                                        items.get(0).get("id"),
-                                        decryptedTitle,
-                                        decryptedContent,
-                                        items.get(0).get("created"),
-                                        items.get(0).get("updated")
-                                ));
-                            }
-                        }
-
-                    }
-                }
-        );
-
-        return future;
+    private static CompletableFuture<NotesResponse> servePage(NotesWindow window, String userId, int page) {
+        final NotesResponse response = window.page(page, NOTES_PER_PAGE);
+        if (response.notes().isEmpty())
+            return CompletableFuture.failedFuture(new NotesListNotFoundException(("No notes found.")));
+
+        final int lastPage = window.window() * NOTES_PER_WINDOW / NOTES_PER_PAGE;
+        if (window.hasNext() && lastPage - page < PREFETCH_PAGES && cache.getWindow(userId, window.window() + 1) == null) {
+            final long start = System.nanoTime();
+            DatabaseMetrics.timed("prefetchNotes", start, getWindow(userId, window.window() + 1, window.next())).exceptionally(e -> {
+                LOG.debug("Failed prefetching notes: " + e);
+                return null;
+            });
+        }
+        return CompletableFuture.completedFuture(response);
     }
 
     /**
-     * Sends a request to the database to delete a note.
-     * @param noteId the ID of the note to delete.
-     * @param userId the Discord user ID of the user to delete the note for.
-     * @return a {@link CompletableFuture} that completes with a boolean indicating whether the note was successfully deleted.
+     * Sends a request to the database to get a window of a user's notes, unless the same window is already being
+     * fetched, and caches it. With keyset pagination, windows after the first need a cursor; without one, such as for
+     * buttons sent before keyset pagination was enabled, the window is read by page instead.
+     * @param userId the Discord user ID of the user to get notes for.
+     * @param window the window number.
+     * @param cursor the cursor of the window, or null.
+     * @return a {@link CompletableFuture} that completes with the decrypted window.
      */
-    public static CompletableFuture<Boolean> deleteNote(String noteId, String userId) {
-        final String url = "/api/collections/notes/records/" + noteId + "?filter=(discord_user_id='" + userId + "')";
-        final CompletableFuture<Boolean> future = new CompletableFuture<>();
-
-        client.newCall(deleteRequest(url)).enqueue(
-                new Callback() {
-                    @Override
-                    public void onFailure(@NotNull Call call, @NotNull IOException e) {
-                        LOG.error("Failed deleting a note on `notes` on the database: " + e);
-                        future.complete(false);
-                    }
-
-                    @Override
-                    public void onResponse(@NotNull Call call, @NotNull Response response) {
-                        if (response.code() != 204) {
-                            LOG.error("There was an error deleting a note on the database.");
-                            future.complete(false);
-                        } else {
-                            future.complete(true);
-                        }
-                    }
-                }
-        );
+    private static CompletableFuture<NotesWindow> getWindow(String userId, int window, NoteCursor cursor) {
+        return windowFlights.run(new WindowKey(userId, window), () -> {
+            final long stamp = cache.stamp();
+            if (!KEYSET_PAGINATION || (window > 1 && cursor == null))
+                return notes.getNotes(userId, window, NOTES_PER_WINDOW)
+                        .thenComposeAsync(records -> decryptNotes(records, userId, window, null, stamp), continuations);
+
+            final NoteCursor from = window == 1 ? null : cursor;
+            if (from != null && from.before()) {
+                // the window before a known note, so the next window starts at that note
+                final NoteCursor next = new NoteCursor(false, from.created(), from.id());
+                return notes.getNotesFrom(userId, from, NOTES_PER_WINDOW)
+                        .thenComposeAsync(records -> decryptNotes(records, userId, window, next, stamp), continuations);
+            }
 
-        return future;
+            // one extra note tells whether there's a next window, and where it starts
+            return notes.getNotesFrom(userId, from, NOTES_PER_WINDOW + 1).thenComposeAsync(records -> {
+                if (records.items().size() <= NOTES_PER_WINDOW)
+                    return decryptNotes(records, userId, window, null, stamp);
+
+                final NoteRecord first = records.items().get(NOTES_PER_WINDOW);
+                final Instant created = Note.parseTimestamp(first.created());
+                final NoteCursor next = created == null ? null : new NoteCursor(false, created, first.id());
+                final RecordList<NoteRecord> trimmed = new RecordList<>(records.page(), NOTES_PER_WINDOW, -1, -1,
+                        records.items().subList(0, NOTES_PER_WINDOW));
+                return decryptNotes(trimmed, userId, window, next, stamp);
+            }, continuations);
+        });
     }
 
     /**
-     * Returns a new {@link RuntimeException} with a given message.
-     * @param msg the message for the exception.
-     * @return a new {@link RuntimeException}.
+     * Decrypts the notes of a notes list window in parallel on the {@link #continuations} executor.
+     * @param records the window of encrypted records.
+     * @param userId the Discord user ID of the notes' owner.
+     * @param window the window number.
+     * @param next the cursor of the next window if it was read by keyset, or null.
+     * @param stamp the cache stamp taken before the request was sent.
+     * @return a {@link CompletableFuture} that completes with the decrypted window.
      */
-    private static RuntimeException errorOf(String msg) {
-        LOG.error(msg);
-        return new RuntimeException(msg);
+    private static CompletableFuture<NotesWindow> decryptNotes(RecordList<NoteRecord> records, String userId, int window, NoteCursor next, long stamp) {
+        if (records.items().isEmpty())
+            return CompletableFuture.failedFuture(new NotesListNotFoundException(("No notes found.")));
+
+        final List<CompletableFuture<Note>> decrypted = new ArrayList<>(records.items().size());
+        for (final NoteRecord record : records.items())
+            decrypted.add(CompletableFuture.supplyAsync(() -> decryptNote(record), continuations));
+
+        return CompletableFuture.allOf(decrypted.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            final List<Note> notes = new ArrayList<>(decrypted.size());
+            for (final CompletableFuture<Note> note : decrypted)
+                notes.add(note.join());
+
+            final NotesWindow notesWindow = new NotesWindow(window, NOTES_PER_WINDOW, records.totalItems(), List.copyOf(notes), next);
+            cache.putWindow(userId, notesWindow, stamp);
+            return notesWindow;
+        });
     }
 
     /**
-     * Returns a generic HTTP POST request with the given parts and a default Content-Type header.
-     * @param url the URL to send the request to.
-     * @param parts the multipart parts to send with the request.
-     * @return a {@link Request}.
+     * Searches a user's notes for the ones containing every word of a query. The database matches the words' blind
+     * index tokens, so it never sees the words; matches are confirmed after decrypting them, as two words can share a
+     * token.
+     * @param userId the Discord user ID of the user searching.
+     * @param query the search query.
+     * @return a {@link CompletableFuture} that completes with the matching notes, newest first.
      */
-    private static Request postRequest(String url, Map<String, String> parts) {
-        return defaultRequestBuilder(url).addHeader("Content-Type", "multipart/form-data").post(defaultMultipartReq(parts)).build();
+    public static CompletableFuture<List<Note>> searchNotes(String userId, String query) {
+        final long start = System.nanoTime();
+        final List<String> tokens;
+        try {
+            tokens = SearchTokens.query(userId, query);
+        } catch (SodiumException e) {
+            return DatabaseMetrics.timed("searchNotes", start, CompletableFuture.failedFuture(errorOf("Failed computing search tokens: " + e)));
+        }
+        if (tokens.isEmpty())
+            return DatabaseMetrics.timed("searchNotes", start, CompletableFuture.failedFuture(new NotesListNotFoundException("No notes found.")));
+
+        // one extra result makes up for a false match dropped after decrypting
+        return DatabaseMetrics.timed("searchNotes", start, notes.searchNotes(userId, tokens, SEARCH_RESULTS + 1).thenApplyAsync(records -> {
+            final List<Note> matches = new ArrayList<>(SEARCH_RESULTS);
+            for (final NoteRecord record : records.items()) {
+                final Note note = decryptNote(record);
+                if (SearchTokens.matches(query, note.title(), note.content()) && matches.size() < SEARCH_RESULTS)
+                    matches.add(note);
+            }
+            if (matches.isEmpty())
+                throw new CompletionException(new NotesListNotFoundException("No notes found."));
+            return matches;
+        }, continuations));
     }
 
     /**
-     * Returns a generic HTTP PATCH request with the given parts and a default Content-Type header.
-     * @param url the URL to send the request to.
-     * @param parts the multipart parts to send with the request.
-     * @return a {@link Request}.
+     * Sends a request to the database to get a single note for a user, unless the note is already cached or already
+     * being fetched.
+     * @param noteId the ID of the note to get.
+     * @param userId the Discord user ID of the user to get the note for.
+     * @return a {@link CompletableFuture} that completes with a {@link Note}.
      */
-    private static Request patchRequest(String url, Map<String, String> parts) {
-        return defaultRequestBuilder(url).addHeader("Content-Type", "multipart/form-data").patch(defaultMultipartReq(parts)).build();
-    }
+    public static CompletableFuture<Note> getNote(String noteId, String userId) {
+        final long start = System.nanoTime();
+        final Note cached = cache.getNote(userId, noteId);
+        if (cached != null) {
+            DatabaseMetrics.record("getNote", start, false);
+            return CompletableFuture.completedFuture(cached);
+        }
 
-    /**
-     * Returns a generic HTTP GET request.
-     * @param url the URL to send the request to.
-     * @return a {@link Request}.
-     */
-    private static Request getRequest(String url) {
-        return defaultRequestBuilder(url).get().build();
+        return DatabaseMetrics.timed("getNote", start, noteFlights.run(new NoteKey(userId, noteId), () -> {
+            final long stamp = cache.stamp();
+            return notes.getNote(noteId, userId).thenApplyAsync(record -> {
+                final Note note = decryptNote(record.orElseThrow(() -> new CompletionException(new NoteNotFoundException("Note not found."))));
+                cache.putNote(userId, note, stamp);
+                return note;
+            }, continuations);
+        }));
     }
 
     /**
-     * Returns a generic HTTP DELETE request.
-     * @param url the URL to send the request to.
-     * @return a {@link Request}.
+     * Decrypts a note record from the database.
+     * @param record the record.
+     * @return the decrypted note.
+     * @throws CompletionException if the note couldn't be decrypted.
      */
-    private static Request deleteRequest(String url) {
-        return defaultRequestBuilder(url).delete().build();
+    private static Note decryptNote(NoteRecord record) {
+        final String decryptedContent, decryptedTitle;
+        try {
+            decryptedContent = Cryptography.decrypt(record.content());
+            decryptedTitle = Cryptography.decrypt(record.title());
+        } catch (SodiumException e) {
+            throw new CompletionException(errorOf("Failed decrypting note: " + e));
+        }
+        return Note.of(record.id(), decryptedTitle, decryptedContent, record.created(), record.updated());
     }
 
     /**
-     * Returns a default multipart {@link RequestBody} with the given parts.
-     * @param parts the multipart parts to send with the request.
-     * @return a {@link RequestBody}.
+     * Sends a request to the database to delete a note.
+     * @param noteId the ID of the note to delete.
+     * @param userId the Discord user ID of the user to delete the note for.
+     * @return a {@link CompletableFuture} that completes with a boolean indicating whether the note was successfully deleted.
      */
-    private static RequestBody defaultMultipartReq(Map<String, String> parts) {
-        MultipartBody.Builder builder = new MultipartBody.Builder()
-                .setType(MultipartBody.FORM);
-
-        parts.forEach(builder::addFormDataPart);
-        return builder.build();
+    public static CompletableFuture<Boolean> deleteNote(String noteId, String userId) {
+        final long start = System.nanoTime();
+        // journaled writes of the note go first, or they'd bring it back
+        final CompletableFuture<Void> replayed = journal != null ? journal.replayed(noteId) : CompletableFuture.completedFuture(null);
+        return DatabaseMetrics.timed("deleteNote", start, replayed.thenCompose(ignored -> notes.deleteNote(noteId, userId)).thenApply(deleted -> {
+            if (deleted) {
+                cache.noteDeleted(userId, noteId);
+                forgetFlights(userId);
+            } else {
+                DatabaseMetrics.error("deleteNote");
+            }
+            return deleted;
+        }));
     }
 
     /**
-     * Returns a default {@link Request.Builder} with the given URL and a default authorization header.
-     * @param url the URL path to send the request to (excluding the base part).
-     * @return a {@link Request.Builder}.
+     * Stops coalescing reads of a user's notes that were sent before a write, so reads after the write see it.
+     * @param userId the Discord user ID of the user who wrote.
      */
-    private static Request.Builder defaultRequestBuilder(String url) {
-        return new Request.Builder()
-                .url(buildUrl(url))
-                .addHeader("Authorization", "Bearer " + AUTH_TOKEN);
+    private static void forgetFlights(String userId) {
+        windowFlights.forget(key -> key.userId().equals(userId));
+        noteFlights.forget(key -> key.userId().equals(userId));
     }
 
-    /**
-     * Returns the full database URL given a path.
-     * @param path the path to append to the base URL, beginning with a slash.
-     * @return the full database URL.
-     */
-    private static String buildUrl(String path) {
-        return BASE_URL + path.replaceAll("&&", "%26%26");
+    private record WindowKey(String userId, int window) {
     }
 
-    private static synchronized void setAuthToken(String token) {
-        AUTH_TOKEN = token;
+    private record NoteKey(String userId, String noteId) {
     }
 
     /**
-     * A class that handles refreshing the admin auth token every X amount of time. This is configured inside your
-     * database. For PocketBase, see the <a href="https://pocketbase.io/docs/api-admins/#auth-refresh">refresh docs</a>.
+     * Returns a new {@link RuntimeException} with a given message.
+     * @param msg the message for the exception.
+     * @return a new {@link RuntimeException}.
      */
-    private static class TokenRefresh {
-        private final long REFRESH_INTERVAL = Long.parseLong(System.getenv("KNAUGHTS_DB_ADMIN_REFRESH_INTERVAL"));
-        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-
-        private void start() {
-            final Runnable task = this::refreshToken;
-            scheduler.scheduleAtFixedRate(task, REFRESH_INTERVAL, REFRESH_INTERVAL, TimeUnit.MILLISECONDS);
-        }
-
-        private void refreshToken() {
-            final String newAuthToken = authenticate(true);
-            setAuthToken(newAuthToken);
-        }
+    static RuntimeException errorOf(String msg) {
+        LOG.error(msg);
+        return new RuntimeException(msg);
     }
 }
@@ -0,0 +1,166 @@
+package xyz.knaughts.database;
+
+import xyz.knaughts.exceptions.NoteNotFoundException;
+import xyz.knaughts.exceptions.NotesListNotFoundException;
+import xyz.knaughts.metrics.Counter;
+import xyz.knaughts.metrics.Histogram;
+import xyz.knaughts.metrics.Metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.ToIntFunction;
+
+/**
+ * The metrics of the database layer: the latency and errors of each operation, and the state of the pools and queues
+ * in front of the store.
+ */
+final class DatabaseMetrics {
+
+    private static final Histogram operationSeconds = Metrics.histogram(
+            "knaughts_db_operation_seconds", "Latency of database operations, including cache hits.", "operation", Histogram.LATENCY_BUCKETS);
+    private static final Histogram decodePoolWait = Metrics.histogram(
+            "knaughts_decode_pool_wait_seconds", "Time decrypt tasks waited for a decode pool worker.", null, Histogram.LATENCY_BUCKETS);
+    private static final Counter operationErrors = Metrics.counter(
+            "knaughts_db_operation_errors_total", "Database operations that failed.", "operation");
+    private static final Counter serverUpdates = Metrics.counter(
+            "knaughts_db_server_updates_total", "Server updates queued for the write-behind queue.", "operation");
+    private static final Counter keyRotations = Metrics.counter(
+            "knaughts_key_rotation_notes_total", "Notes handled by the key rotation job.", "result");
+    private static final Counter retries = Metrics.counter(
+            "knaughts_db_retries_total", "Database requests retried after a failure.", "endpoint");
+    private static final Counter breakerOpenings = Metrics.counter(
+            "knaughts_db_breaker_opened_total", "Times a database endpoint's circuit breaker opened.", "endpoint");
+    private static final Counter breakerRejections = Metrics.counter(
+            "knaughts_db_breaker_rejections_total", "Database requests failed fast by an open circuit breaker.", "endpoint");
+
+    private DatabaseMetrics() {
+    }
+
+    /**
+     * Records the latency of an operation once it completes, and an error if it completes exceptionally. A note or
+     * notes list that doesn't exist is an answer rather than an error, so it isn't counted as one.
+     * @param operation the name of the operation.
+     * @param start the {@link System#nanoTime()} the operation started at.
+     * @param future the operation's result.
+     * @return a future that completes with the same result once the operation has been recorded.
+     */
+    static <T> CompletableFuture<T> timed(String operation, long start, CompletableFuture<T> future) {
+        return future.whenComplete((result, e) -> {
+            operationSeconds.observe(operation, System.nanoTime() - start);
+            final Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            if (cause != null && !(cause instanceof NoteNotFoundException) && !(cause instanceof NotesListNotFoundException))
+                operationErrors.inc(operation);
+        });
+    }
+
+    /**
+     * Records the latency of an operation that has completed.
+     * @param operation the name of the operation.
+     * @param start the {@link System#nanoTime()} the operation started at.
+     * @param failed whether the operation failed.
+     */
+    static void record(String operation, long start, boolean failed) {
+        operationSeconds.observe(operation, System.nanoTime() - start);
+        if (failed)
+            operationErrors.inc(operation);
+    }
+
+    /**
+     * Records how long a task waited for a decode pool worker.
+     * @param nanos the wait in nanoseconds.
+     */
+    static void decodePoolWait(long nanos) {
+        decodePoolWait.observe(nanos);
+    }
+
+    /**
+     * Counts an operation that failed without throwing, such as a delete that found nothing to delete.
+     * @param operation the name of the operation.
+     */
+    static void error(String operation) {
+        operationErrors.inc(operation);
+    }
+
+    /**
+     * Counts a server update queued by {@link Database#postServer} or {@link Database#patchServer}.
+     * @param operation the name of the operation.
+     */
+    static void serverUpdate(String operation) {
+        serverUpdates.inc(operation);
+    }
+
+    /**
+     * Counts a request retried after a failure.
+     * @param endpoint the endpoint the request was sent to.
+     */
+    static void retry(String endpoint) {
+        retries.inc(endpoint);
+    }
+
+    /**
+     * Counts a circuit breaker changing state.
+     * @param endpoint the endpoint of the breaker.
+     * @param state the state the breaker changed to.
+     */
+    static void breakerTransition(String endpoint, CircuitBreaker.State state) {
+        if (state == CircuitBreaker.State.OPEN)
+            breakerOpenings.inc(endpoint);
+    }
+
+    /**
+     * Counts a request failed fast by a circuit breaker.
+     * @param endpoint the endpoint of the breaker.
+     */
+    static void breakerRejected(String endpoint) {
+        breakerRejections.inc(endpoint);
+    }
+
+    /**
+     * Counts a note handled by the key rotation job.
+     * @param result <code>rotated</code>, <code>changed</code> if it was edited meanwhile, or <code>failed</code>.
+     */
+    static void keyRotation(String result) {
+        keyRotations.inc(result);
+    }
+
+    /**
+     * Registers the gauges of the database's pools and queues.
+     * @param decodePool the decode pool.
+     * @param serverWrites the server write-behind queue.
+     * @param journal the write journal, or null if it's disabled.
+     * @param store the PocketBase store, or null if another backend is used.
+     */
+    static void registerGauges(DecodePool decodePool, ServerWriteBehind serverWrites, WriteJournal journal, PocketBaseStore store) {
+        Metrics.gauge("knaughts_decode_pool_queue_depth", "Decrypt tasks waiting for a decode pool worker.", decodePool::queueDepth);
+        Metrics.gauge("knaughts_decode_pool_active_workers", "Decode pool workers running a task.", decodePool::activeWorkers);
+        Metrics.gauge("knaughts_server_writes_pending", "Server updates waiting to be written.", serverWrites::pending);
+        if (journal != null)
+            Metrics.gauge("knaughts_write_journal_pending", "Journaled note writes waiting to be replayed to the database.", journal::pending);
+
+        if (store == null) return;
+        final Map<String, AdaptiveLimiter> limiters = Map.of(
+                "interactive", store.interactiveLimiter(),
+                "background", store.backgroundLimiter()
+        );
+        Metrics.gauge("knaughts_db_concurrency_limit", "Current adaptive concurrency limit for database requests.", "limiter",
+                () -> mapValues(limiters, AdaptiveLimiter::limit));
+        Metrics.gauge("knaughts_db_requests_in_flight", "Database requests in flight.", "limiter",
+                () -> mapValues(limiters, AdaptiveLimiter::inFlight));
+        Metrics.gauge("knaughts_db_requests_queued", "Database requests waiting for the concurrency limit.", "limiter",
+                () -> mapValues(limiters, AdaptiveLimiter::queued));
+        Metrics.gauge("knaughts_db_breaker_state", "Circuit breaker state of each database endpoint: 0 closed, 1 half-open, 2 open.", "endpoint",
+                () -> {
+                    final Map<String, Integer> values = new HashMap<>();
+                    store.breakers().forEach((endpoint, breaker) -> values.put(endpoint, breaker.state().value));
+                    return values;
+                });
+    }
+
+    private static Map<String, Integer> mapValues(Map<String, AdaptiveLimiter> limiters, ToIntFunction<AdaptiveLimiter> value) {
+        final Map<String, Integer> values = new HashMap<>();
+        limiters.forEach((name, limiter) -> values.put(name, value.applyAsInt(limiter)));
+        return values;
+    }
+}
@@ -0,0 +1,131 @@
+package xyz.knaughts.database;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import static xyz.knaughts.KnaughtsBot.LOG;
+
+/**
+ * A bounded pool of worker threads that decodes database responses and decrypts notes, so OkHttp's dispatcher
+ * threads only ever do I/O. When the queue is full, tasks run on the submitting thread instead, which slows down
+ * reading further responses rather than dropping work.
+ * <p>
+ * The pool keeps track of its queue depth and how long tasks wait and run, and logs a summary every minute it was
+ * used.
+ */
+final class DecodePool implements Executor {
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(daemonFactory("knaughts-decode-report"));
+
+    private final LongAdder tasks = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder runNanos = new LongAdder();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+    private final AtomicLong reportedTasks = new AtomicLong();
+
+    /**
+     * @param threads the number of worker threads.
+     * @param queueSize the maximum number of tasks waiting for a worker.
+     */
+    DecodePool(int threads, int queueSize) {
+        executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                daemonFactory("knaughts-decode"),
+                new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+        reporter.scheduleAtFixedRate(this::report, 1, 1, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        final long queued = System.nanoTime();
+        executor.execute(() -> {
+            final long start = System.nanoTime();
+            waitNanos.add(start - queued);
+            maxWaitNanos.accumulate(start - queued);
+            DatabaseMetrics.decodePoolWait(start - queued);
+            try {
+                task.run();
+            } finally {
+                runNanos.add(System.nanoTime() - start);
+                tasks.increment();
+            }
+        });
+    }
+
+    /**
+     * @return the number of tasks waiting for a worker.
+     */
+    int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of workers currently running a task.
+     */
+    int activeWorkers() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return the total number of tasks run.
+     */
+    long completedTasks() {
+        return tasks.sum();
+    }
+
+    /**
+     * @return the average time in milliseconds a task waited for a worker.
+     */
+    double averageWaitMillis() {
+        final long count = tasks.sum();
+        return count == 0 ? 0 : waitNanos.sum() / (count * 1_000_000d);
+    }
+
+    /**
+     * @return the average time in milliseconds a task ran for.
+     */
+    double averageRunMillis() {
+        final long count = tasks.sum();
+        return count == 0 ? 0 : runNanos.sum() / (count * 1_000_000d);
+    }
+
+    /**
+     * Logs a summary of the pool, unless nothing ran since the last one.
+     */
+    private void report() {
+        final long count = tasks.sum();
+        if (reportedTasks.getAndSet(count) == count) return;
+
+        LOG.debug(String.format("Decode pool: %d tasks, queue depth %d, %d active, avg wait %.3f ms, max wait %.3f ms, avg run %.3f ms",
+                count, queueDepth(), activeWorkers(), averageWaitMillis(), maxWaitNanos.getThenReset() / 1_000_000d, averageRunMillis()));
+    }
+
+    /**
+     * Returns a {@link ThreadFactory} of named daemon threads.
+     * @param name the prefix of the thread names.
+     * @return the thread factory.
+     */
+    private static ThreadFactory daemonFactory(String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            final Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,260 @@
+package xyz.knaughts.database;
+
+import com.goterl.lazysodium.exceptions.SodiumException;
+import xyz.knaughts.utils.Cryptography;
+import xyz.knaughts.utils.SearchTokens;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import static xyz.knaughts.KnaughtsBot.LOG;
+
+/**
+ * Re-encrypts every note that isn't encrypted with the current key yet, so the old key can be retired, while the bot
+ * keeps serving interactions.
+ * <p>
+ * Notes are read a page at a time in ID order. The notes of a page that need it are decrypted, encrypted with the
+ * current key, given search tokens again and written back, with at most a fixed number of notes in
+ * flight and at most a fixed number of notes started per second, so the rotation only ever takes a small share of the
+ * decode pool and of the database's background requests. Notes are written back through a replacer that skips a note
+ * edited since it was read, as the edit already encrypted it with the current key, and that keeps edits of the note
+ * from landing while it's being replaced.
+ * <p>
+ * After each page, the ID of its last note is checkpointed to a file along with the key being rotated to, and a
+ * restarted rotation to the same key resumes after it. A page that fails is retried with a growing delay.
+ */
+final class KeyRotation {
+
+    private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toMillis(1);
+
+    private final NoteStore store;
+    private final BiFunction<NoteRecord, NoteRecord, CompletableFuture<Boolean>> replacer;
+    private final Executor executor;
+    private final Path checkpointPath;
+    private final int pageSize;
+    private final int parallelism;
+    private final long intervalNanos;
+
+    /**
+     * The {@link System#nanoTime()} the next note may be started at.
+     */
+    private long nextStart = System.nanoTime();
+
+    /**
+     * @param store the store to read notes from.
+     * @param replacer replaces a note, given as it was read, with its re-encrypted version unless it was edited
+     *                 meanwhile, completing with whether it was replaced.
+     * @param executor the executor notes are re-encrypted on.
+     * @param checkpointPath the path of the checkpoint file.
+     * @param pageSize the number of notes read per page.
+     * @param parallelism the maximum number of notes being re-encrypted at once.
+     * @param rate the maximum number of notes started per second.
+     */
+    KeyRotation(NoteStore store, BiFunction<NoteRecord, NoteRecord, CompletableFuture<Boolean>> replacer, Executor executor,
+                Path checkpointPath, int pageSize, int parallelism, int rate) {
+        this.store = store;
+        this.replacer = replacer;
+        this.executor = executor;
+        this.checkpointPath = checkpointPath;
+        this.pageSize = pageSize;
+        this.parallelism = Math.max(1, parallelism);
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+    }
+
+    /**
+     * Re-encrypts every note that isn't encrypted with the current key, resuming from the checkpoint if it's for the
+     * same key.
+     * @return a {@link CompletableFuture} that completes with the result once every page is done.
+     */
+    CompletableFuture<Result> run() {
+        final long start = System.nanoTime();
+        final int keyId = Cryptography.currentKeyId();
+        final Checkpoint checkpoint = readCheckpoint();
+        if (checkpoint != null && checkpoint.keyId() == keyId && checkpoint.done())
+            return CompletableFuture.completedFuture(new Result(keyId, 0, 0, 0, Duration.ZERO));
+
+        final String afterId = checkpoint != null && checkpoint.keyId() == keyId ? checkpoint.afterId() : null;
+        if (afterId != null)
+            LOG.info("Resuming key rotation after note " + afterId + ".");
+
+        final Counts counts = new Counts();
+        return rotatePage(keyId, afterId, counts, RETRY_DELAY)
+                .thenApply(ignored -> new Result(keyId, counts.rotated.get(), counts.changed.get(), counts.failed.get(),
+                        Duration.ofNanos(System.nanoTime() - start)));
+    }
+
+    /**
+     * Re-encrypts the notes of a page after the checkpoint, then moves on to the next page.
+     */
+    private CompletableFuture<Void> rotatePage(int keyId, String afterId, Counts counts, long retryDelay) {
+        return store.getNotesAfter(afterId, pageSize).thenCompose(records -> {
+            final List<NoteRecord> stale = new ArrayList<>();
+            for (final NoteRecord record : records.items()) {
+                if (needsRotation(record, keyId)) stale.add(record);
+            }
+
+            final Iterator<NoteRecord> it = stale.iterator();
+            final List<CompletableFuture<Void>> lanes = new ArrayList<>(parallelism);
+            for (int i = 0; i < parallelism; i++)
+                lanes.add(nextNote(it, counts));
+
+            return CompletableFuture.allOf(lanes.toArray(new CompletableFuture<?>[0])).thenCompose(ignored -> {
+                final boolean last = records.items().size() < pageSize;
+                final String lastId = records.items().isEmpty() ? afterId : records.items().get(records.items().size() - 1).id();
+                writeCheckpoint(new Checkpoint(keyId, lastId, last));
+                return last ? CompletableFuture.<Void>completedFuture(null) : rotatePage(keyId, lastId, counts, RETRY_DELAY);
+            });
+        }).exceptionallyCompose(e -> {
+            // notes rotated before the failure are skipped when the page is read again
+            LOG.warn("Key rotation failed on the page after " + afterId + ", retrying in " + retryDelay + "ms: " + e);
+            return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(retryDelay, TimeUnit.MILLISECONDS, executor))
+                    .thenCompose(ignored -> rotatePage(keyId, afterId, counts, Math.min(retryDelay * 2, MAX_RETRY_DELAY)));
+        });
+    }
+
+    /**
+     * Re-encrypts the next note of a page once the rate limit allows it, then moves on to the note after it, so each
+     * lane has one note in flight at a time.
+     */
+    private CompletableFuture<Void> nextNote(Iterator<NoteRecord> it, Counts counts) {
+        final NoteRecord record;
+        synchronized (it) {
+            if (!it.hasNext()) return CompletableFuture.completedFuture(null);
+            record = it.next();
+        }
+
+        final Executor paced = CompletableFuture.delayedExecutor(reserve(), TimeUnit.NANOSECONDS, executor);
+        return CompletableFuture.supplyAsync(() -> reencrypt(record), paced)
+                .thenCompose(replacement -> {
+                    if (replacement == null) {
+                        counts.failed.incrementAndGet();
+                        DatabaseMetrics.keyRotation("failed");
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    return replacer.apply(record, replacement)
+                            .thenAccept(replaced -> {
+                                (replaced ? counts.rotated : counts.changed).incrementAndGet();
+                                DatabaseMetrics.keyRotation(replaced ? "rotated" : "changed");
+                            });
+                })
+                .thenCompose(ignored -> nextNote(it, counts));
+    }
+
+    /**
+     * Decrypts a note and encrypts it with the current key.
+     * @return the re-encrypted note, or null if it couldn't be decrypted.
+     */
+    private NoteRecord reencrypt(NoteRecord record) {
+        try {
+            final String title = Cryptography.decrypt(record.title());
+            final String content = Cryptography.decrypt(record.content());
+            return new NoteRecord(record.id(), Cryptography.encrypt(title), Cryptography.encrypt(content), record.created(),
+                    record.updated(), record.userId(), SearchTokens.of(record.userId(), title, content));
+        } catch (SodiumException e) {
+            LOG.warn("Skipping note " + record.id() + " that couldn't be re-encrypted: " + e);
+            return null;
+        }
+    }
+
+    private static boolean needsRotation(NoteRecord record, int keyId) {
+        try {
+            return Cryptography.keyIdOf(record.title()) != keyId || Cryptography.keyIdOf(record.content()) != keyId;
+        } catch (SodiumException e) {
+            // left to reencrypt, which logs it
+            return true;
+        }
+    }
+
+    /**
+     * Reserves the next start slot of the rate limit.
+     * @return how long to wait for the slot, in nanoseconds.
+     */
+    private synchronized long reserve() {
+        final long now = System.nanoTime();
+        final long start = Math.max(now, nextStart);
+        nextStart = start + intervalNanos;
+        return start - now;
+    }
+
+    private Checkpoint readCheckpoint() {
+        if (!Files.exists(checkpointPath)) return null;
+
+        final Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(checkpointPath, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+            final String afterId = properties.getProperty("after", "");
+            return new Checkpoint(Integer.parseInt(properties.getProperty("key")), afterId.isEmpty() ? null : afterId,
+                    Boolean.parseBoolean(properties.getProperty("done")));
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Ignoring unreadable key rotation checkpoint, starting over: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a checkpoint next to the old one and moves it over it, so a crash leaves either the old or the new one.
+     */
+    private void writeCheckpoint(Checkpoint checkpoint) {
+        final Properties properties = new Properties();
+        properties.setProperty("key", Integer.toString(checkpoint.keyId()));
+        properties.setProperty("after", checkpoint.afterId() == null ? "" : checkpoint.afterId());
+        properties.setProperty("done", Boolean.toString(checkpoint.done()));
+
+        final Path tmp = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+        try {
+            if (checkpointPath.getParent() != null)
+                Files.createDirectories(checkpointPath.getParent());
+            try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                properties.store(writer, null);
+            }
+            Files.move(tmp, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.error("Failed writing the key rotation checkpoint: " + e);
+        }
+    }
+
+    /**
+     * The progress of a rotation.
+     * @param keyId the ID of the key being rotated to.
+     * @param afterId the ID of the last note of the last page done, or null.
+     * @param done whether every page is done.
+     */
+    private record Checkpoint(int keyId, String afterId, boolean done) {
+    }
+
+    /**
+     * The outcome of a rotation.
+     * @param keyId the ID of the key rotated to.
+     * @param rotated the number of notes re-encrypted.
+     * @param changed the number of notes skipped because they were edited meanwhile.
+     * @param failed the number of notes that couldn't be decrypted.
+     * @param took how long the rotation took.
+     */
+    record Result(int keyId, int rotated, int changed, int failed, Duration took) {
+    }
+
+    /**
+     * Running counts, touched by every lane.
+     */
+    private static final class Counts {
+        private final AtomicInteger rotated = new AtomicInteger();
+        private final AtomicInteger changed = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+    }
+}
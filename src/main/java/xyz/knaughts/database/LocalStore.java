@@ -0,0 +1,576 @@
+package xyz.knaughts.database;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import xyz.knaughts.models.Note;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+import static xyz.knaughts.KnaughtsBot.LOG;
+import static xyz.knaughts.database.Database.errorOf;
+
+/**
+ * An embedded {@link NoteStore} and {@link ServerStore} for single node deployments that don't want to run
+ * PocketBase. Every change is appended to a log file as one JSON line, and the current state is kept in memory,
+ * indexed per user, so operations complete without any I/O wait.
+ * <p>
+ * Writes are flushed to the OS straight away and synced to disk on an interval, so a crash of the bot loses nothing
+ * but a power loss can lose the writes of the last interval. The log is compacted periodically by rewriting it with
+ * only the live records once most of its lines are outdated.
+ */
+public final class LocalStore implements NoteStore, ServerStore, Closeable {
+
+    private static final String ID_CHARS = "abcdefghijklmnopqrstuvwxyz0123456789";
+    private static final int ID_LENGTH = 15;
+
+    /**
+     * Compaction only kicks in once the log has at least this many lines.
+     */
+    private static final int MIN_COMPACTION_LINES = 1_000;
+
+    private static final Gson gson = new Gson();
+    private static final SecureRandom random = new SecureRandom();
+
+    private final Path path;
+    private final UnaryOperator<OutputStream> output;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "knaughts-local-store");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * All notes by ID.
+     */
+    private final Map<String, NoteRecord> notes = new HashMap<>();
+
+    /**
+     * The owner of each note by note ID.
+     */
+    private final Map<String, String> owners = new HashMap<>();
+
+    /**
+     * The notes of each user, oldest first.
+     */
+    private final Map<String, List<NoteRecord>> userNotes = new HashMap<>();
+
+    /**
+     * Whether the bot is in each server, by server ID.
+     */
+    private final Map<Long, Boolean> servers = new HashMap<>();
+
+    private FileChannel channel;
+    private Writer writer;
+
+    /**
+     * The number of lines in the log, live or not.
+     */
+    private int lines;
+
+    /**
+     * Why the store stopped taking writes, if a torn write couldn't be cut off the end of the log.
+     */
+    private IOException failed;
+
+    private LocalStore(Path path, UnaryOperator<OutputStream> output) {
+        this.path = path;
+        this.output = output;
+    }
+
+    /**
+     * Opens a local store, replaying its log if it exists.
+     * @param path the path of the log file.
+     * @param syncInterval how often to sync the log to disk, in milliseconds.
+     * @param compactionInterval how often to check whether the log needs compacting, in milliseconds.
+     * @return the opened store.
+     */
+    public static LocalStore open(Path path, long syncInterval, long compactionInterval) {
+        return open(path, syncInterval, compactionInterval, UnaryOperator.identity());
+    }
+
+    /**
+     * Opens a local store that writes its log through the given stream wrapper, so tests can make writes fail.
+     */
+    static LocalStore open(Path path, long syncInterval, long compactionInterval, UnaryOperator<OutputStream> output) {
+        final LocalStore store = new LocalStore(path, output);
+        try {
+            if (path.getParent() != null)
+                Files.createDirectories(path.getParent());
+            store.replay();
+            store.openWriter();
+        } catch (IOException e) {
+            throw new RuntimeException("There was an error opening the local store at " + path + ": " + e);
+        }
+
+        store.scheduler.scheduleWithFixedDelay(store::sync, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        store.scheduler.scheduleWithFixedDelay(store::compactIfNeeded, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+        LOG.info("Local store opened with " + store.notes.size() + " notes and " + store.servers.size() + " servers.");
+        return store;
+    }
+
+    @Override
+    public synchronized CompletableFuture<NoteRecord> postNote(String userId, String title, String content, String searchTokens) {
+        final String now = Note.formatTimestamp(Instant.now());
+        final NoteRecord record = new NoteRecord(newId(), title, content, now, now, userId, searchTokens);
+        try {
+            append(Entry.note(userId, record));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(errorOf("Failed writing a note to the local store: " + e));
+        }
+        return CompletableFuture.completedFuture(record);
+    }
+
+    @Override
+    public synchronized CompletableFuture<NoteRecord> patchNote(String userId, String noteId, String title, String content, String searchTokens) {
+        final NoteRecord existing = notes.get(noteId);
+        if (existing == null || !userId.equals(owners.get(noteId)))
+            return CompletableFuture.failedFuture(errorOf("There was an error patching a note in the local store: not found."));
+
+        final NoteRecord record = new NoteRecord(noteId, title, content, existing.created(), Note.formatTimestamp(Instant.now()), userId, searchTokens);
+        try {
+            append(Entry.note(userId, record));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(errorOf("Failed writing a note to the local store: " + e));
+        }
+        return CompletableFuture.completedFuture(record);
+    }
+
+    @Override
+    public synchronized CompletableFuture<Boolean> putNote(String userId, NoteRecord record, boolean create) {
+        final NoteRecord existing = notes.get(record.id());
+        if (existing == null ? !create : !userId.equals(owners.get(record.id())))
+            return CompletableFuture.completedFuture(false);
+
+        final String now = Note.formatTimestamp(Instant.now());
+        try {
+            append(Entry.note(userId, new NoteRecord(record.id(), record.title(), record.content(),
+                    existing == null ? now : existing.created(), now, userId, record.searchTokens())));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(errorOf("Failed writing a note to the local store: " + e));
+        }
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public synchronized CompletableFuture<RecordList<NoteRecord>> getNotes(String userId, int page, int perPage) {
+        final List<NoteRecord> all = userNotes.getOrDefault(userId, List.of());
+        final int totalPages = (all.size() + perPage - 1) / perPage;
+        final List<NoteRecord> items = new ArrayList<>(perPage);
+
+        // newest first, so pages are read from the end of the list
+        final int from = all.size() - 1 - (page - 1) * perPage;
+        for (int i = from; i >= 0 && i > from - perPage; i--)
+            items.add(all.get(i));
+
+        return CompletableFuture.completedFuture(new RecordList<>(page, perPage, all.size(), totalPages, items));
+    }
+
+    @Override
+    public synchronized CompletableFuture<RecordList<NoteRecord>> getNotesFrom(String userId, NoteCursor cursor, int limit) {
+        // timestamps are all formatted the same way, so they sort as strings
+        final Comparator<NoteRecord> oldestFirst = Comparator.comparing(NoteRecord::created).thenComparing(NoteRecord::id);
+        final String created = cursor == null ? null : Note.formatTimestamp(cursor.created());
+        final boolean before = cursor != null && cursor.before();
+
+        final List<NoteRecord> items = userNotes.getOrDefault(userId, List.of()).stream()
+                .filter(record -> {
+                    if (cursor == null) return true;
+                    int compared = record.created().compareTo(created);
+                    if (compared == 0) compared = record.id().compareTo(cursor.id());
+                    return before ? compared > 0 : compared <= 0;
+                })
+                .sorted(before ? oldestFirst : oldestFirst.reversed())
+                .limit(limit)
+                .collect(Collectors.toCollection(ArrayList::new));
+        if (before) Collections.reverse(items);
+
+        return CompletableFuture.completedFuture(new RecordList<>(1, limit, -1, -1, items));
+    }
+
+    @Override
+    public synchronized CompletableFuture<RecordList<NoteRecord>> searchNotes(String userId, List<String> tokens, int limit) {
+        final List<NoteRecord> all = userNotes.getOrDefault(userId, List.of());
+        final List<NoteRecord> items = new ArrayList<>();
+        for (int i = all.size() - 1; i >= 0 && items.size() < limit; i--) {
+            final NoteRecord record = all.get(i);
+            if (record.searchTokens() != null && tokens.stream().allMatch(token -> record.searchTokens().contains(" " + token + " ")))
+                items.add(record);
+        }
+        return CompletableFuture.completedFuture(new RecordList<>(1, limit, -1, -1, items));
+    }
+
+    @Override
+    public synchronized CompletableFuture<RecordList<NoteRecord>> getUnindexedNotes(String afterId, int limit) {
+        final List<NoteRecord> items = notes.values().stream()
+                .filter(record -> record.searchTokens() == null || record.searchTokens().isEmpty())
+                .filter(record -> afterId == null || record.id().compareTo(afterId) > 0)
+                .sorted(Comparator.comparing(NoteRecord::id))
+                .limit(limit)
+                .collect(Collectors.toList());
+        return CompletableFuture.completedFuture(new RecordList<>(1, limit, -1, -1, items));
+    }
+
+    @Override
+    public synchronized CompletableFuture<Boolean> putSearchTokens(String noteId, String searchTokens) {
+        final NoteRecord existing = notes.get(noteId);
+        if (existing == null) return CompletableFuture.completedFuture(false);
+
+        try {
+            append(Entry.note(existing.userId(), new NoteRecord(existing.id(), existing.title(), existing.content(),
+                    existing.created(), existing.updated(), existing.userId(), searchTokens)));
+        } catch (IOException e) {
+            LOG.error("Failed writing search tokens to the local store: " + e);
+            return CompletableFuture.completedFuture(false);
+        }
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public synchronized CompletableFuture<RecordList<NoteRecord>> getNotesAfter(String afterId, int limit) {
+        final List<NoteRecord> items = notes.values().stream()
+                .filter(record -> afterId == null || record.id().compareTo(afterId) > 0)
+                .sorted(Comparator.comparing(NoteRecord::id))
+                .limit(limit)
+                .collect(Collectors.toList());
+        return CompletableFuture.completedFuture(new RecordList<>(1, limit, -1, -1, items));
+    }
+
+    @Override
+    public synchronized CompletableFuture<Boolean> replaceNote(NoteRecord expected, String title, String content, String searchTokens) {
+        final NoteRecord existing = notes.get(expected.id());
+        if (existing == null || !existing.updated().equals(expected.updated()))
+            return CompletableFuture.completedFuture(false);
+
+        try {
+            // the note's content is unchanged, so it keeps its updated time
+            append(Entry.note(existing.userId(), new NoteRecord(existing.id(), title, content, existing.created(),
+                    existing.updated(), existing.userId(), searchTokens)));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(errorOf("Failed writing a note to the local store: " + e));
+        }
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public synchronized CompletableFuture<Optional<NoteRecord>> getNote(String noteId, String userId) {
+        if (!userId.equals(owners.get(noteId)))
+            return CompletableFuture.completedFuture(Optional.empty());
+        return CompletableFuture.completedFuture(Optional.ofNullable(notes.get(noteId)));
+    }
+
+    @Override
+    public synchronized CompletableFuture<Boolean> deleteNote(String noteId, String userId) {
+        if (!userId.equals(owners.get(noteId)))
+            return CompletableFuture.completedFuture(false);
+
+        try {
+            append(Entry.delete(userId, noteId));
+        } catch (IOException e) {
+            LOG.error("Failed deleting a note in the local store: " + e);
+            return CompletableFuture.completedFuture(false);
+        }
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public synchronized void postServer(String serverId) {
+        patchServer(Long.parseLong(serverId), true);
+    }
+
+    @Override
+    public synchronized void patchServer(long serverId, boolean botInServer) {
+        writeServer(serverId, botInServer);
+    }
+
+    @Override
+    public synchronized CompletableFuture<Set<Long>> putServers(Map<Long, Boolean> servers) {
+        final Set<Long> failed = new HashSet<>();
+        servers.forEach((serverId, botInServer) -> {
+            if (!writeServer(serverId, botInServer))
+                failed.add(serverId);
+        });
+        return CompletableFuture.completedFuture(failed);
+    }
+
+    @Override
+    public synchronized CompletableFuture<RecordList<ServerRecord>> getServers(int page, int perPage) {
+        final List<ServerRecord> items = servers.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey())
+                .skip((long) (page - 1) * perPage)
+                .limit(perPage)
+                .map(server -> new ServerRecord(String.valueOf(server.getKey()), server.getValue()))
+                .toList();
+        final int totalPages = (servers.size() + perPage - 1) / perPage;
+        return CompletableFuture.completedFuture(new RecordList<>(page, perPage, servers.size(), totalPages, items));
+    }
+
+    private boolean writeServer(long serverId, boolean botInServer) {
+        try {
+            append(Entry.server(serverId, botInServer));
+            return true;
+        } catch (IOException e) {
+            LOG.error("Failed writing server " + serverId + " to the local store: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Syncs the log to disk and closes it.
+     */
+    @Override
+    public synchronized void close() {
+        scheduler.shutdown();
+        try {
+            writer.flush();
+            channel.force(false);
+            writer.close();
+        } catch (IOException e) {
+            LOG.error("Failed closing the local store: " + e);
+        }
+    }
+
+    /**
+     * Writes an entry to the log and applies it to the in-memory state.
+     * @param entry the entry.
+     * @throws IOException if the entry couldn't be written, in which case it isn't applied either.
+     */
+    private void append(Entry entry) throws IOException {
+        if (failed != null)
+            throw new IOException("the local store stopped taking writes after " + failed);
+
+        final long position = channel.size();
+        try {
+            writer.write(gson.toJson(entry));
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException e) {
+            discardTornWrite(position);
+            throw e;
+        }
+        lines++;
+        apply(entry);
+    }
+
+    /**
+     * Cuts a partly written entry off the end of the log and replaces the writer, which may still hold the rest of
+     * it, so the next entry starts on a line of its own instead of merging into the torn one and being skipped on
+     * replay. If the log can't be truncated, every later write fails instead.
+     * @param position the length of the log before the entry was written.
+     */
+    private void discardTornWrite(long position) {
+        try {
+            channel.truncate(position);
+            writer = newWriter();
+        } catch (IOException e) {
+            failed = e;
+            LOG.error("Failed truncating a torn write off the local store, no more writes will be taken: " + e);
+        }
+    }
+
+    /**
+     * Applies a log entry to the in-memory state.
+     * @param entry the entry.
+     */
+    private void apply(Entry entry) {
+        switch (entry.op()) {
+            case Entry.NOTE -> {
+                final NoteRecord record = new NoteRecord(entry.id(), entry.title(), entry.content(), entry.created(), entry.updated(),
+                        entry.userId(), entry.searchTokens());
+                final List<NoteRecord> list = userNotes.computeIfAbsent(entry.userId(), k -> new ArrayList<>());
+                if (notes.put(record.id(), record) == null) {
+                    owners.put(record.id(), entry.userId());
+                    list.add(record);
+                } else {
+                    list.replaceAll(r -> r.id().equals(record.id()) ? record : r);
+                }
+            }
+            case Entry.DELETE -> {
+                notes.remove(entry.id());
+                owners.remove(entry.id());
+                final List<NoteRecord> list = userNotes.get(entry.userId());
+                if (list != null) {
+                    list.removeIf(r -> r.id().equals(entry.id()));
+                    if (list.isEmpty()) userNotes.remove(entry.userId());
+                }
+            }
+            case Entry.SERVER -> servers.put(entry.serverId(), entry.botInServer());
+            default -> LOG.warn("Unknown local store entry: " + entry.op());
+        }
+    }
+
+    /**
+     * Rebuilds the in-memory state from the log. A malformed last line, left by a crash halfway through a write, is
+     * skipped.
+     * @throws IOException if the log can't be read.
+     */
+    private void replay() throws IOException {
+        if (!Files.exists(path)) return;
+
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) continue;
+                lines++;
+                try {
+                    final Entry entry = gson.fromJson(line, Entry.class);
+                    if (entry == null || entry.op() == null)
+                        throw new JsonParseException("no op");
+                    apply(entry);
+                } catch (JsonParseException e) {
+                    LOG.warn("Skipping malformed line " + lines + " of the local store: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the log for appending. A last line left unterminated by a crash is ended first, so the next entry doesn't
+     * merge into it.
+     * @throws IOException if the log can't be opened.
+     */
+    private void openWriter() throws IOException {
+        boolean torn = false;
+        if (Files.exists(path)) {
+            try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+                final ByteBuffer last = ByteBuffer.allocate(1);
+                torn = in.size() > 0 && in.read(last, in.size() - 1) == 1 && last.get(0) != '\n';
+            }
+        }
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (torn)
+            channel.write(ByteBuffer.wrap(new byte[]{'\n'}));
+        writer = newWriter();
+    }
+
+    private Writer newWriter() {
+        return new BufferedWriter(new OutputStreamWriter(output.apply(Channels.newOutputStream(channel)), StandardCharsets.UTF_8));
+    }
+
+    private synchronized void sync() {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            LOG.error("Failed syncing the local store: " + e);
+        }
+    }
+
+    /**
+     * Rewrites the log with only the live records if more than half of its lines are outdated. The new log is
+     * written next to the old one and moved over it, so a crash during compaction leaves the old log intact.
+     */
+    private synchronized void compactIfNeeded() {
+        final int live = notes.size() + servers.size();
+        if (lines < MIN_COMPACTION_LINES || lines < live * 2) return;
+
+        final Path tmp = path.resolveSibling(path.getFileName() + ".compact");
+        try {
+            int written = 0;
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                 Writer w = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(out), StandardCharsets.UTF_8))) {
+                for (final Map.Entry<String, List<NoteRecord>> user : userNotes.entrySet()) {
+                    for (final NoteRecord record : user.getValue()) {
+                        w.write(gson.toJson(Entry.note(user.getKey(), record)));
+                        w.write('\n');
+                        written++;
+                    }
+                }
+                for (final Map.Entry<Long, Boolean> server : servers.entrySet()) {
+                    w.write(gson.toJson(Entry.server(server.getKey(), server.getValue())));
+                    w.write('\n');
+                    written++;
+                }
+                w.flush();
+                out.force(true);
+            }
+
+            writer.close();
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            openWriter();
+            LOG.info("Compacted the local store from " + lines + " to " + written + " lines.");
+            lines = written;
+        } catch (IOException e) {
+            LOG.error("Failed compacting the local store: " + e);
+            try {
+                if (!channel.isOpen()) openWriter();
+            } catch (IOException reopen) {
+                LOG.error("Failed reopening the local store: " + reopen);
+            }
+        }
+    }
+
+    private String newId() {
+        String id;
+        do {
+            final StringBuilder sb = new StringBuilder(ID_LENGTH);
+            for (int i = 0; i < ID_LENGTH; i++)
+                sb.append(ID_CHARS.charAt(random.nextInt(ID_CHARS.length())));
+            id = sb.toString();
+        } while (notes.containsKey(id));
+        return id;
+    }
+
+    /**
+     * A line of the log.
+     * @param op the kind of entry: {@link #NOTE}, {@link #DELETE} or {@link #SERVER}.
+     * @param id the note ID.
+     * @param userId the Discord user ID of the note's owner.
+     * @param title the encrypted title.
+     * @param content the encrypted content.
+     * @param created when the note was created.
+     * @param updated when the note was last updated.
+     * @param serverId the server ID.
+     * @param botInServer whether the bot is in the server.
+     * @param searchTokens the blind index tokens of the note's words.
+     */
+    private record Entry(String op, String id, String userId, String title, String content, String created,
+                         String updated, Long serverId, Boolean botInServer, String searchTokens) {
+        private static final String NOTE = "note";
+        private static final String DELETE = "delete";
+        private static final String SERVER = "server";
+
+        private static Entry note(String userId, NoteRecord record) {
+            return new Entry(NOTE, record.id(), userId, record.title(), record.content(), record.created(), record.updated(), null, null,
+                    record.searchTokens());
+        }
+
+        private static Entry delete(String userId, String noteId) {
+            return new Entry(DELETE, noteId, userId, null, null, null, null, null, null, null);
+        }
+
+        private static Entry server(long serverId, boolean botInServer) {
+            return new Entry(SERVER, null, null, null, null, null, null, serverId, botInServer, null);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package xyz.knaughts.database;
+
+import xyz.knaughts.models.Note;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of decrypted notes and notes list windows, grouped per Discord user. Entries expire after a TTL and
+ * the least recently used users are evicted once the total number of cached notes passes the maximum size.
+ * <p>
+ * Reads that go to the database take a {@link #stamp()} before the request is sent and hand it back when caching the
+ * result. If a write for that user happened in the meantime the result is dropped, so a slow read can never put
+ * stale notes back in after a write invalidated them.
+ */
+final class NoteCache {
+
+    /**
+     * The maximum number of notes held, counting notes inside cached windows.
+     */
+    private final int maxSize;
+
+    /**
+     * How long an entry stays valid, in milliseconds.
+     */
+    private final long ttl;
+
+    /**
+     * The cached users in least recently used order.
+     */
+    private final LinkedHashMap<String, UserNotes> users = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The number of notes currently held.
+     */
+    private int size;
+
+    /**
+     * Incremented on every write, used to stamp reads.
+     */
+    private long writes;
+
+    /**
+     * The latest write stamp of any evicted user. Reads for users that aren't cached must be newer than this.
+     */
+    private long evictedWrites;
+
+    NoteCache(int maxSize, long ttl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Returns the stamp to pass to {@link #putNote} or {@link #putWindow} for a read that is about to be sent.
+     * @return the stamp.
+     */
+    synchronized long stamp() {
+        return writes;
+    }
+
+    /**
+     * Returns a cached note.
+     * @param userId the Discord user ID of the note's owner.
+     * @param noteId the ID of the note.
+     * @return the note, or null if it isn't cached or has expired.
+     */
+    synchronized Note getNote(String userId, String noteId) {
+        final UserNotes user = users.get(userId);
+        if (user == null) return null;
+
+        final Entry<Note> entry = user.notes.get(noteId);
+        if (entry == null) return null;
+        if (entry.isExpired()) {
+            user.notes.remove(noteId);
+            size--;
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Returns a cached notes list window.
+     * @param userId the Discord user ID of the notes' owner.
+     * @param window the window number.
+     * @return the window, or null if it isn't cached or has expired.
+     */
+    synchronized NotesWindow getWindow(String userId, int window) {
+        final UserNotes user = users.get(userId);
+        if (user == null) return null;
+
+        final Entry<NotesWindow> entry = user.windows.get(window);
+        if (entry == null) return null;
+        if (entry.isExpired()) {
+            user.windows.remove(window);
+            size -= entry.value.notes().size();
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Caches a note read from the database.
+     * @param userId the Discord user ID of the note's owner.
+     * @param note the note.
+     * @param stamp the {@link #stamp()} taken before the read was sent.
+     */
+    synchronized void putNote(String userId, Note note, long stamp) {
+        final UserNotes user = userForRead(userId, stamp);
+        if (user == null) return;
+
+        putNote(user, note);
+        evict();
+    }
+
+    /**
+     * Caches a notes list window read from the database. The notes in the window are cached individually as well.
+     * @param userId the Discord user ID of the notes' owner.
+     * @param window the window.
+     * @param stamp the {@link #stamp()} taken before the read was sent.
+     */
+    synchronized void putWindow(String userId, NotesWindow window, long stamp) {
+        final UserNotes user = userForRead(userId, stamp);
+        if (user == null) return;
+
+        final Entry<NotesWindow> previous = user.windows.put(window.window(), new Entry<>(window, expiry()));
+        if (previous != null) size -= previous.value.notes().size();
+        size += window.notes().size();
+
+        for (final Note note : window.notes())
+            putNote(user, note);
+        evict();
+    }
+
+    /**
+     * Writes through a created or updated note. Cached windows of the user are dropped as the order or content of
+     * their notes changed.
+     * @param userId the Discord user ID of the note's owner.
+     * @param note the note as stored in the database.
+     */
+    synchronized void noteWritten(String userId, Note note) {
+        final UserNotes user = userForWrite(userId);
+        dropWindows(user);
+        putNote(user, note);
+        evict();
+    }
+
+    /**
+     * Drops the cached windows of a user whose notes changed in the database without going through the cache, such as
+     * a journaled write being replayed.
+     * @param userId the Discord user ID of the notes' owner.
+     */
+    synchronized void windowsChanged(String userId) {
+        dropWindows(userForWrite(userId));
+    }
+
+    /**
+     * Drops a note that changed in the database without going through the cache, along with the cached windows of
+     * its user, so it's read again.
+     * @param userId the Discord user ID of the note's owner.
+     * @param noteId the ID of the changed note.
+     */
+    synchronized void noteChanged(String userId, String noteId) {
+        final UserNotes user = userForWrite(userId);
+        dropWindows(user);
+        if (user.notes.remove(noteId) != null) size--;
+    }
+
+    /**
+     * Removes a deleted note along with the cached windows of its user.
+     * @param userId the Discord user ID of the note's owner.
+     * @param noteId the ID of the deleted note.
+     */
+    synchronized void noteDeleted(String userId, String noteId) {
+        noteChanged(userId, noteId);
+    }
+
+    /**
+     * Returns the cached notes of a user for storing a read, creating them if needed.
+     * @param userId the Discord user ID.
+     * @param stamp the stamp taken before the read was sent.
+     * @return the user's notes, or null if the read is older than a write of the user and must not be cached.
+     */
+    private UserNotes userForRead(String userId, long stamp) {
+        UserNotes user = users.get(userId);
+        if (user == null) {
+            if (stamp < evictedWrites) return null;
+            user = new UserNotes();
+            users.put(userId, user);
+        }
+        return stamp < user.lastWrite ? null : user;
+    }
+
+    /**
+     * Returns the cached notes of a user for a write, creating them if needed, and records the write.
+     * @param userId the Discord user ID.
+     * @return the user's notes.
+     */
+    private UserNotes userForWrite(String userId) {
+        final UserNotes user = users.computeIfAbsent(userId, k -> new UserNotes());
+        user.lastWrite = ++writes;
+        return user;
+    }
+
+    private void putNote(UserNotes user, Note note) {
+        if (user.notes.put(note.id(), new Entry<>(note, expiry())) == null) size++;
+    }
+
+    private void dropWindows(UserNotes user) {
+        for (final Entry<NotesWindow> window : user.windows.values())
+            size -= window.value.notes().size();
+        user.windows.clear();
+    }
+
+    /**
+     * Evicts the least recently used users until the cache is within its maximum size.
+     */
+    private void evict() {
+        final Iterator<UserNotes> it = users.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            final UserNotes user = it.next();
+            size -= user.size();
+            evictedWrites = Math.max(evictedWrites, user.lastWrite);
+            it.remove();
+        }
+    }
+
+    private long expiry() {
+        return System.currentTimeMillis() + ttl;
+    }
+
+    /**
+     * The cached notes and windows of a single user.
+     */
+    private static final class UserNotes {
+        private final Map<String, Entry<Note>> notes = new HashMap<>();
+        private final Map<Integer, Entry<NotesWindow>> windows = new HashMap<>();
+        private long lastWrite;
+
+        private int size() {
+            int size = notes.size();
+            for (final Entry<NotesWindow> window : windows.values())
+                size += window.value.notes().size();
+            return size;
+        }
+    }
+
+    /**
+     * A cached value along with when it expires.
+     * @param value the cached value.
+     * @param expiresAt the epoch millisecond after which the value is stale.
+     */
+    private record Entry<T>(T value, long expiresAt) {
+        private boolean isExpired() {
+            return System.currentTimeMillis() > expiresAt;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package xyz.knaughts.database;
+
+import xyz.knaughts.models.Note;
+
+import java.time.Instant;
+
+/**
+ * A position in a user's notes list for keyset pagination. The list is ordered newest first by creation time and
+ * then by ID, so a note's creation time and ID are a unique key into it.
+ * @param before whether the cursor selects the notes just before the key in the list, rather than the notes from the
+ *               key on.
+ * @param created when the key note was created.
+ * @param id the ID of the key note.
+ */
+public record NoteCursor(boolean before, Instant created, String id) {
+
+    /**
+     * Returns a cursor selecting the notes from a note on.
+     * @param note the note.
+     * @return the cursor, or null if the note's creation time is unknown.
+     */
+    static NoteCursor from(Note note) {
+        return note.created() == null ? null : new NoteCursor(false, note.created(), note.id());
+    }
+
+    /**
+     * Returns a cursor selecting the notes just before a note.
+     * @param note the note.
+     * @return the cursor, or null if the note's creation time is unknown.
+     */
+    static NoteCursor before(Note note) {
+        return note.created() == null ? null : new NoteCursor(true, note.created(), note.id());
+    }
+
+    /**
+     * Encodes the cursor compactly enough to fit in a button ID, e.g. <code>alrz8k9q3_abcdefghijklmno</code>.
+     * @return the encoded cursor.
+     */
+    public String encode() {
+        return (before ? "b" : "a") + Long.toString(created.toEpochMilli(), Character.MAX_RADIX) + "_" + id;
+    }
+
+    /**
+     * Decodes a cursor encoded with {@link #encode()}.
+     * @param encoded the encoded cursor, or null.
+     * @return the cursor, or null if there's none or it's malformed.
+     */
+    public static NoteCursor decode(String encoded) {
+        if (encoded == null || encoded.length() < 4) return null;
+
+        final char direction = encoded.charAt(0);
+        final int separator = encoded.indexOf('_');
+        if ((direction != 'a' && direction != 'b') || separator < 2 || separator == encoded.length() - 1) return null;
+
+        try {
+            final long created = Long.parseLong(encoded.substring(1, separator), Character.MAX_RADIX);
+            return new NoteCursor(direction == 'b', Instant.ofEpochMilli(created), encoded.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
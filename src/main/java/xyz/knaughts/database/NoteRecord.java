@@ -0,0 +1,26 @@
+package xyz.knaughts.database;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * Represents a note record as stored in the database, with its title and content still encrypted.
+ * @param id the ID of the note.
+ * @param title the encrypted title.
+ * @param content the encrypted content.
+ * @param created when the note was created, as formatted by the database.
+ * @param updated when the note was last updated, as formatted by the database.
+ * @param userId the Discord user ID of the note's owner, or null if it wasn't requested.
+ * @param searchTokens the blind index tokens of the note's words, or null if they weren't requested. Empty if the
+ *                     note hasn't been indexed yet.
+ */
+public record NoteRecord(String id, String title, String content, String created, String updated,
+                         @SerializedName("discord_user_id") String userId,
+                         @SerializedName("search_tokens") String searchTokens) {
+
+    /**
+     * Creates a record without the owner and search tokens, as returned by reads of a user's notes.
+     */
+    public NoteRecord(String id, String title, String content, String created, String updated) {
+        this(id, title, content, created, updated, null, null);
+    }
+}
@@ -0,0 +1,126 @@
+package xyz.knaughts.database;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A storage backend for notes. Stores only ever see encrypted titles and contents; encryption, decryption and
+ * caching are done by {@link Database} in front of them.
+ * <p>
+ * Futures complete exceptionally with a {@link RuntimeException} if the store can't be reached or rejects the
+ * operation.
+ */
+public interface NoteStore {
+
+    /**
+     * Creates a new note.
+     * @param userId the Discord user ID of the user creating the note.
+     * @param title the encrypted title of the note.
+     * @param content the encrypted content of the note.
+     * @param searchTokens the blind index tokens of the note's words.
+     * @return a {@link CompletableFuture} that completes with the stored note.
+     */
+    CompletableFuture<NoteRecord> postNote(String userId, String title, String content, String searchTokens);
+
+    /**
+     * Updates the title and content of a note.
+     * @param userId the Discord user ID of the user updating the note.
+     * @param noteId the ID of the note to update.
+     * @param title the encrypted title of the note.
+     * @param content the encrypted content of the note.
+     * @param searchTokens the blind index tokens of the note's words.
+     * @return a {@link CompletableFuture} that completes with the stored note.
+     */
+    CompletableFuture<NoteRecord> patchNote(String userId, String noteId, String title, String content, String searchTokens);
+
+    /**
+     * Writes a note with an ID chosen by the caller, as replayed from the {@link WriteJournal}. Replaying a write that
+     * already reached the store must leave the note as it is, so creating a note that already exists updates it.
+     * @param userId the Discord user ID of the note's owner.
+     * @param record the note, with its encrypted title and content and its search tokens.
+     * @param create whether the write creates the note rather than updating it.
+     * @return a {@link CompletableFuture} that completes with true once the note is stored, or false if the store
+     * rejected the write for good, such as an update of a note that doesn't exist.
+     */
+    CompletableFuture<Boolean> putNote(String userId, NoteRecord record, boolean create);
+
+    /**
+     * Gets a page of a user's notes, newest first.
+     * @param userId the Discord user ID of the user to get notes for.
+     * @param page the page to get, starting at 1.
+     * @param perPage the maximum number of notes per page.
+     * @return a {@link CompletableFuture} that completes with the page, which is empty past the last page.
+     */
+    CompletableFuture<RecordList<NoteRecord>> getNotes(String userId, int page, int perPage);
+
+    /**
+     * Gets a user's notes by keyset, newest first, without counting the total. Unlike reading by page, the cost
+     * doesn't grow with how deep into the list the notes are.
+     * @param userId the Discord user ID of the user to get notes for.
+     * @param cursor where in the list to read from, or null to read from the newest note.
+     * @param limit the maximum number of notes to get.
+     * @return a {@link CompletableFuture} that completes with the notes, newest first, with the totals set to -1.
+     */
+    CompletableFuture<RecordList<NoteRecord>> getNotesFrom(String userId, NoteCursor cursor, int limit);
+
+    /**
+     * Searches a user's notes for notes with every one of a set of blind index tokens, newest first.
+     * @param userId the Discord user ID of the user to search the notes of.
+     * @param tokens the tokens, each of which must be in a note's search tokens.
+     * @param limit the maximum number of notes to get.
+     * @return a {@link CompletableFuture} that completes with the matching notes, with the totals set to -1.
+     */
+    CompletableFuture<RecordList<NoteRecord>> searchNotes(String userId, List<String> tokens, int limit);
+
+    /**
+     * Gets notes of any user that haven't been indexed for search yet, in ID order, along with their owners.
+     * @param afterId only notes with a greater ID are returned, or null to start from the first.
+     * @param limit the maximum number of notes to get.
+     * @return a {@link CompletableFuture} that completes with the notes.
+     */
+    CompletableFuture<RecordList<NoteRecord>> getUnindexedNotes(String afterId, int limit);
+
+    /**
+     * Sets the search tokens of a note, without changing its title or content.
+     * @param noteId the ID of the note.
+     * @param searchTokens the blind index tokens of the note's words.
+     * @return a {@link CompletableFuture} that completes with whether the tokens were written.
+     */
+    CompletableFuture<Boolean> putSearchTokens(String noteId, String searchTokens);
+
+    /**
+     * Gets notes of any user in ID order, along with their owners.
+     * @param afterId only notes with a greater ID are returned, or null to start from the first.
+     * @param limit the maximum number of notes to get.
+     * @return a {@link CompletableFuture} that completes with the notes.
+     */
+    CompletableFuture<RecordList<NoteRecord>> getNotesAfter(String afterId, int limit);
+
+    /**
+     * Replaces the title, content and search tokens of a note, unless it was updated since it was read.
+     * @param expected the note as it was read.
+     * @param title the new encrypted title.
+     * @param content the new encrypted content.
+     * @param searchTokens the new blind index tokens.
+     * @return a {@link CompletableFuture} that completes with whether the note was replaced.
+     */
+    CompletableFuture<Boolean> replaceNote(NoteRecord expected, String title, String content, String searchTokens);
+
+    /**
+     * Gets a single note of a user.
+     * @param noteId the ID of the note to get.
+     * @param userId the Discord user ID of the user to get the note for.
+     * @return a {@link CompletableFuture} that completes with the note, or an empty optional if the user has no
+     * note with that ID.
+     */
+    CompletableFuture<Optional<NoteRecord>> getNote(String noteId, String userId);
+
+    /**
+     * Deletes a note of a user.
+     * @param noteId the ID of the note to delete.
+     * @param userId the Discord user ID of the user to delete the note for.
+     * @return a {@link CompletableFuture} that completes with whether the note was deleted.
+     */
+    CompletableFuture<Boolean> deleteNote(String noteId, String userId);
+}
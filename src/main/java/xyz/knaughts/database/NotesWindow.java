@@ -0,0 +1,51 @@
+package xyz.knaughts.database;
+
+import xyz.knaughts.models.Note;
+import xyz.knaughts.models.NotesResponse;
+
+import java.util.List;
+
+/**
+ * A window of consecutive decrypted notes of a user, fetched in one request and sliced into notes list pages locally.
+ * @param window the window number, starting at 1.
+ * @param size the number of notes in a full window.
+ * @param totalItems the total number of notes the user has, or -1 if the window was read by keyset and the total was
+ *                   skipped.
+ * @param notes the notes in this window, newest first.
+ * @param next the cursor of the next window if the window was read by keyset, or null if it's the last one.
+ */
+record NotesWindow(int window, int size, int totalItems, List<Note> notes, NoteCursor next) {
+
+    /**
+     * Returns a page of the notes list from this window. Pages of windows read by keyset carry the cursors of the
+     * windows their neighbouring pages are in.
+     * @param page the page number, which must fall within this window.
+     * @param perPage the number of notes per page.
+     * @return the page, with no notes if it's past the last note.
+     */
+    NotesResponse page(int page, int perPage) {
+        final int from = Math.min((page - 1) * perPage - (window - 1) * size, notes.size());
+        final int to = Math.min(from + perPage, notes.size());
+        final List<Note> pageNotes = notes.subList(from, to);
+        if (totalItems >= 0)
+            return new NotesResponse(pageNotes, page, (totalItems + perPage - 1) / perPage);
+
+        final boolean lastInWindow = (page - 1) * perPage + perPage >= window * size;
+        final boolean hasNext = lastInWindow ? next != null : to < notes.size();
+        final boolean firstInWindow = (page - 1) * perPage == (window - 1) * size;
+        final NoteCursor own = notes.isEmpty() ? null : NoteCursor.from(notes.get(0));
+
+        final NoteCursor prev = page == 1 ? null : firstInWindow && !notes.isEmpty() ? NoteCursor.before(notes.get(0)) : own;
+        final NoteCursor nextPage = !hasNext ? null : lastInWindow ? next : own;
+        return new NotesResponse(pageNotes, page, -1, hasNext,
+                prev == null ? null : prev.encode(),
+                nextPage == null ? null : nextPage.encode());
+    }
+
+    /**
+     * @return whether the user has notes after this window.
+     */
+    boolean hasNext() {
+        return totalItems >= 0 ? (long) window * size < totalItems : next != null;
+    }
+}
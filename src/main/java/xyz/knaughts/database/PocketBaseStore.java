@@ -0,0 +1,926 @@
+package xyz.knaughts.database;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import okhttp3.*;
+import org.jetbrains.annotations.NotNull;
+import xyz.knaughts.models.Note;
+import xyz.knaughts.utils.Env;
+import xyz.knaughts.utils.VirtualThreads;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static xyz.knaughts.KnaughtsBot.LOG;
+import static xyz.knaughts.database.Database.errorOf;
+
+/**
+ * A {@link NoteStore} and {@link ServerStore} backed by <a href="https://pocketbase.io/">PocketBase</a>. As of late
+ * 2023, there is no Java SDK so the REST API is used.
+ */
+public final class PocketBaseStore implements NoteStore, ServerStore {
+
+    /**
+     * The HTTP client used to make requests to the database. Knaughts bot uses <a href="https://square.github.io/okhttp/">OkHttp</a>
+     * for HTTP-related functionality. Its dispatcher allows as many requests as both limiters combined, so the
+     * limiters decide how many are in flight.
+     */
+    private final OkHttpClient client;
+
+    /**
+     * The concurrency limit for user-facing requests to `notes`.
+     */
+    private final AdaptiveLimiter interactive = new AdaptiveLimiter(
+            "interactive",
+            Env.getInt("KNAUGHTS_DB_LIMIT_INITIAL", 16),
+            Env.getInt("KNAUGHTS_DB_LIMIT_MIN", 2),
+            Env.getInt("KNAUGHTS_DB_LIMIT_MAX", 64),
+            Env.getLong("KNAUGHTS_DB_LATENCY_THRESHOLD", 1_000),
+            Env.getInt("KNAUGHTS_DB_QUEUE_SIZE", 100)
+    );
+
+    /**
+     * The concurrency limit for background requests to `servers`, kept small so guild join/leave storms can't starve
+     * user-facing requests.
+     */
+    private final AdaptiveLimiter background = new AdaptiveLimiter(
+            "background",
+            Env.getInt("KNAUGHTS_DB_BACKGROUND_LIMIT_INITIAL", 2),
+            1,
+            Env.getInt("KNAUGHTS_DB_BACKGROUND_LIMIT_MAX", 8),
+            Env.getLong("KNAUGHTS_DB_LATENCY_THRESHOLD", 1_000),
+            Env.getInt("KNAUGHTS_DB_BACKGROUND_QUEUE_SIZE", 1_000)
+    );
+
+    /**
+     * The circuit breaker of each endpoint, created on its first request.
+     */
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    /**
+     * How many times an idempotent request is retried, and the bounds of the backoff between attempts.
+     */
+    private static final int MAX_RETRIES = Env.getInt("KNAUGHTS_DB_RETRIES", 2);
+    private static final long BASE_RETRY_DELAY = Env.getLong("KNAUGHTS_DB_RETRY_BASE_DELAY", 100);
+    private static final long MAX_RETRY_DELAY = Env.getLong("KNAUGHTS_DB_RETRY_MAX_DELAY", 2_000);
+
+    /**
+     * Schedules retries after their backoff. Only hands them back to the limiter, so one thread is plenty.
+     */
+    private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "knaughts-db-retries");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final MediaType JSON = MediaType.get("application/json");
+
+    /**
+     * The base URL of the database.
+     */
+    private final String baseUrl;
+
+    /**
+     * Hands out the admin auth token for every request and keeps it fresh. Currently, all requests are made via an admin
+     * account so that all users are able to use the database for their notes securely.
+     */
+    private final TokenManager tokens;
+
+    /**
+     * Whether the database accepts batch requests. Cleared the first time it turns them down.
+     */
+    private volatile boolean batchEnabled = true;
+
+    private PocketBaseStore(String baseUrl) {
+        this.baseUrl = baseUrl;
+
+        // in the virtual thread mode, OkHttp's blocking socket I/O parks virtual threads instead of pinning its pool
+        final Dispatcher dispatcher = VirtualThreads.isEnabled()
+                ? new Dispatcher(VirtualThreads.newExecutor("knaughts-http-"))
+                : new Dispatcher();
+        dispatcher.setMaxRequests(interactive.maxLimit() + background.maxLimit());
+        dispatcher.setMaxRequestsPerHost(interactive.maxLimit() + background.maxLimit());
+
+        this.client = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(Env.getInt("KNAUGHTS_DB_MAX_IDLE_CONNECTIONS", 16), 5, TimeUnit.MINUTES))
+                .connectTimeout(Env.getLong("KNAUGHTS_DB_CONNECT_TIMEOUT", 3_000), TimeUnit.MILLISECONDS)
+                .readTimeout(Env.getLong("KNAUGHTS_DB_READ_TIMEOUT", 5_000), TimeUnit.MILLISECONDS)
+                .writeTimeout(Env.getLong("KNAUGHTS_DB_WRITE_TIMEOUT", 5_000), TimeUnit.MILLISECONDS)
+                .callTimeout(Env.getLong("KNAUGHTS_DB_CALL_TIMEOUT", 10_000), TimeUnit.MILLISECONDS)
+                .eventListener(new EventListener() {
+                    @Override
+                    public void requestHeadersEnd(@NotNull Call call, @NotNull Request request) {
+                        final AtomicBoolean sent = call.request().tag(AtomicBoolean.class);
+                        if (sent != null) sent.set(true);
+                    }
+                })
+                .build();
+
+        this.tokens = new TokenManager(client, baseUrl, client.callTimeoutMillis());
+    }
+
+    /**
+     * Sends an initial authentication request to the database and starts refreshing the token before it expires.
+     * @return the connected store.
+     */
+    public static PocketBaseStore connect() {
+        final String baseUrl = System.getenv("KNAUGHTS_DB_BASE_URL");
+        if (baseUrl == null || baseUrl.isEmpty())
+            throw new RuntimeException("KNAUGHTS_DB_BASE_URL environment variable not found/set.");
+
+        final PocketBaseStore store = new PocketBaseStore(baseUrl);
+        store.tokens.start();
+        return store;
+    }
+
+    @Override
+    public CompletableFuture<NoteRecord> postNote(String userId, String title, String content, String searchTokens) {
+        final CompletableFuture<NoteRecord> future = new CompletableFuture<>();
+        final Map<String, String> parts = Map.of(
+                "discord_user_id", userId,
+                "title", title,
+                "content", content,
+                "search_tokens", searchTokens
+        );
+        final String url = "/api/collections/notes/records";
+
+        enqueue(interactive, postRequest(url, parts),
+            new Callback() {
+                @Override
+                public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                    future.completeExceptionally(errorOf("Failed posting to `notes` on the database: " + e));
+                }
+
+                @Override
+                public void onResponse(@NotNull Call call, @NotNull Response response) {
+                    try (response) {
+                        if (response.code() != 200 || response.body() == null)
+                            future.completeExceptionally(errorOf("There was an error posting to `notes` on the database."));
+                        else
+                            future.complete(Responses.readNote(response.body().source()));
+                    } catch (IOException e) {
+                        future.completeExceptionally(errorOf("Failed reading the created note from `notes` on the database: " + e));
+                    }
+                }
+            }
+        );
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<NoteRecord> patchNote(String userId, String noteId, String title, String content, String searchTokens) {
+        final CompletableFuture<NoteRecord> future = new CompletableFuture<>();
+        final Map<String, String> parts = Map.of(
+                "discord_user_id", userId,
+                "title", title,
+                "content", content,
+                "search_tokens", searchTokens
+        );
+        final String url = "/api/collections/notes/records/" + noteId + "?fields=id,title,content,created,updated";
+
+        enqueue(interactive, patchRequest(url, parts),
+                new Callback() {
+                    @Override
+                    public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                        future.completeExceptionally(errorOf("Failed patching to `notes` on the database: " + e));
+                    }
+
+                    @Override
+                    public void onResponse(@NotNull Call call, @NotNull Response response) {
+                        try (response) {
+                            if (response.code() != 200 || response.body() == null)
+                                future.completeExceptionally(errorOf("There was an error patching to `notes` on the database."));
+                            else
+                                future.complete(Responses.readNote(response.body().source()));
+                        } catch (IOException e) {
+                            future.completeExceptionally(errorOf("Failed reading the patched note from `notes` on the database: " + e));
+                        }
+                    }
+                }
+        );
+
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> putNote(String userId, NoteRecord record, boolean create) {
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        final Map<String, String> parts = new HashMap<>(Map.of(
+                "discord_user_id", userId,
+                "title", record.title(),
+                "content", record.content(),
+                "search_tokens", record.searchTokens()
+        ));
+        final Request request;
+        if (create) {
+            parts.put("id", record.id());
+            request = postRequest("/api/collections/notes/records?fields=id", parts);
+        } else {
+            request = patchRequest("/api/collections/notes/records/" + record.id() + "?fields=id", parts);
+        }
+
+        enqueue(background, request,
+                new Callback() {
+                    @Override
+                    public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                        future.completeExceptionally(errorOf("Failed putting to `notes` on the database: " + e));
+                    }
+
+                    @Override
+                    public void onResponse(@NotNull Call call, @NotNull Response response) {
+                        response.close();
+                        if (response.code() == 200) {
+                            future.complete(true);
+                        } else if (create && response.code() == 400) {
+                            // most likely created by an earlier replay whose response was lost, so update it instead
+                            putNote(userId, record, false).whenComplete((put, e) -> {
+                                if (e != null) future.completeExceptionally(e);
+                                else future.complete(put);
+                            });
+                        } else if (response.code() == 429 || response.code() >= 500) {
+                            future.completeExceptionally(errorOf("There was an error putting to `notes` on the database: " + response.code()));
+                        } else {
+                            LOG.error("`notes` on the database rejected a write to note " + record.id() + ": " + response.code());
+                            future.complete(false);
+                        }
+                    }
+                }
+        );
+        return future;
+    }
+
+    @Override
+    public void postServer(String serverId) {
+        createServer(serverId);
+    }
+
+    @Override
+    public void patchServer(long serverId, boolean botInServer) {
+        updateServer(serverId, botInServer);
+    }
+
+    /**
+     * Writes the servers in one request to PocketBase's <a href="https://pocketbase.io/docs/api-records/#batch-createupdateupsertdelete-records">batch endpoint</a>,
+     * upserting each server by its ID. Batches are transactional, so if any server fails the whole batch is retried
+     * with one request per server, which the background limiter runs in parallel. If batch requests are disabled on
+     * the database, later batches go straight to one request per server.
+     */
+    @Override
+    public CompletableFuture<Set<Long>> putServers(Map<Long, Boolean> servers) {
+        if (servers.isEmpty())
+            return CompletableFuture.completedFuture(Set.of());
+        if (!batchEnabled)
+            return putServersSeparately(servers);
+
+        final CompletableFuture<Set<Long>> future = new CompletableFuture<>();
+        enqueue(background, batchRequest(servers),
+                new Callback() {
+                    @Override
+                    public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                        LOG.error("Failed sending a batch of " + servers.size() + " to `servers` on the database: " + e);
+                        future.complete(servers.keySet());
+                    }
+
+                    @Override
+                    public void onResponse(@NotNull Call call, @NotNull Response response) {
+                        response.close();
+                        final int code = response.code();
+                        if (code == 200) {
+                            future.complete(Set.of());
+                            return;
+                        }
+
+                        if (code == 403 || code == 404) { // batch requests are disabled, or the database predates them
+                            LOG.warn("Batch requests aren't available on the database, updating `servers` one at a time.");
+                            batchEnabled = false;
+                        } else {
+                            LOG.warn("There was an error sending a batch to `servers` on the database (" + code + "), retrying one at a time.");
+                        }
+                        putServersSeparately(servers).whenComplete((failed, e) -> future.complete(failed));
+                    }
+                }
+        );
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<RecordList<ServerRecord>> getServers(int page, int perPage) {
+        final String url = "/api/collections/servers/records?perPage=" + perPage + "&page=" + page + "&sort=id&skipTotal=1&fields=guild_id,bot_in_server";
+        final CompletableFuture<RecordList<ServerRecord>> future = new CompletableFuture<>();
+
+        enqueue(background, getRequest(url),
+                new Callback() {
+                    @Override
+                    public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                        future.completeExceptionally(errorOf("Failed getting to `servers` on the database: " + e));
+                    }
+
+                    @Override
+                    public void onResponse(@NotNull Call call, @NotNull Response response) {
+                        try (response) {
+                            if (response.code() != 200 || response.body() == null)
+                                future.completeExceptionally(errorOf("There was an error getting to `servers` on the database."));
+                            else
+                                future.complete(Responses.readServerList(response.body().source()));
+                        } catch (IOException e) {
+                            future.completeExceptionally(errorOf("Failed getting to `servers` on the database: " + e));
+                        }
+                    }
+                }
+        );
+
+        return future;
+    }
+
+    /**
+     * Writes the servers with one request each.
+     * @param servers whether the bot is in each server, keyed by server ID.
+     * @return a {@link CompletableFuture} that completes with the IDs of the servers that couldn't be updated.
+     */
+    private CompletableFuture<Set<Long>> putServersSeparately(Map<Long, Boolean> servers) {
+        final Map<Long, CompletableFuture<Boolean>> results = new HashMap<>();
+        servers.forEach((serverId, botInServer) -> results.put(serverId, botInServer
+                ? createServer(String.valueOf(serverId))
+                : updateServer(serverId, false)));
+
+        return CompletableFuture.allOf(results.values().toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            final Set<Long> failed = new HashSet<>();
+            results.forEach((serverId, result) -> {
+                if (!result.join())
+                    failed.add(serverId);
+            });
+            return failed;
+        });
+    }
+
+    /**
+     * Sends a request to create a server record with `bot_in_server` set to true, updating the record instead if it
+     * already exists.
+     * @param serverId the ID of the server.
+     * @return a {@link CompletableFuture} that completes with whether the server was written.
+     */
+    private CompletableFuture<Boolean> createServer(String serverId) {
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        final String url = "/api/collections/servers/records";
+        final Map<String, String> parts = Map.of(
+                "guild_id", serverId,
+                "bot_in_server", String.valueOf(true)
+        );
+
+        enqueue(background, postRequest(url, parts),
+                new Callback() {
+                    @Override
+                    public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                        LOG.error("Failed posting to `servers` on the database: " + e);
+                        future.complete(false);
+                    }
+
+                    @Override
+                    public void onResponse(@NotNull Call call, @NotNull Response response) {
+                        response.close();
+                        int code = response.code();
+                        if (code != 200 && code != 400) { // 400 means the server already exists
+                            LOG.error("There was an error posting to `servers` on the database with server id " + serverId);
+                            future.complete(false);
+                        } else if (code == 400) {
+                            updateServer(Long.parseLong(serverId), true).whenComplete((updated, e) -> future.complete(updated));
+                        } else {
+                            future.complete(true);
+                        }
+                    }
+                }
+        );
+        return future;
+    }
+
+    /**
+     * Sends a request to update a server record.
+     * @param serverId the ID of the server.
+     * @param botInServer whether the bot is in the server.
+     * @return a {@link CompletableFuture} that completes with whether the server was written.
+     */
+    private CompletableFuture<Boolean> updateServer(long serverId, boolean botInServer) {
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        final String url = "/api/collections/servers/records/" + serverId;
+        final Map<String, String> parts = Map.of(
+                "bot_in_server", String.valueOf(botInServer)
+        );
+
+        enqueue(background, patchRequest(url, parts),
+                new Callback() {
+                    @Override
+                    public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                        LOG.error("Failed patching to `servers` on the database: " + e);
+                        future.complete(false);
+                    }
+
+                    @Override
+                    public void onResponse(@NotNull Call call, @NotNull Response response) {
+                        response.close();
+                        if (response.code() != 200) {
+                            LOG.error("There was an error patching to `servers` on the database with id " + serverId);
+                            future.complete(false);
+                        } else {
+                            future.complete(true);
+                        }
+                    }
+                }
+        );
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<RecordList<NoteRecord>> getNotes(String userId, int page, int perPage) {
+        final String url = "/api/collections/notes/records?perPage=" + perPage + "&page=" + page + "&filter=(discord_user_id='" + userId + "')&fields=id,title,content,created,updated&sort=-created";
+        return getNoteList(url, "Failed getting to `notes` on the database: ", "There was an error getting to `notes` on the database.");
+    }
+
+    @Override
+    public CompletableFuture<RecordList<NoteRecord>> getNotesFrom(String userId, NoteCursor cursor, int limit) {
+        String filter = "discord_user_id='" + userId + "'";
+        String sort = "-created,-id";
+        if (cursor != null) {
+            final String created = Note.formatTimestamp(cursor.created());
+            if (cursor.before()) {
+                // the notes just before the key are the oldest of the newer notes, so they're read oldest first
+                filter += " && (created > '" + created + "' || (created = '" + created + "' && id > '" + cursor.id() + "'))";
+                sort = "created,id";
+            } else {
+                filter += " && (created < '" + created + "' || (created = '" + created + "' && id <= '" + cursor.id() + "'))";
+            }
+        }
+
+        final String url = "/api/collections/notes/records?perPage=" + limit + "&skipTotal=1&filter="
+                + URLEncoder.encode("(" + filter + ")", StandardCharsets.UTF_8) + "&fields=id,title,content,created,updated&sort=" + sort;
+        final CompletableFuture<RecordList<NoteRecord>> records = getNoteList(url, "Failed getting to `notes` on the database: ", "There was an error getting to `notes` on the database.");
+        if (cursor == null || !cursor.before()) return records;
+
+        return records.thenApply(list -> {
+            final List<NoteRecord> newestFirst = new ArrayList<>(list.items());
+            Collections.reverse(newestFirst);
+            return new RecordList<>(list.page(), list.perPage(), list.totalItems(), list.totalPages(), newestFirst);
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * PocketBase has no index on the words of a text field, so the tokens are matched with <code>~</code>, a
+     * <code>LIKE '%...%'</code> that reads every note of the user. Only the <code>discord_user_id</code> index keeps
+     * this from scanning the whole collection, so a search costs as much as the user has notes.
+     */
+    @Override
+    public CompletableFuture<RecordList<NoteRecord>> searchNotes(String userId, List<String> tokens, int limit) {
+        final StringBuilder filter = new StringBuilder("discord_user_id='" + userId + "'");
+        // the spaces around a token only match it as a whole token
+        for (final String token : tokens)
+            filter.append(" && search_tokens ~ ' ").append(token).append(" '");
+
+        final String url = "/api/collections/notes/records?perPage=" + limit + "&skipTotal=1&filter="
+                + URLEncoder.encode("(" + filter + ")", StandardCharsets.UTF_8) + "&fields=id,title,content,created,updated&sort=-created,-id";
+        return getNoteList(url, "Failed searching `notes` on the database: ", "There was an error searching `notes` on the database.");
+    }
+
+    @Override
+    public CompletableFuture<RecordList<NoteRecord>> getUnindexedNotes(String afterId, int limit) {
+        final String filter = afterId == null ? "search_tokens = ''" : "search_tokens = '' && id > '" + afterId + "'";
+        final String url = "/api/collections/notes/records?perPage=" + limit + "&skipTotal=1&filter="
+                + URLEncoder.encode("(" + filter + ")", StandardCharsets.UTF_8) + "&fields=id,title,content,created,updated,discord_user_id&sort=id";
+        return getNoteList(background, url, "Failed getting unindexed `notes` on the database: ", "There was an error getting unindexed `notes` on the database.");
+    }
+
+    @Override
+    public CompletableFuture<Boolean> putSearchTokens(String noteId, String searchTokens) {
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        final String url = "/api/collections/notes/records/" + noteId + "?fields=id";
+
+        enqueue(background, patchRequest(url, Map.of("search_tokens", searchTokens)),
+                new Callback() {
+                    @Override
+                    public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                        LOG.error("Failed patching search tokens to `notes` on the database: " + e);
+                        future.complete(false);
+                    }
+
+                    @Override
+                    public void onResponse(@NotNull Call call, @NotNull Response response) {
+                        response.close();
+                        if (response.code() != 200) {
+                            LOG.error("There was an error patching search tokens to `notes` on the database with id " + noteId);
+                            future.complete(false);
+                        } else {
+                            future.complete(true);
+                        }
+                    }
+                }
+        );
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<RecordList<NoteRecord>> getNotesAfter(String afterId, int limit) {
+        final String filter = afterId == null ? "" : "&filter=" + URLEncoder.encode("(id > '" + afterId + "')", StandardCharsets.UTF_8);
+        final String url = "/api/collections/notes/records?perPage=" + limit + "&skipTotal=1" + filter
+                + "&fields=id,title,content,created,updated,discord_user_id&sort=id";
+        return getNoteList(background, url, "Failed getting `notes` on the database: ", "There was an error getting `notes` on the database.");
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * PocketBase can't update a record conditionally, so the note's <code>updated</code> time is checked just before
+     * it's replaced. This only holds if no other write of the note is sent between the two requests, which
+     * {@link Database} makes sure of by serializing the writes of each note.
+     */
+    @Override
+    public CompletableFuture<Boolean> replaceNote(NoteRecord expected, String title, String content, String searchTokens) {
+        final String url = "/api/collections/notes/records?perPage=1&skipTotal=1&filter="
+                + URLEncoder.encode("(id='" + expected.id() + "')", StandardCharsets.UTF_8) + "&fields=id,updated";
+        return getNoteList(background, url, "Failed getting a note on `notes` on the database: ", "There was an error getting a note on the database.")
+                .thenCompose(records -> {
+                    if (records.items().isEmpty() || !records.items().get(0).updated().equals(expected.updated()))
+                        return CompletableFuture.completedFuture(false);
+
+                    final CompletableFuture<Boolean> future = new CompletableFuture<>();
+                    final Map<String, String> parts = Map.of("title", title, "content", content, "search_tokens", searchTokens);
+                    enqueue(background, patchRequest("/api/collections/notes/records/" + expected.id() + "?fields=id", parts),
+                            new Callback() {
+                                @Override
+                                public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                                    future.completeExceptionally(errorOf("Failed replacing a note on `notes` on the database: " + e));
+                                }
+
+                                @Override
+                                public void onResponse(@NotNull Call call, @NotNull Response response) {
+                                    response.close();
+                                    if (response.code() == 200)
+                                        future.complete(true);
+                                    else if (response.code() == 404)
+                                        future.complete(false);
+                                    else
+                                        future.completeExceptionally(errorOf("There was an error replacing a note on the database: " + response.code()));
+                                }
+                            }
+                    );
+                    return future;
+                });
+    }
+
+    @Override
+    public CompletableFuture<Optional<NoteRecord>> getNote(String noteId, String userId) {
+        final String url = "/api/collections/notes/records?filter=(id='" + noteId + "' && discord_user_id='" + userId + "')&fields=id,title,content,created,updated";
+        return getNoteList(url, "Failed getting a note on `notes` on the database: ", "There was an error getting a note on the database.")
+                .thenApply(records -> records.items().stream().findFirst());
+    }
+
+    /**
+     * Sends a request to the database to list note records.
+     * @param url the URL of the list request.
+     * @param failureMsg the error message if the request fails, followed by the exception.
+     * @param errorMsg the error message if the database responds with an error.
+     * @return a {@link CompletableFuture} that completes with the page of records.
+     */
+    private CompletableFuture<RecordList<NoteRecord>> getNoteList(String url, String failureMsg, String errorMsg) {
+        return getNoteList(interactive, url, failureMsg, errorMsg);
+    }
+
+    /**
+     * Sends a request to the database to list note records.
+     * @param limiter the concurrency limit the request goes through.
+     * @param url the URL of the list request.
+     * @param failureMsg the error message if the request fails, followed by the exception.
+     * @param errorMsg the error message if the database responds with an error.
+     * @return a {@link CompletableFuture} that completes with the page of records.
+     */
+    private CompletableFuture<RecordList<NoteRecord>> getNoteList(AdaptiveLimiter limiter, String url, String failureMsg, String errorMsg) {
+        final CompletableFuture<RecordList<NoteRecord>> future = new CompletableFuture<>();
+
+        enqueue(limiter, getRequest(url),
+                new Callback() {
+                    @Override
+                    public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                        future.completeExceptionally(errorOf(failureMsg + e));
+                    }
+
+                    @Override
+                    public void onResponse(@NotNull Call call, @NotNull Response response) {
+                        try (response) {
+                            if (response.code() != 200 || response.body() == null)
+                                future.completeExceptionally(errorOf(errorMsg));
+                            else
+                                future.complete(Responses.readNoteList(response.body().source()));
+                        } catch (IOException e) {
+                            future.completeExceptionally(errorOf(failureMsg + e));
+                        }
+                    }
+                }
+        );
+
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteNote(String noteId, String userId) {
+        final String url = "/api/collections/notes/records/" + noteId + "?filter=(discord_user_id='" + userId + "')";
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        enqueue(interactive, deleteRequest(url),
+                new Callback() {
+                    @Override
+                    public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                        LOG.error("Failed deleting a note on `notes` on the database: " + e);
+                        future.complete(false);
+                    }
+
+                    @Override
+                    public void onResponse(@NotNull Call call, @NotNull Response response) {
+                        response.close();
+                        if (response.code() != 204) {
+                            LOG.error("There was an error deleting a note on the database.");
+                            future.complete(false);
+                        } else {
+                            future.complete(true);
+                        }
+                    }
+                }
+        );
+
+        return future;
+    }
+
+    /**
+     * Sends a request asynchronously through a concurrency limit and the circuit breaker of its endpoint. If the limit
+     * rejects the request or the breaker is open, the callback fails straight away without sending it. Idempotent
+     * requests (GET and DELETE) that fail because of the database are retried with jittered exponential backoff. A
+     * retried DELETE answered with a 404 is handed to the callback as a 204 if an earlier attempt failed after it was
+     * sent, as that attempt may well have deleted the record before its response was lost. Otherwise the 404 means the
+     * record was never there, and is handed on as is. Requests are chained onto the admin auth token, so one sent
+     * while it's being refreshed goes out once the refresh is done, and a request turned down with a 401 is replayed
+     * once with a refreshed token.
+     * @param limiter the concurrency limit the request counts against.
+     * @param request the request to send.
+     * @param callback the callback for the response.
+     */
+    private void enqueue(AdaptiveLimiter limiter, Request request, Callback callback) {
+        final String endpoint = endpointOf(request);
+        send(limiter, request, callback, endpoint, breakers.computeIfAbsent(endpoint, this::newBreaker), 0, false, null);
+    }
+
+    /**
+     * Sends an attempt at a request with the current admin auth token.
+     * @param delivered whether an earlier attempt failed after the request was sent, so it may have been carried out.
+     * @param unauthorized the token an earlier attempt was turned down with a 401 with, or null.
+     */
+    private void send(AdaptiveLimiter limiter, Request request, Callback callback, String endpoint, CircuitBreaker breaker, int attempt,
+                      boolean delivered, String unauthorized) {
+        (unauthorized == null ? tokens.token() : tokens.refreshed(unauthorized)).whenComplete((token, e) -> {
+            if (e == null) {
+                // the tag is set once the request is sent, see the client's event listener
+                final Request authorized = request.newBuilder()
+                        .header("Authorization", "Bearer " + token)
+                        .tag(AtomicBoolean.class, new AtomicBoolean())
+                        .build();
+                sendAuthorized(limiter, authorized, callback, endpoint, breaker, attempt, delivered, unauthorized != null, token);
+                return;
+            }
+
+            final Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            callback.onFailure(client.newCall(request), new IOException(cause instanceof TimeoutException
+                    ? "Timed out waiting on the admin auth token refresh."
+                    : "Admin auth token refresh failed: " + cause.getMessage(), cause));
+        });
+    }
+
+    /**
+     * Sends an attempt at a request that carries its admin auth token.
+     * @param replayed whether the attempt replays one turned down with a 401.
+     * @param token the token the attempt is sent with.
+     */
+    private void sendAuthorized(AdaptiveLimiter limiter, Request request, Callback callback, String endpoint, CircuitBreaker breaker,
+                                int attempt, boolean delivered, boolean replayed, String token) {
+        if (!breaker.tryAcquire()) {
+            callback.onFailure(client.newCall(request), new IOException("Circuit breaker for `" + endpoint + "` is open."));
+            return;
+        }
+
+        limiter.acquire().whenComplete((permit, rejected) -> {
+            final Call call = client.newCall(request);
+            if (rejected != null) {
+                breaker.cancel();
+                callback.onFailure(call, new IOException(rejected.getMessage()));
+                return;
+            }
+
+            call.enqueue(new Callback() {
+                @Override
+                public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                    breaker.failure();
+                    permit.release(true);
+                    final boolean sent = delivered || request.tag(AtomicBoolean.class).get();
+                    if (!retry(limiter, request, callback, endpoint, breaker, attempt, sent))
+                        callback.onFailure(call, e);
+                }
+
+                @Override
+                public void onResponse(@NotNull Call call, @NotNull Response response) throws IOException {
+                    // rate limits and server errors mean PocketBase is struggling, other errors are the request's fault
+                    final boolean dropped = response.code() == 429 || response.code() >= 500;
+                    if (dropped) breaker.failure();
+                    else breaker.success();
+
+                    if (dropped && retry(limiter, request, callback, endpoint, breaker, attempt, delivered)) {
+                        response.close();
+                        permit.release(true);
+                        return;
+                    }
+                    if (response.code() == 401 && !replayed) {
+                        LOG.debug("Database request was unauthorized, retrying with a refreshed token.");
+                        response.close();
+                        permit.release(false);
+                        send(limiter, request, callback, endpoint, breaker, attempt, delivered, token);
+                        return;
+                    }
+                    try {
+                        if (delivered && response.code() == 404 && request.method().equals("DELETE"))
+                            callback.onResponse(call, response.newBuilder().code(204).message("No Content").build());
+                        else
+                            callback.onResponse(call, response);
+                    } finally {
+                        permit.release(dropped);
+                    }
+                }
+            });
+        });
+    }
+
+    /**
+     * Schedules another attempt at a failed request if it's idempotent and has attempts left. The delay is drawn at
+     * random up to an exponentially growing cap ("full jitter"), so retries from a burst of failures spread out.
+     * @param delivered whether this or an earlier attempt failed after the request was sent.
+     * @return whether the request will be retried.
+     */
+    private boolean retry(AdaptiveLimiter limiter, Request request, Callback callback, String endpoint, CircuitBreaker breaker, int attempt,
+                          boolean delivered) {
+        if (attempt >= MAX_RETRIES || !(request.method().equals("GET") || request.method().equals("DELETE")))
+            return false;
+
+        final long cap = Math.min(MAX_RETRY_DELAY, BASE_RETRY_DELAY << attempt);
+        DatabaseMetrics.retry(endpoint);
+        retries.schedule(() -> send(limiter, request, callback, endpoint, breaker, attempt + 1, delivered, null),
+                ThreadLocalRandom.current().nextLong(cap + 1), TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Returns the endpoint a request is sent to, which is the collection for record requests, e.g. <code>notes</code>
+     * for <code>/api/collections/notes/records</code>, and the API path otherwise, e.g. <code>batch</code>.
+     */
+    private static String endpointOf(Request request) {
+        final List<String> segments = request.url().pathSegments();
+        if (segments.size() > 2 && segments.get(1).equals("collections"))
+            return segments.get(2);
+        return segments.size() > 1 ? segments.get(1) : "unknown";
+    }
+
+    private CircuitBreaker newBreaker(String endpoint) {
+        return new CircuitBreaker(endpoint,
+                Env.getInt("KNAUGHTS_DB_BREAKER_FAILURES", 5),
+                Env.getLong("KNAUGHTS_DB_BREAKER_OPEN_TIME", 10_000));
+    }
+
+    /**
+     * @return the circuit breakers of the endpoints requested so far.
+     */
+    Map<String, CircuitBreaker> breakers() {
+        return breakers;
+    }
+
+    /**
+     * @return the concurrency limit for user-facing requests.
+     */
+    AdaptiveLimiter interactiveLimiter() {
+        return interactive;
+    }
+
+    /**
+     * @return the concurrency limit for background requests.
+     */
+    AdaptiveLimiter backgroundLimiter() {
+        return background;
+    }
+
+    /**
+     * Returns a generic HTTP POST request with the given parts and a default Content-Type header.
+     * @param url the URL to send the request to.
+     * @param parts the multipart parts to send with the request.
+     * @return a {@link Request}.
+     */
+    private Request postRequest(String url, Map<String, String> parts) {
+        return defaultRequestBuilder(url).addHeader("Content-Type", "multipart/form-data").post(defaultMultipartReq(parts)).build();
+    }
+
+    /**
+     * Returns a generic HTTP PATCH request with the given parts and a default Content-Type header.
+     * @param url the URL to send the request to.
+     * @param parts the multipart parts to send with the request.
+     * @return a {@link Request}.
+     */
+    private Request patchRequest(String url, Map<String, String> parts) {
+        return defaultRequestBuilder(url).addHeader("Content-Type", "multipart/form-data").patch(defaultMultipartReq(parts)).build();
+    }
+
+    /**
+     * Returns a generic HTTP GET request.
+     * @param url the URL to send the request to.
+     * @return a {@link Request}.
+     */
+    private Request getRequest(String url) {
+        return defaultRequestBuilder(url).get().build();
+    }
+
+    /**
+     * Returns a generic HTTP DELETE request.
+     * @param url the URL to send the request to.
+     * @return a {@link Request}.
+     */
+    private Request deleteRequest(String url) {
+        return defaultRequestBuilder(url).delete().build();
+    }
+
+    /**
+     * Returns a batch request that upserts the given servers.
+     * @param servers whether the bot is in each server, keyed by server ID.
+     * @return a {@link Request}.
+     */
+    private Request batchRequest(Map<Long, Boolean> servers) {
+        final JsonArray requests = new JsonArray(servers.size());
+        servers.forEach((serverId, botInServer) -> {
+            final JsonObject body = new JsonObject();
+            body.addProperty("id", String.valueOf(serverId));
+            body.addProperty("guild_id", String.valueOf(serverId));
+            body.addProperty("bot_in_server", botInServer);
+
+            final JsonObject request = new JsonObject();
+            request.addProperty("method", "PUT");
+            request.addProperty("url", "/api/collections/servers/records");
+            request.add("body", body);
+            requests.add(request);
+        });
+
+        final JsonObject batch = new JsonObject();
+        batch.add("requests", requests);
+        return defaultRequestBuilder("/api/batch").post(RequestBody.create(batch.toString(), JSON)).build();
+    }
+
+    /**
+     * Returns a default multipart {@link RequestBody} with the given parts.
+     * @param parts the multipart parts to send with the request.
+     * @return a {@link RequestBody}.
+     */
+    private static RequestBody defaultMultipartReq(Map<String, String> parts) {
+        MultipartBody.Builder builder = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM);
+
+        parts.forEach(builder::addFormDataPart);
+        return builder.build();
+    }
+
+    /**
+     * Returns a default {@link Request.Builder} with the given URL. The authorization header is added by the
+     * {@link #tokens} interceptor.
+     * @param url the URL path to send the request to (excluding the base part).
+     * @return a {@link Request.Builder}.
+     */
+    private Request.Builder defaultRequestBuilder(String url) {
+        return new Request.Builder()
+                .url(buildUrl(url));
+    }
+
+    /**
+     * Returns the full database URL given a path.
+     * @param path the path to append to the base URL, beginning with a slash.
+     * @return the full database URL.
+     */
+    private String buildUrl(String path) {
+        return baseUrl + path.replaceAll("&&", "%26%26");
+    }
+}
@@ -0,0 +1,14 @@
+package xyz.knaughts.database;
+
+import java.util.List;
+
+/**
+ * Represents a page of records as returned by the database's list endpoints.
+ * @param page the page number, starting at 1.
+ * @param perPage the maximum number of records per page.
+ * @param totalItems the total number of records, or -1 if the total was skipped.
+ * @param totalPages the total number of pages, or -1 if the total was skipped.
+ * @param items the records on this page.
+ */
+public record RecordList<T>(int page, int perPage, int totalItems, int totalPages, List<T> items) {
+}
@@ -0,0 +1,84 @@
+package xyz.knaughts.database;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import okio.BufferedSource;
+
+import java.io.IOException;
+
+/**
+ * Decodes database responses straight from the response source into typed records, without reading the body into a
+ * string or building an intermediate JSON tree first.
+ */
+public final class Responses {
+
+    private static final Gson gson = new Gson();
+
+    private static final TypeAdapter<RecordList<NoteRecord>> NOTE_LIST = gson.getAdapter(new TypeToken<RecordList<NoteRecord>>() {});
+    private static final TypeAdapter<NoteRecord> NOTE = gson.getAdapter(NoteRecord.class);
+    private static final TypeAdapter<RecordList<ServerRecord>> SERVER_LIST = gson.getAdapter(new TypeToken<RecordList<ServerRecord>>() {});
+    private static final TypeAdapter<AuthResponse> AUTH = gson.getAdapter(AuthResponse.class);
+
+    private Responses() {
+    }
+
+    /**
+     * Reads a page of note records.
+     * @param source the response body source.
+     * @return the page.
+     * @throws IOException if the body can't be read or isn't valid JSON.
+     */
+    public static RecordList<NoteRecord> readNoteList(BufferedSource source) throws IOException {
+        return read(NOTE_LIST, source);
+    }
+
+    /**
+     * Reads a single note record.
+     * @param source the response body source.
+     * @return the record.
+     * @throws IOException if the body can't be read or isn't valid JSON.
+     */
+    public static NoteRecord readNote(BufferedSource source) throws IOException {
+        return read(NOTE, source);
+    }
+
+    /**
+     * Reads a page of server records.
+     * @param source the response body source.
+     * @return the page.
+     * @throws IOException if the body can't be read or isn't valid JSON.
+     */
+    public static RecordList<ServerRecord> readServerList(BufferedSource source) throws IOException {
+        return read(SERVER_LIST, source);
+    }
+
+    /**
+     * Reads the token of an admin auth response.
+     * @param source the response body source.
+     * @return the auth token.
+     * @throws IOException if the body can't be read, isn't valid JSON or holds no token.
+     */
+    public static String readToken(BufferedSource source) throws IOException {
+        final AuthResponse response = read(AUTH, source);
+        if (response == null || response.token() == null)
+            throw new IOException("No token in auth response.");
+        return response.token();
+    }
+
+    private static <T> T read(TypeAdapter<T> adapter, BufferedSource source) throws IOException {
+        try (JsonReader json = new JsonReader(new Utf8SourceReader(source))) {
+            return adapter.read(json);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed response: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The part of an admin auth response that is used.
+     * @param token the admin auth token.
+     */
+    private record AuthResponse(String token) {
+    }
+}
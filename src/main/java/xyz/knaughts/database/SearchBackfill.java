@@ -0,0 +1,100 @@
+package xyz.knaughts.database;
+
+import com.goterl.lazysodium.exceptions.SodiumException;
+import xyz.knaughts.utils.Cryptography;
+import xyz.knaughts.utils.SearchTokens;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import static xyz.knaughts.KnaughtsBot.LOG;
+
+/**
+ * Computes the search tokens of notes written before notes were indexed, so searches find them too.
+ * <p>
+ * Unindexed notes are read a page at a time in ID order, decrypted, and written back with their tokens. The ID of the
+ * last note of each page is the checkpoint the next page is read after, so notes that can't be decrypted are skipped
+ * rather than read again, and notes indexed by an edit meanwhile simply drop out of the pages.
+ */
+final class SearchBackfill {
+
+    private final NoteStore store;
+    private final Executor executor;
+    private final int pageSize;
+
+    /**
+     * @param store the store to read and update notes in.
+     * @param executor the executor notes are decrypted on.
+     * @param pageSize the number of notes read per page.
+     */
+    SearchBackfill(NoteStore store, Executor executor, int pageSize) {
+        this.store = store;
+        this.executor = executor;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Indexes every unindexed note.
+     * @return a {@link CompletableFuture} that completes with the result once every page has been written.
+     */
+    CompletableFuture<Result> run() {
+        final long start = System.nanoTime();
+        final Counts counts = new Counts();
+        return backfillPage(null, counts)
+                .thenApply(ignored -> new Result(counts.indexed, counts.skipped, Duration.ofNanos(System.nanoTime() - start)));
+    }
+
+    /**
+     * Indexes a page of notes after the checkpoint, then moves on to the next page.
+     */
+    private CompletableFuture<Void> backfillPage(String afterId, Counts counts) {
+        return store.getUnindexedNotes(afterId, pageSize).thenComposeAsync(records -> {
+            final List<CompletableFuture<Boolean>> writes = new ArrayList<>(records.items().size());
+            for (final NoteRecord record : records.items()) {
+                final String tokens;
+                try {
+                    tokens = SearchTokens.of(record.userId(),
+                            Cryptography.decrypt(record.title()), Cryptography.decrypt(record.content()));
+                } catch (SodiumException e) {
+                    LOG.warn("Skipping note " + record.id() + " that couldn't be indexed: " + e);
+                    counts.skipped++;
+                    continue;
+                }
+                writes.add(store.putSearchTokens(record.id(), tokens));
+            }
+
+            final CompletableFuture<Void> written = CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]))
+                    .thenRun(() -> {
+                        for (final CompletableFuture<Boolean> write : writes) {
+                            if (write.join()) counts.indexed++;
+                            else counts.skipped++;
+                        }
+                    });
+            if (records.items().size() < pageSize)
+                return written;
+
+            final String checkpoint = records.items().get(records.items().size() - 1).id();
+            return written.thenCompose(ignored -> backfillPage(checkpoint, counts));
+        }, executor);
+    }
+
+    /**
+     * The outcome of a backfill.
+     * @param indexed the number of notes indexed.
+     * @param skipped the number of notes that couldn't be decrypted or written.
+     * @param took how long the backfill took.
+     */
+    record Result(int indexed, int skipped, Duration took) {
+    }
+
+    /**
+     * Running counts, only touched by one page of the backfill at a time.
+     */
+    private static final class Counts {
+        private int indexed;
+        private int skipped;
+    }
+}
@@ -0,0 +1,43 @@
+package xyz.knaughts.database;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Runs the calls with the same key one after the other, each starting once the one before it has completed, whatever
+ * its outcome. Calls with different keys run concurrently. A key is only tracked until its last call completes.
+ * @param <K> the type of the keys.
+ */
+final class SerialWrites<K> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<?>> tails = new ConcurrentHashMap<>();
+
+    /**
+     * Runs a call once every call started before it with the same key has completed.
+     * @param key the key the call is serialized on.
+     * @param call the call to run.
+     * @return a {@link CompletableFuture} that completes with the result of the call.
+     */
+    <V> CompletableFuture<V> run(K key, Supplier<CompletableFuture<V>> call) {
+        final CompletableFuture<V> result = new CompletableFuture<>();
+        final CompletableFuture<?> previous = tails.put(key, result);
+        final CompletableFuture<?> ready = previous == null ? CompletableFuture.completedFuture(null) : previous;
+
+        ready.handle((ignored, e) -> null).thenCompose(ignored -> {
+            try {
+                return call.get();
+            } catch (RuntimeException e) {
+                return CompletableFuture.<V>failedFuture(e);
+            }
+        }).whenComplete((value, e) -> {
+            // removed before completing, so a call chained onto the result doesn't wait on itself
+            tails.remove(key, result);
+            if (e != null)
+                result.completeExceptionally(e);
+            else
+                result.complete(value);
+        });
+        return result.copy();
+    }
+}
@@ -0,0 +1,131 @@
+package xyz.knaughts.database;
+
+import xyz.knaughts.utils.LongHashSet;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongPredicate;
+
+import static xyz.knaughts.KnaughtsBot.LOG;
+
+/**
+ * Brings the stored servers back in line with the guilds the bot is actually in, fixing the drift left by join and
+ * leave events missed while the bot was down.
+ * <p>
+ * The stored servers are read a page at a time and checked off against a set of the bot's guild IDs; guilds left in
+ * the set afterwards have no record yet. Fixes go through the {@link ServerWriteBehind} queue, which is flushed after
+ * each page, so at most a page of records and a page of fixes are held at once on top of the guild ID set.
+ */
+final class ServerReconciler {
+
+    private final ServerStore store;
+    private final ServerWriteBehind writes;
+    private final int pageSize;
+
+    /**
+     * @param store the store to read servers from.
+     * @param writes the queue fixes are written through.
+     * @param pageSize the number of servers read per page.
+     */
+    ServerReconciler(ServerStore store, ServerWriteBehind writes, int pageSize) {
+        this.store = store;
+        this.writes = writes;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Reconciles the stored servers with the bot's guilds.
+     * @param guildIds the IDs of the guilds the bot is in. Consumed by the reconciliation.
+     * @param owned which stored servers are this process's to reconcile. When the bot is sharded across processes,
+     *              only the servers of local shards are, as the other processes' guilds are missing from the set.
+     * @return a {@link CompletableFuture} that completes with the result once every fix has been flushed.
+     */
+    CompletableFuture<Result> reconcile(LongHashSet guildIds, LongPredicate owned) {
+        final long start = System.nanoTime();
+        final int guilds = guildIds.size();
+        final Counts counts = new Counts();
+
+        return reconcilePage(1, guildIds, owned, counts)
+                .thenCompose(ignored -> createMissing(guildIds, counts))
+                .thenApply(ignored -> new Result(guilds, counts.checked, counts.updated, counts.created, Duration.ofNanos(System.nanoTime() - start)));
+    }
+
+    /**
+     * Checks a page of stored servers, queueing fixes for the ones that are wrong, then moves on to the next page.
+     */
+    private CompletableFuture<Void> reconcilePage(int page, LongHashSet guildIds, LongPredicate owned, Counts counts) {
+        return store.getServers(page, pageSize).thenCompose(records -> {
+            for (final ServerRecord record : records.items()) {
+                final long serverId;
+                try {
+                    serverId = Long.parseLong(record.guildId());
+                } catch (NumberFormatException e) {
+                    LOG.warn("Skipping server record with invalid guild ID: " + record.guildId());
+                    continue;
+                }
+                if (!owned.test(serverId)) continue;
+
+                counts.checked++;
+                final boolean botInServer = guildIds.remove(serverId);
+                if (botInServer != record.botInServer()) {
+                    writes.put(serverId, botInServer);
+                    counts.updated++;
+                }
+            }
+
+            final CompletableFuture<Void> flushed = writes.flushNow();
+            if (records.items().size() < pageSize)
+                return flushed;
+            return flushed.thenCompose(ignored -> reconcilePage(page + 1, guildIds, owned, counts));
+        });
+    }
+
+    /**
+     * Queues records for the guilds that weren't stored, a page at a time.
+     */
+    private CompletableFuture<Void> createMissing(LongHashSet guildIds, Counts counts) {
+        final long[] missing = new long[guildIds.size()];
+        final int[] i = {0};
+        guildIds.forEach(serverId -> missing[i[0]++] = serverId);
+        return createMissing(missing, 0, counts);
+    }
+
+    private CompletableFuture<Void> createMissing(long[] missing, int from, Counts counts) {
+        if (from >= missing.length)
+            return CompletableFuture.completedFuture(null);
+
+        final int to = Math.min(from + pageSize, missing.length);
+        for (int i = from; i < to; i++)
+            writes.put(missing[i], true);
+        counts.created += to - from;
+
+        return writes.flushNow().thenCompose(ignored -> createMissing(missing, to, counts));
+    }
+
+    /**
+     * The outcome of a reconciliation.
+     * @param guilds the number of guilds the bot is in.
+     * @param checked the number of stored servers checked.
+     * @param updated the number of stored servers whose `bot_in_server` was wrong.
+     * @param created the number of guilds that had no record.
+     * @param took how long the reconciliation took.
+     */
+    record Result(int guilds, int checked, int updated, int created, Duration took) {
+
+        /**
+         * @return the number of records written.
+         */
+        int touched() {
+            return updated + created;
+        }
+    }
+
+    /**
+     * Running counts, only touched by one stage of the reconciliation at a time.
+     */
+    private static final class Counts {
+        private int checked;
+        private int updated;
+        private int created;
+    }
+}
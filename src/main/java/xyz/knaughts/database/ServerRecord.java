@@ -0,0 +1,11 @@
+package xyz.knaughts.database;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * Represents a server record as stored in the database.
+ * @param guildId the Discord ID of the server.
+ * @param botInServer whether the bot is in the server.
+ */
+public record ServerRecord(@SerializedName("guild_id") String guildId, @SerializedName("bot_in_server") boolean botInServer) {
+}
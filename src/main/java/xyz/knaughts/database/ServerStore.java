@@ -0,0 +1,42 @@
+package xyz.knaughts.database;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A storage backend for the servers (guilds) Knaughts bot has been added to. Server updates are fire-and-forget;
+ * failures are logged by the store.
+ */
+public interface ServerStore {
+
+    /**
+     * Records that the bot was added to a server.
+     * @param serverId the ID of the server.
+     */
+    void postServer(String serverId);
+
+    /**
+     * Updates whether the bot is in a server.
+     * @param serverId the ID of the server.
+     * @param botInServer whether the bot is in the server.
+     */
+    void patchServer(long serverId, boolean botInServer);
+
+    /**
+     * Records the latest state of several servers at once, creating the ones that aren't stored yet.
+     * @param servers whether the bot is in each server, keyed by server ID.
+     * @return a {@link CompletableFuture} that completes with the IDs of the servers that couldn't be updated, once
+     * the others are written.
+     */
+    CompletableFuture<Set<Long>> putServers(Map<Long, Boolean> servers);
+
+    /**
+     * Gets a page of server records, in a stable order so that paging through them sees every server once. The
+     * totals of the page may be skipped; the last page is the first with fewer than <code>perPage</code> records.
+     * @param page the page to get, starting at 1.
+     * @param perPage the number of servers per page.
+     * @return a {@link CompletableFuture} that completes with the page of records.
+     */
+    CompletableFuture<RecordList<ServerRecord>> getServers(int page, int perPage);
+}
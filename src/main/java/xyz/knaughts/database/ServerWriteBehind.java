@@ -0,0 +1,165 @@
+package xyz.knaughts.database;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static xyz.knaughts.KnaughtsBot.LOG;
+
+/**
+ * A write-behind queue for server updates. Guild joins and leaves are recorded in memory, where later updates to a
+ * server replace earlier ones, and are written to the {@link ServerStore} in batches on a fixed interval, or sooner
+ * once a full batch is waiting. Batches are written one at a time, so a server's updates reach the store in order.
+ * <p>
+ * Servers that fail to update are put back in the queue, unless a newer update for them has arrived since.
+ */
+final class ServerWriteBehind {
+
+    /**
+     * How long a flush waits for a batch to be written before giving up on it, in milliseconds.
+     */
+    private static final long BATCH_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private final ServerStore store;
+    private final int batchSize;
+    private final Map<Long, Boolean> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "knaughts-server-writes");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param store the store to write servers to.
+     * @param flushInterval how often pending updates are written, in milliseconds.
+     * @param batchSize the maximum number of servers written per batch.
+     */
+    ServerWriteBehind(ServerStore store, long flushInterval, int batchSize) {
+        this.store = store;
+        this.batchSize = batchSize;
+        scheduler.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues the latest state of a server, replacing any update to it that hasn't been written yet.
+     * @param serverId the ID of the server.
+     * @param botInServer whether the bot is in the server.
+     */
+    void put(long serverId, boolean botInServer) {
+        pending.put(serverId, botInServer);
+        if (pending.size() == batchSize)
+            flushNow();
+    }
+
+    /**
+     * Writes the pending updates now rather than waiting for the next interval.
+     * @return a {@link CompletableFuture} that completes once the flush has run.
+     */
+    CompletableFuture<Void> flushNow() {
+        try {
+            return CompletableFuture.runAsync(this::flush, scheduler);
+        } catch (RejectedExecutionException e) { // shutting down, which flushes anyway
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * @return the number of servers waiting to be written.
+     */
+    int pending() {
+        return pending.size();
+    }
+
+    /**
+     * Stops the flush schedule and writes everything still pending.
+     */
+    void shutdown() {
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(BATCH_TIMEOUT, TimeUnit.MILLISECONDS))
+                LOG.warn("Timed out waiting for server writes to finish.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // once, as retrying failures here could hold up shutdown indefinitely
+        final int remaining = pending.size();
+        if (remaining > 0) {
+            LOG.info("Flushing " + remaining + " pending server updates...");
+            writeBatches(remaining);
+        }
+        if (!pending.isEmpty())
+            LOG.error(pending.size() + " server updates couldn't be written before shutdown.");
+    }
+
+    /**
+     * Writes the pending updates in batches. Updates that arrive during the flush wait for the next one.
+     */
+    private void flush() {
+        try {
+            writeBatches(pending.size());
+        } catch (RuntimeException e) {
+            LOG.error("Failed flushing server updates: " + e);
+        }
+    }
+
+    /**
+     * Writes up to the given number of pending updates, one batch at a time.
+     * @param limit the maximum number of updates to write.
+     */
+    private void writeBatches(int limit) {
+        int written = 0;
+        while (written < limit && !pending.isEmpty()) {
+            final Map<Long, Boolean> batch = takeBatch(Math.min(batchSize, limit - written));
+            if (batch.isEmpty()) return;
+            written += batch.size();
+
+            final long start = System.nanoTime();
+            Set<Long> failed;
+            try {
+                failed = store.putServers(batch).get(BATCH_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                LOG.error("Failed writing a batch of " + batch.size() + " server updates: " + e);
+                failed = batch.keySet();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed = batch.keySet();
+            }
+
+            DatabaseMetrics.record("putServers", start, !failed.isEmpty());
+
+            for (final Long serverId : failed)
+                pending.putIfAbsent(serverId, batch.get(serverId));
+            if (!failed.isEmpty()) {
+                LOG.warn(failed.size() + " server updates failed and will be retried.");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes up to a batch of updates from the pending map.
+     * @param size the maximum number of updates to take.
+     * @return the updates, keyed by server ID.
+     */
+    private Map<Long, Boolean> takeBatch(int size) {
+        final Map<Long, Boolean> batch = new HashMap<>();
+        final Iterator<Long> serverIds = pending.keySet().iterator();
+        while (batch.size() < size && serverIds.hasNext()) {
+            final Long serverId = serverIds.next();
+            final Boolean botInServer = pending.remove(serverId);
+            if (botInServer != null)
+                batch.put(serverId, botInServer);
+        }
+        return batch;
+    }
+}
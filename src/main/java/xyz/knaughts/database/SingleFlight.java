@@ -0,0 +1,65 @@
+package xyz.knaughts.database;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls with the same key, so that only the first one runs and the rest share its result. A
+ * key is only in flight until its call completes, so results aren't kept around; caching is left to the caller, which
+ * should {@link #forget} keys whose data it changes.
+ * @param <K> the type of the keys.
+ * @param <V> the type of the results.
+ */
+final class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Runs a call, unless a call with the same key is already in flight, in which case its result is shared.
+     * @param key the key identifying the call.
+     * @param call the call to run if none is in flight for the key.
+     * @return a {@link CompletableFuture} that completes with the result of the call. Each caller gets its own copy,
+     * so one caller completing or cancelling it doesn't affect the others.
+     */
+    CompletableFuture<V> run(K key, Supplier<CompletableFuture<V>> call) {
+        final CompletableFuture<V> flight = new CompletableFuture<>();
+        final CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null)
+            return existing.copy();
+
+        CompletableFuture<V> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+
+        result.whenComplete((value, e) -> {
+            // removed before completing, so callers chained onto the result can start a fresh call for the key
+            inFlight.remove(key, flight);
+            if (e != null)
+                flight.completeExceptionally(e);
+            else
+                flight.complete(value);
+        });
+        return flight.copy();
+    }
+
+    /**
+     * Stops sharing the calls in flight for the matching keys, so the next call for them runs again. The calls
+     * themselves still complete for the callers already waiting on them.
+     * @param filter the keys to forget.
+     */
+    void forget(Predicate<K> filter) {
+        inFlight.keySet().removeIf(filter);
+    }
+
+    /**
+     * @return the number of keys with a call in flight.
+     */
+    int size() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,308 @@
+package xyz.knaughts.database;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import okhttp3.FormBody;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import xyz.knaughts.utils.Env;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import static xyz.knaughts.KnaughtsBot.LOG;
+
+/**
+ * Keeps the PocketBase admin auth token fresh and hands it out to every request.
+ * <p>
+ * The token is refreshed on a dedicated thread shortly before the expiry in its JWT, and at most one refresh is in
+ * flight at a time: requests sent while the token is expired are chained onto that refresh rather than going out with
+ * a dead token, so no thread is blocked waiting on it, and a failed refresh is retried with a growing delay instead of
+ * ending the schedule. As a last resort, a request turned down with a 401 refreshes the token it was sent with and is
+ * replayed once.
+ * <p>
+ * PocketBase 0.23 turned admins into the <code>_superusers</code> auth collection and removed the admin API, which is
+ * also the version that added the batch endpoint {@link PocketBaseStore} writes servers with. The superuser endpoints
+ * are tried first, and the admin endpoints are only used if the database doesn't have them.
+ */
+final class TokenManager {
+
+    /**
+     * How long before the token expires it's refreshed, capped at half its remaining lifetime.
+     */
+    private static final long REFRESH_MARGIN = Env.getLong("KNAUGHTS_DB_TOKEN_REFRESH_MARGIN", TimeUnit.MINUTES.toMillis(5));
+
+    /**
+     * How often the token is refreshed when its expiry can't be read from it.
+     */
+    private static final long REFRESH_INTERVAL = Env.getLong("KNAUGHTS_DB_ADMIN_REFRESH_INTERVAL", TimeUnit.HOURS.toMillis(1));
+
+    /**
+     * The delay before a failed refresh is retried, doubled after each further failure up to {@link #MAX_RETRY_DELAY}.
+     */
+    private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Tokens this close to their expiry are treated as expired, making up for clock skew and the time in flight.
+     */
+    private static final long EXPIRY_SKEW = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * The base paths of the auth endpoints of PocketBase 0.23 and later, and of earlier versions.
+     */
+    private static final String SUPERUSERS_PATH = "/api/collections/_superusers";
+    private static final String ADMINS_PATH = "/api/admins";
+
+    /**
+     * The client auth requests are sent with.
+     */
+    private final OkHttpClient client;
+    private final String baseUrl;
+
+    /**
+     * How long a request waits on a refresh before failing.
+     */
+    private final long waitTimeout;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "knaughts-db-token");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The base path of the auth endpoints the database has, which is {@link #ADMINS_PATH} once the superuser endpoints
+     * turned out to be missing.
+     */
+    private volatile String authPath = SUPERUSERS_PATH;
+
+    /**
+     * The current token. Only replaced on the {@link #scheduler} thread, but read by every request.
+     */
+    private volatile Token current;
+
+    /**
+     * The refresh in flight, or null.
+     */
+    private final AtomicReference<CompletableFuture<Token>> refreshing = new AtomicReference<>();
+
+    private long retryDelay = RETRY_DELAY;
+
+    /**
+     * @param client the client to send auth requests with.
+     * @param baseUrl the base URL of the database.
+     * @param waitTimeout how long a request waits on a refresh before failing, in milliseconds.
+     */
+    TokenManager(OkHttpClient client, String baseUrl, long waitTimeout) {
+        this.client = client;
+        this.baseUrl = baseUrl;
+        this.waitTimeout = waitTimeout;
+    }
+
+    /**
+     * Authenticates with the admin identity and password, blocking until done, and schedules the first refresh.
+     * @throws RuntimeException if the authentication fails.
+     */
+    void start() {
+        final Token token = authenticate(null);
+        current = token;
+        scheduleRefresh(token);
+    }
+
+    /**
+     * Returns the token to send a request with: the current one, or the refresh in flight if it has expired.
+     * @return a {@link CompletableFuture} that completes with the token's value, or fails if the refresh fails or
+     * takes longer than the wait timeout.
+     */
+    CompletableFuture<String> token() {
+        final Token token = current;
+        if (token != null && !token.expired())
+            return CompletableFuture.completedFuture(token.value());
+        return await(refresh(token));
+    }
+
+    /**
+     * Returns the token to replay a request turned down with a 401 with, refreshing the token it was sent with unless
+     * that has been done already.
+     * @param sent the token value the request was sent with.
+     * @return a {@link CompletableFuture} that completes with the new token's value.
+     */
+    CompletableFuture<String> refreshed(String sent) {
+        final Token token = current;
+        if (token != null && !token.value().equals(sent) && !token.expired())
+            return CompletableFuture.completedFuture(token.value());
+        return await(refresh(token));
+    }
+
+    /**
+     * Starts a refresh of a token, unless one is already in flight or the token has already been replaced.
+     * @param stale the token to refresh.
+     * @return a {@link CompletableFuture} that completes with the new token.
+     */
+    private CompletableFuture<Token> refresh(Token stale) {
+        final Token token = current;
+        if (token != stale && token != null && !token.expired())
+            return CompletableFuture.completedFuture(token);
+
+        final CompletableFuture<Token> future = new CompletableFuture<>();
+        final CompletableFuture<Token> inFlight = refreshing.compareAndExchange(null, future);
+        if (inFlight != null)
+            return inFlight;
+
+        scheduler.execute(() -> runRefresh(future));
+        return future;
+    }
+
+    /**
+     * Refreshes the token on the {@link #scheduler} thread and schedules the next refresh, whether this one worked or
+     * not.
+     */
+    private void runRefresh(CompletableFuture<Token> future) {
+        final long start = System.nanoTime();
+        try {
+            final Token token = authenticate(current);
+            current = token;
+            retryDelay = RETRY_DELAY;
+            DatabaseMetrics.record("tokenRefresh", start, false);
+            refreshing.set(null);
+            future.complete(token);
+            scheduleRefresh(token);
+        } catch (RuntimeException e) {
+            LOG.error(e.getMessage() + " Retrying in " + retryDelay + "ms.");
+            DatabaseMetrics.record("tokenRefresh", start, true);
+            refreshing.set(null);
+            future.completeExceptionally(e);
+            scheduler.schedule(() -> refresh(current), retryDelay, TimeUnit.MILLISECONDS);
+            retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+        }
+    }
+
+    /**
+     * Schedules the refresh of a token shortly before it expires.
+     */
+    private void scheduleRefresh(Token token) {
+        final long delay;
+        if (token.expiry() == null) {
+            delay = REFRESH_INTERVAL;
+        } else {
+            final long lifetime = token.expiry().toEpochMilli() - System.currentTimeMillis();
+            delay = Math.max(0, lifetime - Math.min(REFRESH_MARGIN, lifetime / 2));
+        }
+        scheduler.schedule(() -> refresh(token), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits on a refresh for up to {@link #waitTimeout}, without failing other requests waiting on the same refresh.
+     * @return a {@link CompletableFuture} that completes with the new token's value.
+     */
+    private CompletableFuture<String> await(CompletableFuture<Token> refresh) {
+        return refresh.thenApply(Token::value).orTimeout(waitTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Authenticates an admin account with the database. A token that hasn't expired yet is refreshed; otherwise, or if
+     * that fails, the admin identity and password are used.
+     * @param token the current token, or null.
+     * @return the new token.
+     */
+    private Token authenticate(Token token) {
+        if (token != null && !token.expired()) {
+            try {
+                return send(path -> new Request.Builder()
+                        .addHeader("Authorization", "Bearer " + token.value())
+                        .url(baseUrl + path + "/auth-refresh")
+                        .post(RequestBody.create(new byte[0]))
+                        .build());
+            } catch (RuntimeException e) {
+                LOG.warn(e.getMessage() + " Signing in with the admin password instead.");
+            }
+        }
+
+        final RequestBody body = new FormBody.Builder()
+                .add("identity", System.getenv("KNAUGHTS_DB_IDENTITY"))
+                .add("password", System.getenv("KNAUGHTS_DB_PASSWORD"))
+                .build();
+        return send(path -> new Request.Builder()
+                .url(baseUrl + path + "/auth-with-password")
+                .addHeader("Content-Type", "multipart/form-data")
+                .post(body)
+                .build());
+    }
+
+    /**
+     * Sends an auth request and reads the token from its response.
+     * @param request builds the request against the base path of the auth endpoints.
+     * @return the new token.
+     */
+    private Token send(Function<String, Request> request) {
+        try (Response resp = execute(request)) {
+            if (resp.body() != null && resp.code() == 200) {
+                final String value = Responses.readToken(resp.body().source());
+                LOG.info("Admin auth token successfully generated.");
+                return new Token(value, expiryOf(value));
+            } else {
+                throw new RuntimeException("Response for admin auth token not okay.");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("There was an error getting the admin auth token: " + e);
+        }
+    }
+
+    /**
+     * Sends an auth request to the endpoints at {@link #authPath}, switching to the admin endpoints for good if the
+     * superuser endpoints are missing.
+     * @param request builds the request against the base path of the auth endpoints.
+     * @return the response.
+     * @throws IOException if the request couldn't be sent.
+     */
+    private Response execute(Function<String, Request> request) throws IOException {
+        final Response resp = client.newCall(request.apply(authPath)).execute();
+        if (resp.code() != 404 || !authPath.equals(SUPERUSERS_PATH)) return resp;
+
+        resp.close();
+        LOG.info("The database predates superusers, signing in as an admin instead.");
+        authPath = ADMINS_PATH;
+        return client.newCall(request.apply(ADMINS_PATH)).execute();
+    }
+
+    /**
+     * Reads the expiry of a JWT from its <code>exp</code> claim.
+     * @param jwt the token.
+     * @return when the token expires, or null if it couldn't be read.
+     */
+    static Instant expiryOf(String jwt) {
+        final String[] parts = jwt.split("\\.");
+        if (parts.length < 2) return null;
+
+        try {
+            final String payload = new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8);
+            final JsonObject claims = JsonParser.parseString(payload).getAsJsonObject();
+            return claims.has("exp") ? Instant.ofEpochSecond(claims.get("exp").getAsLong()) : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * An admin auth token.
+     * @param value the token.
+     * @param expiry when it expires, or null if unknown.
+     */
+    private record Token(String value, Instant expiry) {
+
+        boolean expired() {
+            return expiry != null && System.currentTimeMillis() >= expiry.toEpochMilli() - EXPIRY_SKEW;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package xyz.knaughts.database;
+
+import okio.BufferedSource;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A {@link Reader} that decodes UTF-8 straight out of an Okio {@link BufferedSource}. Unlike an
+ * {@link java.io.InputStreamReader}, which allocates an 8 KiB buffer per stream, it decodes through a small buffer
+ * sized to match Gson's {@link com.google.gson.stream.JsonReader}.
+ */
+final class Utf8SourceReader extends Reader {
+
+    private static final int BUFFER_SIZE = 1024;
+
+    private final BufferedSource source;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * Bytes read from the source but not decoded yet, kept in read mode.
+     */
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE).flip();
+
+    private boolean endOfInput;
+
+    Utf8SourceReader(BufferedSource source) {
+        this.source = source;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) return 0;
+
+        final CharBuffer chars = CharBuffer.wrap(cbuf, off, len);
+        while (true) {
+            final CoderResult result = decoder.decode(bytes, chars, endOfInput);
+            if (result.isError()) result.throwException();
+
+            final int decoded = chars.position() - off;
+            if (endOfInput) {
+                decoder.flush(chars);
+                final int flushed = chars.position() - off;
+                return flushed == 0 ? -1 : flushed;
+            }
+            // hand back what is already decoded rather than block for more of the body
+            if (result.isOverflow() || (decoded > 0 && source.getBuffer().size() == 0))
+                return decoded;
+
+            bytes.compact();
+            final int read = source.read(bytes);
+            bytes.flip();
+            if (read == -1) endOfInput = true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
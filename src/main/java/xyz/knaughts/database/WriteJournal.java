@@ -0,0 +1,470 @@
+package xyz.knaughts.database;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import xyz.knaughts.models.Note;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static xyz.knaughts.KnaughtsBot.LOG;
+import static xyz.knaughts.database.Database.errorOf;
+
+/**
+ * A local write-ahead journal of note writes, so notes can be created and edited while the database is unreachable.
+ * <p>
+ * Writes are appended to the journal already encrypted, one JSON line each, and acknowledged once the journal has been
+ * synced to disk. Syncs are batched: a write waits at most the sync interval for the next sync, which covers every
+ * write since the last one. The writes are then replayed to the {@link NoteStore} in the background, in the order they
+ * were made; while the store is unreachable, the write at the head of the journal is retried with a growing delay
+ * and the writes behind it wait.
+ * <p>
+ * If a sync fails, the writes it covered are reported as failed, dropped and cancelled by a tombstone line, so they're
+ * not replayed later, even after a restart. Writes are only replayed once they've been synced.
+ * <p>
+ * A write the store rejects outright, such as an edit of a note that no longer exists, was already acknowledged, so
+ * rather than being dropped it's set aside in a file next to the journal and handed back to the bot, which sends it to
+ * its owner.
+ * <p>
+ * Notes get their IDs here rather than from the store, so a replayed write always targets the same note and replaying
+ * it twice is harmless. The sequence number of the last replayed write is checkpointed to a file next to the journal,
+ * and a restarted bot resumes replaying after it. The journal is truncated whenever every write in it has been
+ * replayed.
+ */
+final class WriteJournal implements Closeable {
+
+    private static final String ID_CHARS = "abcdefghijklmnopqrstuvwxyz0123456789";
+    private static final int ID_LENGTH = 15;
+
+    /**
+     * The delay before a write that couldn't be replayed is retried, doubled after each further failure up to
+     * {@link #MAX_RETRY_DELAY}.
+     */
+    private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_RETRY_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+    private static final Gson gson = new Gson();
+    private static final SecureRandom random = new SecureRandom();
+
+    private final Path path;
+    private final Path checkpointPath;
+    private final Path rejectedPath;
+    private final NoteStore store;
+    private final long syncInterval;
+
+    /**
+     * Called with the owner's user ID after each write reaches the store.
+     */
+    private final Consumer<String> onReplayed;
+
+    /**
+     * Called with each write the store rejected.
+     */
+    private final Consumer<NoteRecord> onRejected;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "knaughts-write-journal");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The writes that haven't been replayed yet, in order.
+     */
+    private final Queue<Pending> pending = new ArrayDeque<>();
+
+    /**
+     * The writes waiting for the next sync.
+     */
+    private final List<Pending> unsynced = new ArrayList<>();
+
+    /**
+     * The last pending write of each note, which a delete of the note waits on.
+     */
+    private final Map<String, CompletableFuture<Void>> lastWrites = new HashMap<>();
+
+    private FileChannel channel;
+    private Writer writer;
+    private long nextSeq;
+
+    /**
+     * The sequence number of the first write that hasn't been synced yet, which isn't replayed until it is.
+     */
+    private long syncedSeq;
+    private boolean replaying;
+    private long retryDelay = RETRY_DELAY;
+
+    private WriteJournal(Path path, NoteStore store, long syncInterval, Consumer<String> onReplayed, Consumer<NoteRecord> onRejected) {
+        this.path = path;
+        this.checkpointPath = path.resolveSibling(path.getFileName() + ".checkpoint");
+        this.rejectedPath = path.resolveSibling(path.getFileName() + ".rejected");
+        this.store = store;
+        this.syncInterval = syncInterval;
+        this.onReplayed = onReplayed;
+        this.onRejected = onRejected;
+    }
+
+    /**
+     * Opens a journal and starts replaying the writes left in it by the last run.
+     * @param path the path of the journal file.
+     * @param store the store writes are replayed to.
+     * @param syncInterval the longest a write waits to be synced to disk, in milliseconds.
+     * @param onReplayed called with the owner's user ID after each write reaches the store.
+     * @param onRejected called with each write the store rejected, on the journal's thread.
+     * @return the opened journal.
+     */
+    static WriteJournal open(Path path, NoteStore store, long syncInterval, Consumer<String> onReplayed, Consumer<NoteRecord> onRejected) {
+        final WriteJournal journal = new WriteJournal(path, store, syncInterval, onReplayed, onRejected);
+        try {
+            if (path.getParent() != null)
+                Files.createDirectories(path.getParent());
+            journal.load();
+            journal.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            journal.writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(journal.channel), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new RuntimeException("There was an error opening the write journal at " + path + ": " + e);
+        }
+
+        LOG.info("Write journal opened with " + journal.pending.size() + " writes to replay.");
+        journal.scheduler.execute(journal::replayNext);
+        return journal;
+    }
+
+    /**
+     * Journals the creation of a note, giving it its ID.
+     * @param userId the Discord user ID of the user creating the note.
+     * @param title the encrypted title of the note.
+     * @param content the encrypted content of the note.
+     * @param searchTokens the blind index tokens of the note's words.
+     * @return a {@link CompletableFuture} that completes with the note once the write is on disk.
+     */
+    CompletableFuture<NoteRecord> postNote(String userId, String title, String content, String searchTokens) {
+        final String now = Note.formatTimestamp(Instant.now());
+        final NoteRecord record = new NoteRecord(newId(), title, content, now, now, userId, searchTokens);
+        return append(Entry.POST, userId, record);
+    }
+
+    /**
+     * Journals an update of a note. Whether the note exists is only found out when the write is replayed; an update
+     * the store rejects is set aside and handed to the rejection callback.
+     * @param userId the Discord user ID of the user updating the note.
+     * @param noteId the ID of the note to update.
+     * @param title the encrypted title of the note.
+     * @param content the encrypted content of the note.
+     * @param searchTokens the blind index tokens of the note's words.
+     * @param created when the note was created, if known, otherwise now.
+     * @return a {@link CompletableFuture} that completes with the note once the write is on disk.
+     */
+    CompletableFuture<NoteRecord> patchNote(String userId, String noteId, String title, String content, String searchTokens, Instant created) {
+        final String now = Note.formatTimestamp(Instant.now());
+        final NoteRecord record = new NoteRecord(noteId, title, content,
+                created == null ? now : Note.formatTimestamp(created), now, userId, searchTokens);
+        return append(Entry.PATCH, userId, record);
+    }
+
+    /**
+     * Returns a future that completes once the journaled writes of a note have been replayed, so a delete sent after it
+     * can't be overtaken by them.
+     * @param noteId the ID of the note.
+     * @return the future, which is already complete if the note has no pending writes.
+     */
+    synchronized CompletableFuture<Void> replayed(String noteId) {
+        return lastWrites.getOrDefault(noteId, CompletableFuture.completedFuture(null));
+    }
+
+    /**
+     * @return the number of writes that haven't been replayed yet.
+     */
+    synchronized int pending() {
+        return pending.size();
+    }
+
+    /**
+     * Syncs the journal to disk and closes it. Writes that haven't been replayed stay in it for the next run.
+     */
+    @Override
+    public synchronized void close() {
+        scheduler.shutdown();
+        try {
+            writer.flush();
+            channel.force(false);
+            writer.close();
+        } catch (IOException e) {
+            LOG.error("Failed closing the write journal: " + e);
+        }
+    }
+
+    private CompletableFuture<NoteRecord> append(String op, String userId, NoteRecord record) {
+        final Pending write;
+        synchronized (this) {
+            final Entry entry = new Entry(nextSeq++, op, userId, record.id(), record.title(), record.content(),
+                    record.created(), record.updated(), record.searchTokens());
+            try {
+                writer.write(gson.toJson(entry));
+                writer.write('\n');
+                writer.flush();
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(errorOf("Failed writing a note to the write journal: " + e));
+            }
+
+            write = new Pending(entry, new CompletableFuture<>(), new CompletableFuture<>());
+            pending.add(write);
+            lastWrites.put(record.id(), write.replayed());
+            if (unsynced.isEmpty())
+                scheduler.schedule(this::sync, syncInterval, TimeUnit.MILLISECONDS);
+            unsynced.add(write);
+        }
+        return write.synced().thenApply(ignored -> record);
+    }
+
+    /**
+     * Syncs the journal to disk, acknowledging every write since the last sync, and starts replaying them. If the sync
+     * fails, the writes are cancelled instead.
+     */
+    private void sync() {
+        final List<Pending> synced;
+        synchronized (this) {
+            synced = new ArrayList<>(unsynced);
+            unsynced.clear();
+            try {
+                channel.force(false);
+                syncedSeq = nextSeq;
+            } catch (IOException e) {
+                final RuntimeException error = errorOf("Failed syncing the write journal: " + e);
+                cancel(synced);
+                synced.forEach(write -> write.synced().completeExceptionally(error));
+                return;
+            }
+        }
+        synced.forEach(write -> write.synced().complete(null));
+        replayNext();
+    }
+
+    /**
+     * Drops writes that couldn't be synced, and appends a tombstone for each so that, should they reach the disk after
+     * all, they're skipped when the journal is loaded again. None of them have been replayed, as they weren't synced.
+     * @param writes the writes to cancel.
+     */
+    private synchronized void cancel(List<Pending> writes) {
+        pending.removeAll(writes);
+        for (final Pending write : writes) {
+            final String noteId = write.entry().id();
+            lastWrites.remove(noteId, write.replayed());
+            write.replayed().complete(null);
+            try {
+                writer.write(gson.toJson(new Entry(write.entry().seq(), Entry.CANCEL, write.entry().userId(), noteId,
+                        null, null, null, null, null)));
+                writer.write('\n');
+            } catch (IOException e) {
+                LOG.error("Failed cancelling journaled write " + write.entry().seq() + ": " + e);
+            }
+        }
+        // an earlier write of the same note is still pending, so a delete must wait on it again
+        for (final Pending write : pending)
+            lastWrites.put(write.entry().id(), write.replayed());
+        try {
+            writer.flush();
+            channel.force(false);
+        } catch (IOException e) {
+            LOG.error("Failed syncing the write journal's tombstones: " + e);
+        }
+    }
+
+    /**
+     * Replays the write at the head of the journal unless a replay is already running, then moves on to the next one.
+     * Only ever runs on the {@link #scheduler} thread.
+     */
+    private void replayNext() {
+        final Pending head;
+        synchronized (this) {
+            head = pending.peek();
+            if (replaying || head == null || head.entry().seq() >= syncedSeq) return;
+            replaying = true;
+        }
+
+        final Entry entry = head.entry();
+        final NoteRecord record = new NoteRecord(entry.id(), entry.title(), entry.content(), entry.created(), entry.updated(),
+                entry.userId(), entry.searchTokens());
+        store.putNote(entry.userId(), record, entry.op().equals(Entry.POST)).whenCompleteAsync((stored, e) -> {
+            if (e != null) {
+                // stays marked as replaying until the retry, so new writes don't cut the backoff short
+                LOG.warn("Failed replaying journaled write " + entry.seq() + ", retrying in " + retryDelay + "ms.");
+                scheduler.schedule(() -> {
+                    synchronized (this) {
+                        replaying = false;
+                    }
+                    replayNext();
+                }, retryDelay, TimeUnit.MILLISECONDS);
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+                return;
+            }
+
+            if (!stored)
+                reject(entry, record);
+            retryDelay = RETRY_DELAY;
+            checkpoint(entry.seq());
+            synchronized (this) {
+                pending.poll();
+                lastWrites.remove(entry.id(), head.replayed());
+                replaying = false;
+                if (pending.isEmpty() && unsynced.isEmpty())
+                    truncate();
+            }
+            head.replayed().complete(null);
+            onReplayed.accept(entry.userId());
+            replayNext();
+        }, scheduler);
+    }
+
+    /**
+     * Sets aside a write the store rejected, syncing it to the rejected writes file before the journal moves past it,
+     * and hands it to the rejection callback.
+     */
+    private void reject(Entry entry, NoteRecord record) {
+        LOG.error("The database rejected journaled " + entry.op() + " of note " + entry.id() + ", setting it aside in " + rejectedPath + ".");
+        try (FileChannel rejected = FileChannel.open(rejectedPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            rejected.write(StandardCharsets.UTF_8.encode(gson.toJson(entry) + "\n"));
+            rejected.force(false);
+        } catch (IOException e) {
+            LOG.error("Failed setting aside rejected journaled write " + entry.seq() + ": " + e);
+        }
+
+        try {
+            onRejected.accept(record);
+        } catch (RuntimeException e) {
+            LOG.error("Failed handing back rejected journaled write " + entry.seq() + ": " + e);
+        }
+    }
+
+    /**
+     * Records the sequence number of the last replayed write. The checkpoint is written next to the old one and moved
+     * over it, so a crash leaves either the old or the new one. If it can't be written, the write is simply replayed
+     * again after a restart.
+     */
+    private void checkpoint(long seq) {
+        final Path tmp = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+        try {
+            Files.writeString(tmp, Long.toString(seq), StandardCharsets.UTF_8);
+            Files.move(tmp, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.error("Failed checkpointing the write journal: " + e);
+        }
+    }
+
+    /**
+     * Empties the journal once every write in it has been replayed. Sequence numbers carry on from the checkpoint, so
+     * they keep growing across truncations.
+     */
+    private void truncate() {
+        try {
+            writer.flush();
+            channel.truncate(0);
+            channel.force(false);
+        } catch (IOException e) {
+            LOG.error("Failed truncating the write journal: " + e);
+        }
+    }
+
+    /**
+     * Reads the writes after the checkpoint back from the journal. A malformed last line, left by a crash halfway
+     * through a write, is skipped; that write was never acknowledged.
+     * @throws IOException if the journal or the checkpoint can't be read.
+     */
+    private void load() throws IOException {
+        long checkpoint = -1;
+        if (Files.exists(checkpointPath)) {
+            try {
+                checkpoint = Long.parseLong(Files.readString(checkpointPath, StandardCharsets.UTF_8).trim());
+            } catch (NumberFormatException e) {
+                LOG.warn("Ignoring malformed write journal checkpoint, replaying the whole journal.");
+            }
+        }
+        nextSeq = checkpoint + 1;
+        if (!Files.exists(path)) return;
+
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) continue;
+                try {
+                    final Entry entry = gson.fromJson(line, Entry.class);
+                    if (entry == null || entry.op() == null || entry.id() == null)
+                        throw new JsonParseException("incomplete entry");
+                    nextSeq = Math.max(nextSeq, entry.seq() + 1);
+                    if (entry.seq() <= checkpoint) continue;
+
+                    if (entry.op().equals(Entry.CANCEL))
+                        pending.removeIf(write -> write.entry().seq() == entry.seq());
+                    else
+                        pending.add(new Pending(entry, CompletableFuture.completedFuture(null), new CompletableFuture<>()));
+                } catch (JsonParseException e) {
+                    LOG.warn("Skipping malformed line of the write journal: " + e.getMessage());
+                }
+            }
+        }
+        for (final Pending write : pending)
+            lastWrites.put(write.entry().id(), write.replayed());
+        // whatever was read back is on disk
+        syncedSeq = nextSeq;
+    }
+
+    private static String newId() {
+        final StringBuilder sb = new StringBuilder(ID_LENGTH);
+        for (int i = 0; i < ID_LENGTH; i++)
+            sb.append(ID_CHARS.charAt(random.nextInt(ID_CHARS.length())));
+        return sb.toString();
+    }
+
+    /**
+     * A write waiting to be replayed.
+     * @param entry the journaled write.
+     * @param synced completes once the write has been synced to disk, or fails if it couldn't be.
+     * @param replayed completes once the write has reached the store or been dropped.
+     */
+    private record Pending(Entry entry, CompletableFuture<Void> synced, CompletableFuture<Void> replayed) {
+    }
+
+    /**
+     * A line of the journal.
+     * @param seq the sequence number of the write.
+     * @param op the kind of write: {@link #POST} or {@link #PATCH}, or {@link #CANCEL} for the tombstone of an earlier
+     *           write with the same sequence number that was never synced.
+     * @param userId the Discord user ID of the note's owner.
+     * @param id the note ID.
+     * @param title the encrypted title.
+     * @param content the encrypted content.
+     * @param created when the note was created.
+     * @param updated when the note was written.
+     * @param searchTokens the blind index tokens of the note's words.
+     */
+    private record Entry(long seq, String op, String userId, String id, String title, String content, String created,
+                         String updated, String searchTokens) {
+        private static final String POST = "post";
+        private static final String PATCH = "patch";
+        private static final String CANCEL = "cancel";
+    }
+}
@@ -1,16 +1,78 @@
 package xyz.knaughts.events;
 
 import xyz.knaughts.KnaughtsBot;
+import xyz.knaughts.database.Database;
+import xyz.knaughts.utils.LongHashSet;
+import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.events.GenericEvent;
 import net.dv8tion.jda.api.events.session.ReadyEvent;
 import net.dv8tion.jda.api.hooks.EventListener;
+import net.dv8tion.jda.api.sharding.ShardManager;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Represents when a shard is ready. Shard 0 registers the slash commands, which are global, so they are only
+ * registered once however many processes the bot is sharded across. Once every local shard is ready, the stored
+ * servers of the local shards are reconciled with their guilds. Guilds that are unavailable because of a Discord outage
+ * still count as guilds the bot is in, so their servers aren't marked as left.
+ */
 public class OnReadyEvent implements EventListener {
+
+    private final Set<Integer> readyShards = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean reconciled = new AtomicBoolean();
+    private final int localShards;
+
+    /**
+     * @param localShards the number of shards this process runs, or 0 if it runs every shard.
+     */
+    public OnReadyEvent(int localShards) {
+        this.localShards = localShards;
+    }
+
     @Override
     public void onEvent(@NotNull GenericEvent event) {
-        if (event instanceof ReadyEvent) {
-            KnaughtsBot.LOG.info("Knaughts bot is ready!");
+        if (!(event instanceof ReadyEvent)) return;
+
+        final JDA shard = event.getJDA();
+        final int shardId = shard.getShardInfo().getShardId();
+        KnaughtsBot.LOG.info("Knaughts bot shard " + shard.getShardInfo().getShardString() + " is ready!");
+
+        if (shardId == 0)
+            KnaughtsBot.registerCommands(shard);
+
+        readyShards.add(shardId);
+        final ShardManager shardManager = shard.getShardManager();
+        if (shardManager == null)
+            reconcile(List.of(shard), Set.of(0), 1);
+        else if (readyShards.size() >= (localShards > 0 ? localShards : shardManager.getShardsTotal()))
+            reconcile(shardManager.getShards(), Set.copyOf(readyShards), shardManager.getShardsTotal());
+    }
+
+    /**
+     * Reconciles the stored servers of the local shards with their guilds, once per process.
+     * @param shards the local shards.
+     * @param localShards the IDs of the local shards.
+     * @param shardsTotal the total number of shards across all processes.
+     */
+    private void reconcile(List<JDA> shards, Set<Integer> localShards, int shardsTotal) {
+        if (!reconciled.compareAndSet(false, true)) return;
+
+        int size = 0;
+        for (final JDA shard : shards)
+            size += (int) shard.getGuildCache().size() + shard.getUnavailableGuilds().size();
+        final LongHashSet guildIds = new LongHashSet(size);
+        for (final JDA shard : shards) {
+            shard.getGuildCache().forEachUnordered(guild -> guildIds.add(guild.getIdLong()));
+            // unavailable guilds aren't in the cache, but the bot is still in them
+            for (final String guildId : shard.getUnavailableGuilds())
+                guildIds.add(Long.parseLong(guildId));
         }
+        // the shard of a guild, as documented by Discord
+        Database.reconcileServers(guildIds, guildId -> localShards.contains((int) ((guildId >>> 22) % shardsTotal)));
     }
 }
@@ -0,0 +1,124 @@
+package xyz.knaughts.events;
+
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.events.GenericEvent;
+import net.dv8tion.jda.api.hooks.EventListener;
+import net.dv8tion.jda.api.sharding.ShardManager;
+import org.jetbrains.annotations.NotNull;
+import xyz.knaughts.metrics.Metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import static xyz.knaughts.KnaughtsBot.LOG;
+
+/**
+ * Tracks the health of each local shard: its gateway status, gateway ping and the rate of events it receives. The
+ * stats are sampled on a fixed interval and logged, with a warning for shards that aren't connected, and are exported
+ * as metrics.
+ */
+public class ShardMonitor implements EventListener {
+
+    private final long interval;
+    private final Map<Integer, LongAdder> events = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> lastCounts = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "knaughts-shard-monitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile ShardManager shardManager;
+    private volatile List<ShardStats> stats = List.of();
+
+    /**
+     * @param interval how often the shards are sampled, in milliseconds.
+     */
+    public ShardMonitor(long interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * Starts sampling the shards of a shard manager.
+     * @param shardManager the shard manager.
+     */
+    public void start(ShardManager shardManager) {
+        this.shardManager = shardManager;
+        scheduler.scheduleAtFixedRate(this::sample, interval, interval, TimeUnit.MILLISECONDS);
+
+        Metrics.gauge("knaughts_gateway_ping_seconds", "Gateway heartbeat ping of each local shard.", "shard",
+                () -> perShard(shard -> shard.getGatewayPing() / 1000.0));
+        Metrics.gauge("knaughts_shard_connected", "Whether each local shard is connected to the gateway.", "shard",
+                () -> perShard(shard -> shard.getStatus() == JDA.Status.CONNECTED ? 1 : 0));
+        Metrics.gauge("knaughts_shard_guilds", "Guilds on each local shard.", "shard",
+                () -> perShard(shard -> shard.getGuildCache().size()));
+        Metrics.counter("knaughts_shard_events_total", "Gateway events received by each local shard.", "shard",
+                () -> perShard(shard -> {
+                    final LongAdder counter = events.get(shard.getShardInfo().getShardId());
+                    return counter == null ? 0 : counter.sum();
+                }));
+    }
+
+    private Map<String, Number> perShard(Function<JDA, Number> value) {
+        final Map<String, Number> values = new HashMap<>();
+        for (final JDA shard : shardManager.getShards())
+            values.put(String.valueOf(shard.getShardInfo().getShardId()), value.apply(shard));
+        return values;
+    }
+
+    @Override
+    public void onEvent(@NotNull GenericEvent event) {
+        events.computeIfAbsent(event.getJDA().getShardInfo().getShardId(), shardId -> new LongAdder()).increment();
+    }
+
+    /**
+     * @return the stats of each local shard as of the last sample, ordered by shard ID.
+     */
+    public List<ShardStats> stats() {
+        return stats;
+    }
+
+    private void sample() {
+        final List<ShardStats> sampled = new ArrayList<>();
+        for (final JDA shard : shardManager.getShards()) {
+            final int shardId = shard.getShardInfo().getShardId();
+            final LongAdder counter = events.get(shardId);
+            final long count = counter == null ? 0 : counter.sum();
+            final Long last = lastCounts.put(shardId, count);
+            final double eventRate = (count - (last == null ? 0 : last)) * 1000.0 / interval;
+
+            sampled.add(new ShardStats(shardId, shard.getStatus(), shard.getGatewayPing(), eventRate, shard.getGuildCache().size()));
+        }
+        sampled.sort(Comparator.comparingInt(ShardStats::shardId));
+        stats = List.copyOf(sampled);
+
+        for (final ShardStats shard : sampled) {
+            final String line = "Shard " + shard.shardId() + ": " + shard.status() + ", " + shard.gatewayPing() + "ms ping, "
+                    + String.format("%.1f", shard.eventRate()) + " events/s, " + shard.guilds() + " guilds";
+            if (shard.status() == JDA.Status.CONNECTED)
+                LOG.debug(line);
+            else
+                LOG.warn(line);
+        }
+    }
+
+    /**
+     * A sample of a shard's health.
+     * @param shardId the ID of the shard.
+     * @param status the gateway status of the shard.
+     * @param gatewayPing the gateway ping in milliseconds, or -1 before the first heartbeat.
+     * @param eventRate the events per second received since the previous sample.
+     * @param guilds the number of guilds on the shard.
+     */
+    public record ShardStats(int shardId, JDA.Status status, long gatewayPing, double eventRate, long guilds) {
+    }
+}
@@ -0,0 +1,45 @@
+package xyz.knaughts.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing count, optionally split by the value of one label. Create counters with
+ * {@link Metrics#counter}.
+ */
+public final class Counter implements Metrics.Collector {
+
+    private final String name;
+    private final String help;
+    private final String labelName;
+    private final Map<String, LongAdder> children = new ConcurrentHashMap<>();
+
+    Counter(String name, String help, String labelName) {
+        this.name = name;
+        this.help = help;
+        this.labelName = labelName;
+    }
+
+    /**
+     * Increments the unlabelled count.
+     */
+    public void inc() {
+        inc("");
+    }
+
+    /**
+     * Increments the count for a label value.
+     * @param labelValue the value of the label.
+     */
+    public void inc(String labelValue) {
+        children.computeIfAbsent(labelValue, value -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void write(StringBuilder out) {
+        Metrics.header(out, name, help, "counter");
+        children.forEach((labelValue, count) ->
+                Metrics.sample(out, name, labelName, labelValue, null, count.sum()));
+    }
+}
@@ -0,0 +1,90 @@
+package xyz.knaughts.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A distribution of durations in fixed buckets, optionally split by the value of one label, from which Prometheus can
+ * estimate quantiles such as p99. Create histograms with {@link Metrics#histogram}.
+ */
+public final class Histogram implements Metrics.Collector {
+
+    /**
+     * Buckets for network-bound operations, from 1ms to 10s.
+     */
+    public static final double[] LATENCY_BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    /**
+     * Buckets for CPU-bound operations, from 1µs to 10ms.
+     */
+    public static final double[] FAST_BUCKETS = {0.000001, 0.0000025, 0.000005, 0.00001, 0.000025, 0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01};
+
+    private final String name;
+    private final String help;
+    private final String labelName;
+    private final double[] buckets;
+    private final long[] bucketNanos;
+    private final Map<String, Child> children = new ConcurrentHashMap<>();
+
+    Histogram(String name, String help, String labelName, double[] buckets) {
+        this.name = name;
+        this.help = help;
+        this.labelName = labelName;
+        this.buckets = buckets.clone();
+        this.bucketNanos = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++)
+            bucketNanos[i] = Math.round(buckets[i] * 1_000_000_000);
+    }
+
+    /**
+     * Records an unlabelled duration.
+     * @param nanos the duration in nanoseconds.
+     */
+    public void observe(long nanos) {
+        observe("", nanos);
+    }
+
+    /**
+     * Records a duration for a label value.
+     * @param labelValue the value of the label.
+     * @param nanos the duration in nanoseconds.
+     */
+    public void observe(String labelValue, long nanos) {
+        final Child child = children.computeIfAbsent(labelValue, value -> new Child(buckets.length));
+        int bucket = 0;
+        while (bucket < bucketNanos.length && nanos > bucketNanos[bucket])
+            bucket++;
+        child.counts[bucket].increment();
+        child.sumNanos.add(nanos);
+    }
+
+    @Override
+    public void write(StringBuilder out) {
+        Metrics.header(out, name, help, "histogram");
+        children.forEach((labelValue, child) -> {
+            long cumulative = 0;
+            for (int i = 0; i <= buckets.length; i++) {
+                cumulative += child.counts[i].sum();
+                final String le = i < buckets.length ? Metrics.format(buckets[i]) : "+Inf";
+                Metrics.sample(out, name + "_bucket", labelName, labelValue, le, cumulative);
+            }
+            Metrics.sample(out, name + "_sum", labelName, labelValue, null, child.sumNanos.sum() / 1e9);
+            Metrics.sample(out, name + "_count", labelName, labelValue, null, cumulative);
+        });
+    }
+
+    /**
+     * The buckets of one label value. The last bucket counts durations over the largest bound.
+     */
+    private static final class Child {
+        private final LongAdder[] counts;
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Child(int buckets) {
+            counts = new LongAdder[buckets + 1];
+            for (int i = 0; i < counts.length; i++)
+                counts[i] = new LongAdder();
+        }
+    }
+}
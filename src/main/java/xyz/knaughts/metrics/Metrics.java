@@ -0,0 +1,200 @@
+package xyz.knaughts.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+import static xyz.knaughts.KnaughtsBot.LOG;
+
+/**
+ * The registry of Knaughts bot's runtime metrics, served in the
+ * <a href="https://prometheus.io/docs/instrumenting/exposition_formats/">Prometheus text format</a> by an embedded
+ * HTTP endpoint. Metrics are registered once, usually in a static field, and are named with a <code>knaughts_</code>
+ * prefix. Durations are exported in seconds.
+ */
+public final class Metrics {
+
+    private static final Map<String, Collector> collectors = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Registers a counter.
+     * @param name the name of the counter, ending in <code>_total</code>.
+     * @param help a description of the counter.
+     * @param labelName the name of the label the count is split by, or null for none.
+     * @return the counter.
+     */
+    public static Counter counter(String name, String help, String labelName) {
+        return register(name, new Counter(name, help, labelName));
+    }
+
+    /**
+     * Registers a histogram of durations.
+     * @param name the name of the histogram, ending in <code>_seconds</code>.
+     * @param help a description of the histogram.
+     * @param labelName the name of the label the durations are split by, or null for none.
+     * @param buckets the upper bounds of the buckets in seconds, in ascending order.
+     * @return the histogram.
+     */
+    public static Histogram histogram(String name, String help, String labelName, double[] buckets) {
+        return register(name, new Histogram(name, help, labelName, buckets));
+    }
+
+    /**
+     * Registers a gauge whose value is read when the metrics are scraped.
+     * @param name the name of the gauge.
+     * @param help a description of the gauge.
+     * @param value the function reading the value.
+     */
+    public static void gauge(String name, String help, DoubleSupplier value) {
+        register(name, out -> {
+            header(out, name, help, "gauge");
+            sample(out, name, null, "", null, value.getAsDouble());
+        });
+    }
+
+    /**
+     * Registers a gauge split by the value of one label, whose values are read when the metrics are scraped.
+     * @param name the name of the gauge.
+     * @param help a description of the gauge.
+     * @param labelName the name of the label.
+     * @param values the function reading the value of each label value.
+     */
+    public static void gauge(String name, String help, String labelName, Supplier<Map<String, ? extends Number>> values) {
+        sampled(name, help, "gauge", labelName, values);
+    }
+
+    /**
+     * Registers a counter split by the value of one label, for counts that are already kept elsewhere and are read
+     * when the metrics are scraped.
+     * @param name the name of the counter, ending in <code>_total</code>.
+     * @param help a description of the counter.
+     * @param labelName the name of the label.
+     * @param values the function reading the count of each label value.
+     */
+    public static void counter(String name, String help, String labelName, Supplier<Map<String, ? extends Number>> values) {
+        sampled(name, help, "counter", labelName, values);
+    }
+
+    private static void sampled(String name, String help, String type, String labelName, Supplier<Map<String, ? extends Number>> values) {
+        register(name, out -> {
+            header(out, name, help, type);
+            values.get().forEach((labelValue, value) -> sample(out, name, labelName, labelValue, null, value.doubleValue()));
+        });
+    }
+
+    private static <T extends Collector> T register(String name, T collector) {
+        if (collectors.putIfAbsent(name, collector) != null)
+            throw new IllegalArgumentException("Metric already registered: " + name);
+        return collector;
+    }
+
+    /**
+     * @return every metric in the Prometheus text format.
+     */
+    public static String scrape() {
+        final StringBuilder out = new StringBuilder(8192);
+        for (final Collector collector : collectors.values())
+            collector.write(out);
+        return out.toString();
+    }
+
+    /**
+     * Starts serving the metrics on <code>/metrics</code>.
+     * @param host the address to bind to.
+     * @param port the port to listen on.
+     */
+    public static void serve(String host, int port) {
+        final HttpServer server;
+        try {
+            server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        } catch (IOException e) {
+            LOG.error("Failed starting the metrics endpoint on " + host + ":" + port + ": " + e);
+            return;
+        }
+
+        server.createContext("/metrics", exchange -> {
+            try (exchange) {
+                if (!exchange.getRequestMethod().equals("GET")) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                final byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "knaughts-metrics");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        LOG.info("Serving metrics on http://" + host + ":" + port + "/metrics");
+    }
+
+    static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Writes one sample line.
+     * @param labelName the name of the label, or null if the metric has none.
+     * @param le the upper bound of a histogram bucket, or null.
+     */
+    static void sample(StringBuilder out, String name, String labelName, String labelValue, String le, double value) {
+        out.append(name);
+        if (labelName != null || le != null) {
+            out.append('{');
+            if (labelName != null) {
+                out.append(labelName).append("=\"");
+                escape(out, labelValue);
+                out.append('"');
+                if (le != null) out.append(',');
+            }
+            if (le != null)
+                out.append("le=\"").append(le).append('"');
+            out.append('}');
+        }
+        out.append(' ').append(format(value)).append('\n');
+    }
+
+    static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15)
+            return Long.toString((long) value);
+        return Double.toString(value);
+    }
+
+    private static void escape(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> out.append("\\\\");
+                case '"' -> out.append("\\\"");
+                case '\n' -> out.append("\\n");
+                default -> out.append(c);
+            }
+        }
+    }
+
+    /**
+     * Writes a metric in the Prometheus text format.
+     */
+    interface Collector {
+        void write(StringBuilder out);
+    }
+}
@@ -6,10 +6,14 @@ import net.dv8tion.jda.api.entities.User;
 import net.dv8tion.jda.api.interactions.components.ItemComponent;
 import net.dv8tion.jda.api.interactions.components.buttons.Button;
 import net.dv8tion.jda.api.interactions.components.buttons.ButtonStyle;
+import net.dv8tion.jda.api.utils.TimeFormat;
+import net.dv8tion.jda.api.utils.messages.MessageCreateBuilder;
+import net.dv8tion.jda.api.utils.messages.MessageCreateData;
 import xyz.knaughts.utils.variables.AuthorInfo;
 import xyz.knaughts.utils.variables.Colors;
 import xyz.knaughts.utils.variables.Images;
 
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -23,46 +27,72 @@ public final class Embeds {
         return new EmbedBuilderRowPair(embed, row);
     }
 
-    public static EmbedBuilderRowPair notesListEmbed(int currentPage, int totalPages, List<Note> notes, User user) {
-        final var embedBuilder = notesListEmbedBuilder(user, currentPage, totalPages);
-        final var row = notesRow(user, notes, embedBuilder, currentPage, totalPages);
+    public static EmbedBuilderRowPair notesListEmbed(NotesResponse page, User user, long listId) {
+        final var embedBuilder = notesListEmbedBuilder(user, page);
+        final var row = notesRow(user, embedBuilder, page, listId);
 
         return new EmbedBuilderRowPair(embedBuilder, row);
     }
 
-    private static List<ItemComponent> notesRow(User user, List<Note> notes, EmbedBuilder embed, int currentPage, int totalPages) {
+    public static EmbedBuilderRowPair searchResultsEmbed(List<Note> notes, User user, String query) {
+        final var embedBuilder = new EmbedBuilder()
+                .setTitle("`" + user.getName() + "`'s Notes")
+                .setDescription("Results for \"" + (query.length() > 50 ? query.substring(0, 50) + "..." : query) + "\"")
+                .setColor(Colors.ORANGE)
+                .setFooter(notes.size() == 1 ? "1 note found" : notes.size() + " notes found", Images.IMG_LOGO);
+
         final var row = new ArrayList<ItemComponent>();
+        for (int i = 0; i < notes.size(); i++) {
+            embedBuilder.addField(noteField(i, notes.get(i)));
+            row.add(Button.of(ButtonStyle.SECONDARY, "knaughts.notes.view." + notes.get(i).id(), "#"+(i+1)));
+        }
+
+        return new EmbedBuilderRowPair(embedBuilder, row);
+    }
+
+    private static List<ItemComponent> notesRow(User user, EmbedBuilder embed, NotesResponse page, long listId) {
+        final var row = new ArrayList<ItemComponent>();
+        final List<Note> notes = page.notes();
+        final int currentPage = page.currentPage();
 
         if (currentPage > 1) {
             row.add(Button.of(ButtonStyle.PRIMARY,
-                    String.format("knaughts.notes.prev.%s.%d", user.getId(), currentPage-1),
+                    pageButtonId("prev", user, currentPage-1, listId, page.prevCursor()),
                     "⬅️"));
         }
 
         for (int i = 0; i < notes.size(); i++) {
             final Note note = notes.get(i);
-            final String title = note.title().length() > 10 ? note.title().substring(0, 10) + "..." : note.title();
-            final String content = note.content().length() > 50 ? note.content().substring(0, 50) + "..." : note.content();
-
-            final MessageEmbed.Field field = new MessageEmbed.Field(
-                    String.format("%d. %s ⎯ `%s`", i+1, title, note.id()),
-                    "> " + content,
-                    false
-            );
-            embed.addField(field);
+            embed.addField(noteField(i, note));
 
             row.add(Button.of(ButtonStyle.SECONDARY, "knaughts.notes.view." + note.id(), "#"+(i+1)));
         }
 
-        if (currentPage < totalPages) {
+        if (page.hasNext()) {
             row.add(Button.of(ButtonStyle.PRIMARY,
-                    String.format("knaughts.notes.next.%s.%d", user.getId(), currentPage+1),
+                    pageButtonId("next", user, currentPage+1, listId, page.nextCursor()),
                     "➡️"));
         }
 
         return row;
     }
 
+    private static MessageEmbed.Field noteField(int i, Note note) {
+        final String title = note.title().length() > 10 ? note.title().substring(0, 10) + "..." : note.title();
+        final String content = note.content().length() > 50 ? note.content().substring(0, 50) + "..." : note.content();
+
+        return new MessageEmbed.Field(
+                String.format("%d. %s ⎯ `%s`", i+1, title, note.id()),
+                "> " + content,
+                false
+        );
+    }
+
+    private static String pageButtonId(String action, User user, int page, long listId, String cursor) {
+        final String id = String.format("knaughts.notes.%s.%s.%d.%d", action, user.getId(), page, listId);
+        return cursor == null ? id : id + "." + cursor;
+    }
+
     private static List<ItemComponent> noteRow(String noteId) {
         final List<ItemComponent> row = new ArrayList<>();
         row.add(Button.of(ButtonStyle.PRIMARY, "knaughts.notes.edit." + noteId, "Edit"));
@@ -70,20 +100,36 @@ public final class Embeds {
         return row;
     }
 
-    private static EmbedBuilder notesListEmbedBuilder(User user, int currentPage, int totalPages) {
+    private static EmbedBuilder notesListEmbedBuilder(User user, NotesResponse page) {
+        final String footer;
+        if (page.totalPages() >= 0)
+            footer = String.format("Page %d of %d", page.currentPage(), page.totalPages());
+        else
+            footer = String.format(page.hasNext() ? "Page %d, more available" : "Page %d", page.currentPage());
+
         return new EmbedBuilder()
                 .setTitle("`" + user.getName() + "`'s Notes")
                 .setColor(Colors.ORANGE)
-                .setFooter(String.format("Page %d of %d", currentPage, totalPages), Images.IMG_LOGO);
+                .setFooter(footer, Images.IMG_LOGO);
     }
 
+    /**
+     * Builds the embed of a single note. Timestamps are sent as Discord timestamps, so they're shown in each user's
+     * own timezone and locale. Discord doesn't render those in footers, hence the fields.
+     */
     private static EmbedBuilder noteEmbedBuilder(String username, String avUrl, Note note) {
         return new EmbedBuilder()
                 .setAuthor(username + "'s note", null, avUrl)
                 .setTitle(note.title() +" ⎯`" + note.id() + "`")
                 .setDescription(note.content())
+                .addField("Created", timestamp(note.created()), true)
+                .addField("Updated", timestamp(note.updated()), true)
                 .setColor(Colors.ORANGE)
-                .setFooter(String.format("Created: %s • Updated: %s", note.created(), note.updated()), Images.IMG_LOGO);
+                .setFooter("Knaughts", Images.IMG_LOGO);
+    }
+
+    private static String timestamp(Instant instant) {
+        return instant == null ? "Unknown" : TimeFormat.DATE_TIME_SHORT.format(instant);
     }
 
     public static MessageEmbed notesGetErrorEmbed() {
@@ -180,5 +226,13 @@ public final class Embeds {
      * @param embedBuilder the EmbedBuilder
      * @param row the list of buttons
      */
-    public record EmbedBuilderRowPair(EmbedBuilder embedBuilder, List<ItemComponent> row) {}
+    public record EmbedBuilderRowPair(EmbedBuilder embedBuilder, List<ItemComponent> row) {
+
+        /**
+         * @return a message with the embed and the row of buttons.
+         */
+        public MessageCreateData toMessage() {
+            return new MessageCreateBuilder().setEmbeds(embedBuilder.build()).setActionRow(row).build();
+        }
+    }
 }
@@ -2,62 +2,75 @@ package xyz.knaughts.models;
 
 import xyz.knaughts.KnaughtsBot;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
 
 /**
- * Represents a note.
+ * Represents a note. Notes are immutable, so they can be shared between threads and caches.
+ * @param id the ID of the note.
+ * @param title the plaintext title.
+ * @param content the plaintext content.
+ * @param created when the note was created, or null if unknown.
+ * @param updated when the note was last updated, or null if unknown.
  */
-public class Note {
-    private final String id;
-    private String title;
-    private String content;
-    private String created;
-    private String updated;
+public record Note(String id, String title, String content, Instant created, Instant updated) {
 
-    public Note(String id, String title, String content, String created, String updated) {
-        this.id = id;
-        this.title = title;
-        this.content = content;
+    /**
+     * The format of timestamps in the database, e.g. <code>2023-11-20 18:42:07.512Z</code>. Parsing is lenient about
+     * the number of fraction digits.
+     */
+    private static final DateTimeFormatter DATABASE_FORMAT = new DateTimeFormatterBuilder()
+            .appendPattern("yyyy-MM-dd HH:mm:ss")
+            .optionalStart()
+            .appendFraction(ChronoField.NANO_OF_SECOND, 0, 9, true)
+            .optionalEnd()
+            .appendOffset("+HH:MM", "Z")
+            .toFormatter();
 
-        final SimpleDateFormat originalFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSX");
-        final SimpleDateFormat newFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+    private static final DateTimeFormatter DATABASE_OUTPUT_FORMAT = DateTimeFormatter
+            .ofPattern("yyyy-MM-dd HH:mm:ss.SSSX")
+            .withZone(ZoneOffset.UTC);
 
-        try {
-            this.created = newFormat.format(originalFormat.parse(created));
-            this.updated = newFormat.format(originalFormat.parse(updated));
-        } catch (ParseException | NullPointerException e) {
-            KnaughtsBot.LOG.error("Error parsing date: " + e.getMessage());
-            this.created = "null";
-            this.updated = "null";
-        }
-    }
-
-    public String id() {
-        return id;
-    }
-
-    public String title() {
-        return title;
+    /**
+     * Returns a new note with the timestamps as formatted by the database.
+     * @param id the ID of the note.
+     * @param title the plaintext title.
+     * @param content the plaintext content.
+     * @param created when the note was created.
+     * @param updated when the note was last updated.
+     * @return the note.
+     */
+    public static Note of(String id, String title, String content, String created, String updated) {
+        return new Note(id, title, content, parseTimestamp(created), parseTimestamp(updated));
     }
 
-    public String content() {
-        return content;
-    }
+    /**
+     * Parses a timestamp as formatted by the database.
+     * @param timestamp the timestamp.
+     * @return the instant, or null if the timestamp is missing or malformed.
+     */
+    public static Instant parseTimestamp(String timestamp) {
+        if (timestamp == null || timestamp.isEmpty()) return null;
 
-    public String created() {
-        return this.created;
-    }
-
-    public String updated() {
-        return this.updated;
-    }
-
-    public void setTitle(String title) {
-        this.title = title;
+        try {
+            return OffsetDateTime.parse(timestamp, DATABASE_FORMAT).toInstant();
+        } catch (DateTimeParseException e) {
+            KnaughtsBot.LOG.error("Error parsing date: " + e.getMessage());
+            return null;
+        }
     }
 
-    public void setContent(String content) {
-        this.content = content;
+    /**
+     * Formats an instant the way the database does.
+     * @param instant the instant.
+     * @return the timestamp.
+     */
+    public static String formatTimestamp(Instant instant) {
+        return DATABASE_OUTPUT_FORMAT.format(instant);
     }
 }
@@ -2,5 +2,24 @@ package xyz.knaughts.models;
 
 import java.util.List;
 
-public record NotesResponse(List<Note> notes, int currentPage, int totalPages) {
+/**
+ * Represents a page of a user's notes list.
+ * @param notes the notes on the page.
+ * @param currentPage the page number, starting at 1.
+ * @param totalPages the total number of pages, or -1 if the total was skipped.
+ * @param hasNext whether there's a page after this one.
+ * @param prevCursor the cursor to get the previous page with, or null if pages are read by offset.
+ * @param nextCursor the cursor to get the next page with, or null if pages are read by offset.
+ */
+public record NotesResponse(List<Note> notes, int currentPage, int totalPages, boolean hasNext, String prevCursor, String nextCursor) {
+
+    /**
+     * Creates a page read by offset, with a known total number of pages.
+     * @param notes the notes on the page.
+     * @param currentPage the page number, starting at 1.
+     * @param totalPages the total number of pages.
+     */
+    public NotesResponse(List<Note> notes, int currentPage, int totalPages) {
+        this(notes, currentPage, totalPages, currentPage < totalPages, null, null);
+    }
 }
@@ -1,39 +1,184 @@
 package xyz.knaughts.utils;
 
 import com.goterl.lazysodium.LazySodiumJava;
+import com.goterl.lazysodium.Sodium;
 import com.goterl.lazysodium.SodiumJava;
 import com.goterl.lazysodium.exceptions.SodiumException;
+import com.goterl.lazysodium.interfaces.Auth;
+import com.goterl.lazysodium.interfaces.SecretBox;
 import com.goterl.lazysodium.utils.Key;
 import com.goterl.lazysodium.utils.LibraryLoader;
 import xyz.knaughts.KnaughtsBot;
+import xyz.knaughts.metrics.Counter;
+import xyz.knaughts.metrics.Histogram;
+import xyz.knaughts.metrics.Metrics;
 
 import java.io.Console;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.Scanner;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * A utility class for dealing with cryptography. Knaughts bot uses <a href="https://github.com/terl/lazysodium-java">lazysodium</a>
  * which is a Java wrapper for the cryptography library <a href="https://libsodium.gitbook.io/doc/">libsodium</a>.
+ * <p>
+ * Encrypted strings are stored in one of four formats:
+ * <ul>
+ *     <li>v1 (legacy): a 64 hex char nonce followed by the hex encoded MAC and ciphertext. Only read, never written.</li>
+ *     <li>v2: URL-safe base64 (no padding) of a version byte, the 24 byte nonce and the raw MAC and ciphertext. Only
+ *     read, never written.</li>
+ *     <li>v3: like v2, with the ID of the key that encrypted the string after the version byte.</li>
+ *     <li>v4: like v3, but the encrypted message starts with a flags byte, so the flags are authenticated along with
+ *     the rest of it. With {@link #FLAG_DEFLATED}, the rest of the message is compressed.</li>
+ * </ul>
+ * Several keys can be loaded at once, so keys can be rotated without downtime: strings are always encrypted with the
+ * current key, and decrypted with whichever key their ID names. v1 and v2 strings were encrypted before keys had IDs,
+ * with the key that has the {@link #LEGACY_KEY_ID}.
+ * <p>
+ * Compression is opt-in with <code>KNAUGHTS_CRYPTO_COMPRESSION=true</code>. Messages are then deflated with the
+ * {@link NoteDictionary} before they're encrypted, as ciphertext can't be compressed, and written as v4 only if that
+ * makes them smaller. Otherwise they stay v3, which is also what's written with compression off, so only the records
+ * that were actually compressed need a version that reads v4.
+ * <p>
+ * Records can also be encrypted and decrypted as raw bytes with {@link #encrypt(byte[], int, byte[])} and
+ * {@link #decrypt(byte[], int, byte[])}, which call libsodium directly and reuse per-thread buffers for the nonce and
+ * secretbox. The string methods are built on them, keeping only the allocations {@link Base64} and {@link String}
+ * need, as their intrinsics beat any reuse.
  */
 public final class Cryptography {
 
     /**
-     * The almighty.
+     * The version bytes of the v2, v3 and v4 formats.
      */
-    private static Key KEY = null;
+    private static final byte VERSION_2 = 2;
+    private static final byte VERSION_3 = 3;
+    private static final byte VERSION_4 = 4;
+
+    /**
+     * The flag of a v4 message whose body is raw deflate with the {@link NoteDictionary}.
+     */
+    private static final int FLAG_DEFLATED = 0x01;
+
+    /**
+     * Messages shorter than this aren't worth compressing, which rules out every title.
+     */
+    private static final int MIN_COMPRESSED_LENGTH = 64;
+
+    /**
+     * The most bytes a compressed message may inflate to, so a corrupt or crafted record can't inflate into a huge
+     * buffer, and the size of the buffer a v4 record is decrypted into. Well above the longest note the modals allow,
+     * 500 chars or at most 1500 bytes; longer messages are never compressed.
+     */
+    public static final int MAX_DECOMPRESSED_LENGTH = 4 * 1024;
+
+    /**
+     * The ID of the key v1 and v2 strings were encrypted with.
+     */
+    public static final int LEGACY_KEY_ID = 0;
+
+    /**
+     * The highest key ID, as IDs are stored in a single byte.
+     */
+    public static final int MAX_KEY_ID = 255;
+
+    /**
+     * The length of a v1 hex encoded nonce. Only the first 24 bytes were ever used by secretbox.
+     */
+    private static final int LEGACY_NONCE_HEX_LENGTH = 64;
+
+    /**
+     * The number of bytes in front of the MAC and ciphertext of a v2 record.
+     */
+    private static final int V2_HEADER_BYTES = 1 + SecretBox.NONCEBYTES;
+
+    /**
+     * The number of bytes in front of the MAC and ciphertext of a v3 or v4 record.
+     */
+    private static final int V3_HEADER_BYTES = 2 + SecretBox.NONCEBYTES;
+
+    /**
+     * The number of bytes of the HMAC kept in a blind index token. 64 bits make collisions between a user's words
+     * vanishingly unlikely while keeping tokens short.
+     */
+    private static final int BLIND_INDEX_BYTES = 8;
+
+    /**
+     * The KDF context and subkey ID the blind index key is derived with.
+     */
+    private static final String BLIND_INDEX_CONTEXT = "knblindx";
+    private static final long BLIND_INDEX_SUBKEY_ID = 1;
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    /**
+     * The almighty, and its predecessors, indexed by key ID.
+     */
+    private static Key[] KEYS = new Key[MAX_KEY_ID + 1];
+
+    /**
+     * The ID of the key new strings are encrypted with.
+     */
+    private static int CURRENT_KEY_ID = LEGACY_KEY_ID;
+
+    /**
+     * Whether messages are compressed before they're encrypted.
+     */
+    private static boolean COMPRESS = false;
+
+    /**
+     * The key of blind index tokens, derived from the search key so the tokens can't be linked to the ciphertexts.
+     * Unlike the current key, the search key doesn't change when notes are rotated to a new key, as that would leave
+     * every stored token unmatchable until each note had been rewritten.
+     */
+    private static byte[] BLIND_INDEX_KEY = null;
 
     /**
      * The sodium instance.
      */
     private static final LazySodiumJava sodium = new LazySodiumJava(new SodiumJava(LibraryLoader.Mode.BUNDLED_ONLY), StandardCharsets.UTF_8);
 
+    /**
+     * The native libsodium bindings under {@link #sodium}, which take raw arrays and lengths.
+     */
+    private static final Sodium NATIVE = sodium.getSodium();
+
+    /**
+     * The buffers of the calling thread, when running on the bot's long-lived platform threads.
+     */
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * The buffers shared by virtual threads, or null if they're disabled. A virtual thread runs a single task, so
+     * thread local buffers would be allocated, along with a native deflater and inflater, for every task.
+     */
+    private static final ScratchPool POOL = VirtualThreads.isEnabled()
+            ? new ScratchPool(Runtime.getRuntime().availableProcessors() * 2)
+            : null;
+
+    private static final Histogram cryptoSeconds = Metrics.histogram(
+            "knaughts_crypto_seconds", "Time taken to encrypt or decrypt a string.", "operation", Histogram.FAST_BUCKETS);
+    private static final Counter compressions = Metrics.counter(
+            "knaughts_crypto_compression_total", "Messages long enough to compress, by whether compressing them paid off.", "result");
+
     private Cryptography() {
     }
 
     /**
-     * Initializes the cryptography key by reading a console input with echoing disabled.
-     * Alternatively, you can read it from elsewhere such as a config/env file or a dedicated
+     * Initializes the cryptography keys by reading console inputs with echoing disabled, one per ID in
+     * <code>KNAUGHTS_CRYPTO_KEY_IDS</code> (comma separated, default just the current key's ID). The current key is
+     * picked with <code>KNAUGHTS_CRYPTO_KEY_ID</code> (default {@link #LEGACY_KEY_ID}), and the key search tokens are
+     * derived from with <code>KNAUGHTS_SEARCH_KEY_ID</code> (default {@link #LEGACY_KEY_ID}), which is asked for too
+     * if it isn't one of the listed keys. Alternatively, you can read them from elsewhere such as a config/env file or a dedicated
      * on/offline keystore.
      */
     public static void init() {
@@ -43,34 +188,430 @@ public final class Cryptography {
         if (console == null)
             throw new RuntimeException("No console found. Please run this program from a terminal (not an IDE).");
 
-        System.console().printf("Enter the private cryptography key in hexadecimal format:");
-        String hexKey = Arrays.toString(console.readPassword());
-        KEY = Key.fromHexString(hexKey);
+        final int currentKeyId = Env.getInt("KNAUGHTS_CRYPTO_KEY_ID", LEGACY_KEY_ID);
+        final int searchKeyId = searchKeyId();
+        final Set<Integer> keyIds = new TreeSet<>();
+        for (final String id : Env.get("KNAUGHTS_CRYPTO_KEY_IDS", String.valueOf(currentKeyId)).split(","))
+            keyIds.add(Integer.parseInt(id.trim()));
+        keyIds.add(searchKeyId);
+
+        final Map<Integer, Key> keys = new HashMap<>();
+        for (final int keyId : keyIds) {
+            console.printf("Enter the private cryptography key %d in hexadecimal format:", keyId);
+            final char[] input = console.readPassword();
+            keys.put(keyId, keyOf(keyId, input));
+            Arrays.fill(input, '\0');
+        }
+        init(keys, currentKeyId, searchKeyId, Env.getBoolean("KNAUGHTS_CRYPTO_COMPRESSION", false));
+    }
 
-        KnaughtsBot.LOG.info("Cryptography key initialized.");
+    /**
+     * Turns a key typed in on the console into a key.
+     * <p>
+     * The {@link #LEGACY_KEY_ID} key has always been read as <code>Arrays.toString</code> of the typed chars rather
+     * than the typed hex itself, which gives a 96 byte key of which secretbox only uses the first 32 bytes. Every note
+     * written before key IDs existed, and every v3 note written with key 0 since, is sealed with that key, so it keeps
+     * being derived the same way. Any other key ID is the typed hex, and a key rotation to one moves notes off the
+     * legacy key.
+     * @param keyId the ID of the key
+     * @param input the typed chars
+     * @return the key
+     */
+    static Key keyOf(int keyId, char[] input) {
+        return keyId == LEGACY_KEY_ID ? Key.fromHexString(Arrays.toString(input)) : Key.fromHexString(new String(input));
+    }
+
+    /**
+     * Initializes the cryptography key with an already loaded key, which gets the {@link #LEGACY_KEY_ID}. Useful when
+     * the key does not come from the console, e.g. in benchmarks.
+     * @param key the private cryptography key
+     */
+    public static void init(Key key) {
+        init(Map.of(LEGACY_KEY_ID, key), LEGACY_KEY_ID);
+    }
+
+    /**
+     * Initializes the cryptography keys with already loaded keys, compressing if
+     * <code>KNAUGHTS_CRYPTO_COMPRESSION</code> is true, and deriving search tokens from
+     * <code>KNAUGHTS_SEARCH_KEY_ID</code>.
+     * @param keys the private cryptography keys by ID, from 0 to {@link #MAX_KEY_ID}
+     * @param currentKeyId the ID of the key new strings are encrypted with
+     */
+    public static void init(Map<Integer, Key> keys, int currentKeyId) {
+        init(keys, currentKeyId, searchKeyId(), Env.getBoolean("KNAUGHTS_CRYPTO_COMPRESSION", false));
+    }
+
+    /**
+     * Initializes the cryptography keys with already loaded keys, deriving search tokens from
+     * <code>KNAUGHTS_SEARCH_KEY_ID</code>.
+     * @param keys the private cryptography keys by ID, from 0 to {@link #MAX_KEY_ID}
+     * @param currentKeyId the ID of the key new strings are encrypted with
+     * @param compress whether to compress messages before encrypting them
+     */
+    public static void init(Map<Integer, Key> keys, int currentKeyId, boolean compress) {
+        init(keys, currentKeyId, searchKeyId(), compress);
     }
 
     /**
-     * Encrypts a string using the cryptography key.
+     * Initializes the cryptography keys with already loaded keys.
+     * @param keys the private cryptography keys by ID, from 0 to {@link #MAX_KEY_ID}
+     * @param currentKeyId the ID of the key new strings are encrypted with
+     * @param searchKeyId the ID of the key search tokens are derived from, which must stay the same across rotations
+     * @param compress whether to compress messages before encrypting them
+     */
+    public static void init(Map<Integer, Key> keys, int currentKeyId, int searchKeyId, boolean compress) {
+        for (final int keyId : keys.keySet()) {
+            if (keyId < 0 || keyId > MAX_KEY_ID)
+                throw new RuntimeException("Invalid cryptography key ID: " + keyId);
+        }
+        if (!keys.containsKey(currentKeyId))
+            throw new RuntimeException("The current cryptography key " + currentKeyId + " isn't loaded.");
+        if (!keys.containsKey(searchKeyId))
+            throw new RuntimeException("The search key " + searchKeyId + " isn't loaded. Search tokens are derived from it"
+                    + " however notes are rotated, so it has to stay loaded; see KNAUGHTS_SEARCH_KEY_ID.");
+
+        try {
+            // the legacy key is longer than a KDF key, but like secretbox, only its first 32 bytes count
+            final Key master = Key.fromBytes(Arrays.copyOf(keys.get(searchKeyId).getAsBytes(), SecretBox.KEYBYTES));
+            BLIND_INDEX_KEY = sodium.cryptoKdfDeriveFromKey(Auth.KEYBYTES, BLIND_INDEX_SUBKEY_ID, BLIND_INDEX_CONTEXT, master).getAsBytes();
+        } catch (SodiumException e) {
+            throw new RuntimeException("Could not derive the blind index key: " + e);
+        }
+        final Key[] byId = new Key[MAX_KEY_ID + 1];
+        keys.forEach((keyId, key) -> byId[keyId] = key);
+        KEYS = byId;
+        CURRENT_KEY_ID = currentKeyId;
+        COMPRESS = compress;
+
+        KnaughtsBot.LOG.info("Cryptography keys " + new TreeSet<>(keys.keySet()) + " initialized, encrypting with key " + currentKeyId
+                + ", indexing with key " + searchKeyId + (compress ? " and compressing." : "."));
+    }
+
+    private static int searchKeyId() {
+        return Env.getInt("KNAUGHTS_SEARCH_KEY_ID", LEGACY_KEY_ID);
+    }
+
+    /**
+     * @return the ID of the key new strings are encrypted with.
+     */
+    public static int currentKeyId() {
+        return CURRENT_KEY_ID;
+    }
+
+    /**
+     * Encrypts a string using the current cryptography key. The result is in the v4 format if it's compressed,
+     * otherwise the v3 format.
      * @param str the string to encrypt
      * @return the encrypted string
      * @throws SodiumException if the encryption fails
      */
     public static String encrypt(String str) throws SodiumException {
-        final byte[] nonce = randNonce();
-        final var nonceStr = sodium.sodiumBin2Hex(nonce);
-        return nonceStr + sodium.cryptoSecretBoxEasy(str, nonce, KEY);
+        final long start = System.nanoTime();
+        try {
+            final byte[] message = str.getBytes(StandardCharsets.UTF_8);
+            final Scratch scratch = acquire();
+            try {
+                final byte[] buffer = scratch.encrypted = Scratch.grow(scratch.encrypted, encryptedLength(message.length));
+                final int recordLength = encrypt(message, message.length, buffer, scratch);
+                // exactly sized, as Base64 only encodes whole arrays
+                final byte[] record = recordLength == buffer.length ? buffer : Arrays.copyOf(buffer, recordLength);
+
+                final byte[] text = scratch.text = Scratch.grow(scratch.text, (record.length * 4 + 2) / 3);
+                return new String(text, 0, ENCODER.encode(record, text), StandardCharsets.ISO_8859_1);
+            } finally {
+                release(scratch);
+            }
+        } finally {
+            cryptoSeconds.observe("encrypt", System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Encrypts bytes using the current cryptography key into a raw v4 or v3 record, i.e. before base64 encoding.
+     * @param message the bytes to encrypt
+     * @param length the number of bytes of <code>message</code> to encrypt
+     * @param record the array to write the record to, at least {@link #encryptedLength} long
+     * @return the length of the record
+     * @throws SodiumException if the encryption fails
+     */
+    public static int encrypt(byte[] message, int length, byte[] record) throws SodiumException {
+        if (length > message.length || encryptedLength(length) > record.length)
+            throw new IllegalArgumentException("Buffer too small: " + length + " bytes into " + record.length + ".");
+
+        final Scratch scratch = acquire();
+        try {
+            return encrypt(message, length, record, scratch);
+        } finally {
+            release(scratch);
+        }
+    }
+
+    private static int encrypt(byte[] message, int length, byte[] record, Scratch scratch) throws SodiumException {
+        final int keyId = CURRENT_KEY_ID;
+        byte version = VERSION_3;
+        byte[] plain = message;
+        int plainLength = length;
+        if (COMPRESS && length >= MIN_COMPRESSED_LENGTH && length <= MAX_DECOMPRESSED_LENGTH) {
+            final int compressedLength = compress(message, length, scratch);
+            compressions.inc(compressedLength < 0 ? "skipped" : "compressed");
+            if (compressedLength >= 0) {
+                version = VERSION_4;
+                plain = scratch.compressed;
+                plainLength = compressedLength;
+            }
+        }
+
+        final byte[] box = scratch.box = Scratch.grow(scratch.box, SecretBox.MACBYTES + plainLength);
+        NATIVE.randombytes_buf(scratch.nonce, SecretBox.NONCEBYTES);
+        if (NATIVE.crypto_secretbox_easy(box, plain, plainLength, scratch.nonce, key(keyId).getAsBytes()) != 0)
+            throw new SodiumException("Could not encrypt message.");
+
+        record[0] = version;
+        record[1] = (byte) keyId;
+        System.arraycopy(scratch.nonce, 0, record, 2, SecretBox.NONCEBYTES);
+        System.arraycopy(box, 0, record, V3_HEADER_BYTES, SecretBox.MACBYTES + plainLength);
+        return V3_HEADER_BYTES + SecretBox.MACBYTES + plainLength;
+    }
+
+    /**
+     * Compresses a message into the thread's compressed buffer as a v4 message: the flags byte, then the deflated
+     * message.
+     * @return the length of the v4 message, or -1 if it isn't shorter than the message itself
+     */
+    private static int compress(byte[] message, int length, Scratch scratch) {
+        final byte[] compressed = scratch.compressed = Scratch.grow(scratch.compressed, length);
+        final Deflater deflater = scratch.deflater();
+        deflater.setInput(message, 0, length);
+        deflater.finish();
+
+        // anything that doesn't fit in less room than the message itself isn't worth it
+        compressed[0] = FLAG_DEFLATED;
+        int compressedLength = 1;
+        while (!deflater.finished() && compressedLength < length - 1)
+            compressedLength += deflater.deflate(compressed, compressedLength, length - 1 - compressedLength);
+        return deflater.finished() ? compressedLength : -1;
     }
 
     /**
-     * Decrypts a string using the cryptography key.
+     * @param length the number of bytes to encrypt
+     * @return the most bytes of the raw record they encrypt to, which is the length of the v3 record
+     */
+    public static int encryptedLength(int length) {
+        return V3_HEADER_BYTES + SecretBox.MACBYTES + length;
+    }
+
+    /**
+     * Decrypts a string using the cryptography key it was encrypted with. All of the v4, v3, v2 and legacy v1 formats
+     * are accepted.
      * @param str the string to decrypt
      * @return the decrypted string
      * @throws SodiumException if the decryption fails
      */
     public static String decrypt(String str) throws SodiumException {
-        final var nonce = sodium.sodiumHex2Bin(str.substring(0, 64));
-        return sodium.cryptoSecretBoxOpenEasy(str.substring(64), nonce, KEY);
+        final long start = System.nanoTime();
+        try {
+            return isLegacy(str) ? decryptLegacy(str) : decryptBase64(str);
+        } finally {
+            cryptoSeconds.observe("decrypt", System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Decrypts a string stored in the v2, v3 or v4 format.
+     * @param str the string to decrypt
+     * @return the decrypted string
+     * @throws SodiumException if the decryption fails
+     */
+    private static String decryptBase64(String str) throws SodiumException {
+        final Scratch scratch = acquire();
+        try {
+            final int recordLength = decode(str, scratch);
+            final byte[] message = scratch.message = Scratch.grow(scratch.message, decryptedLength(scratch.record, recordLength));
+            return new String(message, 0, decrypt(scratch.record, recordLength, message, scratch), StandardCharsets.UTF_8);
+        } finally {
+            release(scratch);
+        }
+    }
+
+    /**
+     * Decrypts a raw v2, v3 or v4 record, i.e. after base64 decoding, using the cryptography key it was encrypted with.
+     * @param record the record to decrypt
+     * @param length the number of bytes of <code>record</code> to decrypt
+     * @param message the array to write the decrypted bytes to, at least {@link #decryptedLength} long
+     * @return the number of decrypted bytes
+     * @throws SodiumException if the decryption fails
+     */
+    public static int decrypt(byte[] record, int length, byte[] message) throws SodiumException {
+        final int messageLength = decryptedLength(record, length);
+        if (length > record.length || messageLength > message.length)
+            throw new IllegalArgumentException("Buffer too small: " + messageLength + " bytes into " + message.length + ".");
+
+        final Scratch scratch = acquire();
+        try {
+            return decrypt(record, length, message, scratch);
+        } finally {
+            release(scratch);
+        }
+    }
+
+    private static int decrypt(byte[] record, int length, byte[] message, Scratch scratch) throws SodiumException {
+        final int headerBytes = record[0] == VERSION_2 ? V2_HEADER_BYTES : V3_HEADER_BYTES;
+        final int boxLength = length - headerBytes;
+        final Key key = key(keyIdOf(record));
+        final byte[] box = scratch.box = Scratch.grow(scratch.box, boxLength);
+        System.arraycopy(record, headerBytes - SecretBox.NONCEBYTES, scratch.nonce, 0, SecretBox.NONCEBYTES);
+        System.arraycopy(record, headerBytes, box, 0, boxLength);
+        if (record[0] != VERSION_4) {
+            if (NATIVE.crypto_secretbox_open_easy(message, box, boxLength, scratch.nonce, key.getAsBytes()) != 0)
+                throw new SodiumException("Could not decrypt message.");
+            return boxLength - SecretBox.MACBYTES;
+        }
+
+        final int plainLength = boxLength - SecretBox.MACBYTES;
+        final byte[] plain = scratch.compressed = Scratch.grow(scratch.compressed, plainLength);
+        if (NATIVE.crypto_secretbox_open_easy(plain, box, boxLength, scratch.nonce, key.getAsBytes()) != 0)
+            throw new SodiumException("Could not decrypt message.");
+        if (plain[0] != FLAG_DEFLATED)
+            throw new SodiumException("Unsupported encrypted message flags: " + plain[0] + ".");
+        return decompress(plain, plainLength, message, scratch);
+    }
+
+    /**
+     * Inflates the body of a compressed v4 message.
+     * @return the number of bytes it inflated to
+     * @throws SodiumException if it's corrupt or inflates to more than {@link #MAX_DECOMPRESSED_LENGTH} bytes
+     */
+    private static int decompress(byte[] plain, int plainLength, byte[] message, Scratch scratch) throws SodiumException {
+        final Inflater inflater = scratch.inflater();
+        inflater.setInput(plain, 1, plainLength - 1);
+        try {
+            final int messageLength = inflater.inflate(message, 0, MAX_DECOMPRESSED_LENGTH);
+            if (!inflater.finished())
+                throw new SodiumException("Compressed message is truncated or too large.");
+            return messageLength;
+        } catch (DataFormatException e) {
+            throw new SodiumException("Malformed compressed message.");
+        }
+    }
+
+    /**
+     * Checks a raw v2, v3 or v4 record is long enough to hold its header and a MAC.
+     * @param record the record
+     * @param length the number of bytes of <code>record</code> it takes up
+     * @return the most bytes it decrypts to, which for a v4 record is {@link #MAX_DECOMPRESSED_LENGTH}
+     * @throws SodiumException if the record isn't in a known format
+     */
+    public static int decryptedLength(byte[] record, int length) throws SodiumException {
+        if (length > 0 && record[0] == VERSION_4 && length > V3_HEADER_BYTES + SecretBox.MACBYTES)
+            return MAX_DECOMPRESSED_LENGTH;
+        if (length > 0 && record[0] == VERSION_3 && length >= V3_HEADER_BYTES + SecretBox.MACBYTES)
+            return length - V3_HEADER_BYTES - SecretBox.MACBYTES;
+        if (length > 0 && record[0] == VERSION_2 && length >= V2_HEADER_BYTES + SecretBox.MACBYTES)
+            return length - V2_HEADER_BYTES - SecretBox.MACBYTES;
+        throw new SodiumException("Unsupported encrypted message format.");
+    }
+
+    /**
+     * Returns the ID of the key an encrypted string was encrypted with, without decrypting it.
+     * @param str the encrypted string
+     * @return the key ID, which is the {@link #LEGACY_KEY_ID} for v1 and v2 strings
+     * @throws SodiumException if the string isn't in a known format
+     */
+    public static int keyIdOf(String str) throws SodiumException {
+        if (isLegacy(str)) return LEGACY_KEY_ID;
+
+        final Scratch scratch = acquire();
+        try {
+            decode(str, scratch);
+            return keyIdOf(scratch.record);
+        } finally {
+            release(scratch);
+        }
+    }
+
+    private static int keyIdOf(byte[] record) {
+        return record[0] == VERSION_2 ? LEGACY_KEY_ID : record[1] & 0xFF;
+    }
+
+    /**
+     * Decodes a v2, v3 or v4 string into the thread's record buffer, checking it's long enough to hold its header and a
+     * MAC.
+     * @return the length of the record
+     */
+    private static int decode(String str, Scratch scratch) throws SodiumException {
+        final byte[] text = str.getBytes(StandardCharsets.ISO_8859_1);
+        final byte[] record = scratch.record = Scratch.grow(scratch.record, text.length * 3 / 4);
+        final int length;
+        try {
+            length = DECODER.decode(text, record);
+        } catch (IllegalArgumentException e) {
+            throw new SodiumException("Malformed encrypted message.");
+        }
+        decryptedLength(record, length);
+        return length;
+    }
+
+    /**
+     * @return the calling thread's buffers, or on a virtual thread, buffers from the pool, which must be released
+     */
+    private static Scratch acquire() {
+        return POOL == null ? SCRATCH.get() : POOL.acquire();
+    }
+
+    private static void release(Scratch scratch) {
+        if (POOL != null) POOL.release(scratch);
+    }
+
+    private static Key key(int keyId) throws SodiumException {
+        final Key key = KEYS[keyId];
+        if (key == null)
+            throw new SodiumException("Cryptography key " + keyId + " isn't loaded.");
+        return key;
+    }
+
+    /**
+     * Decrypts a string stored in the legacy v1 format.
+     * @param str the string to decrypt
+     * @return the decrypted string
+     * @throws SodiumException if the decryption fails
+     */
+    private static String decryptLegacy(String str) throws SodiumException {
+        final var nonce = sodium.sodiumHex2Bin(str.substring(0, LEGACY_NONCE_HEX_LENGTH));
+        return sodium.cryptoSecretBoxOpenEasy(str.substring(LEGACY_NONCE_HEX_LENGTH), nonce, key(LEGACY_KEY_ID));
+    }
+
+    /**
+     * Checks whether an encrypted string is in the legacy v1 format, i.e. only made of hex chars and long enough
+     * for a nonce and a MAC. A v2 string is base64 and almost always hits a non-hex char within its first few chars.
+     * @param str the encrypted string
+     * @return true if the string is in the v1 format
+     */
+    private static boolean isLegacy(String str) {
+        if (str.length() < LEGACY_NONCE_HEX_LENGTH + SecretBox.MACBYTES * 2 || str.length() % 2 != 0)
+            return false;
+
+        for (int i = 0; i < str.length(); i++) {
+            if (Character.digit(str.charAt(i), 16) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Computes the blind index token of a word in a user's notes: a truncated HMAC of the user ID and the word, so
+     * the database can match words without learning them, and the same word in two users' notes gives different
+     * tokens.
+     * @param userId the Discord user ID of the notes' owner.
+     * @param word the normalized word.
+     * @return the token, as hex.
+     * @throws SodiumException if the HMAC fails
+     */
+    public static String blindIndex(String userId, String word) throws SodiumException {
+        final byte[] message = (userId + '\0' + word).getBytes(StandardCharsets.UTF_8);
+        final byte[] mac = new byte[Auth.BYTES];
+        if (!sodium.cryptoAuthHMACSha256(mac, message, message.length, BLIND_INDEX_KEY))
+            throw new SodiumException("Could not compute blind index.");
+        return HexFormat.of().formatHex(mac, 0, BLIND_INDEX_BYTES);
     }
 
     /**
@@ -78,6 +619,104 @@ public final class Cryptography {
      * @return the nonce
      */
     public static byte[] randNonce() {
-        return sodium.randomBytesBuf(32);
+        return sodium.randomBytesBuf(SecretBox.NONCEBYTES);
+    }
+
+    /**
+     * The buffers of one thread, or of one virtual thread task at a time. They grow to fit the largest string they've
+     * seen and are kept at that size, which notes being capped by the modals keeps small. The decrypted message buffer
+     * is {@link #MAX_DECOMPRESSED_LENGTH} long once they've decrypted a compressed record.
+     */
+    private static final class Scratch {
+        private final byte[] nonce = new byte[SecretBox.NONCEBYTES];
+
+        /**
+         * The MAC and ciphertext, as secretbox wants them at the start of an array.
+         */
+        private byte[] box = new byte[0];
+
+        /**
+         * The decrypted plaintext, as UTF-8.
+         */
+        private byte[] message = new byte[0];
+
+        /**
+         * A v4 message: the flags byte and the compressed plaintext.
+         */
+        private byte[] compressed = new byte[0];
+
+        /**
+         * The raw record, before base64 encoding.
+         */
+        private byte[] encrypted = new byte[0];
+
+        /**
+         * The raw record, after base64 decoding.
+         */
+        private byte[] record = new byte[0];
+
+        /**
+         * The base64 encoded record, as ASCII.
+         */
+        private byte[] text = new byte[0];
+
+        private Deflater deflater;
+        private Inflater inflater;
+
+        /**
+         * @return the thread's deflater, reset and primed with the {@link NoteDictionary}.
+         */
+        private Deflater deflater() {
+            if (deflater == null) deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            else deflater.reset();
+            deflater.setDictionary(NoteDictionary.BYTES);
+            return deflater;
+        }
+
+        /**
+         * @return the thread's inflater, reset and primed with the {@link NoteDictionary}.
+         */
+        private Inflater inflater() {
+            if (inflater == null) inflater = new Inflater(true);
+            else inflater.reset();
+            inflater.setDictionary(NoteDictionary.BYTES);
+            return inflater;
+        }
+
+        /**
+         * Frees the native memory of the deflater and inflater.
+         */
+        private void end() {
+            if (deflater != null) deflater.end();
+            if (inflater != null) inflater.end();
+        }
+
+        /**
+         * @return the buffer if it holds at least <code>length</code> bytes, otherwise a new one that does.
+         */
+        private static byte[] grow(byte[] buffer, int length) {
+            return buffer.length >= length ? buffer : new byte[length];
+        }
+    }
+
+    /**
+     * Buffers shared by virtual threads. A task takes a set for the length of one call and hands it back; sets beyond
+     * the pool's capacity, needed during a burst, are ended and dropped when they're handed back.
+     */
+    private static final class ScratchPool {
+        private final ArrayBlockingQueue<Scratch> idle;
+
+        private ScratchPool(int capacity) {
+            this.idle = new ArrayBlockingQueue<>(capacity);
+        }
+
+        private Scratch acquire() {
+            final Scratch scratch = idle.poll();
+            return scratch != null ? scratch : new Scratch();
+        }
+
+        private void release(Scratch scratch) {
+            if (!idle.offer(scratch)) scratch.end();
+        }
     }
 }
@@ -0,0 +1,52 @@
+package xyz.knaughts.utils;
+
+/**
+ * A utility class for reading optional configuration from environment variables. Required variables are still read
+ * with {@link System#getenv(String)} where they are used.
+ */
+public final class Env {
+
+    private Env() {
+    }
+
+    /**
+     * Returns the value of an environment variable, or a default if it isn't set.
+     * @param name the name of the environment variable.
+     * @param def the default value.
+     * @return the value.
+     */
+    public static String get(String name, String def) {
+        final String value = System.getenv(name);
+        return value == null || value.isBlank() ? def : value.trim();
+    }
+
+    /**
+     * Returns the value of an environment variable as an int, or a default if it isn't set.
+     * @param name the name of the environment variable.
+     * @param def the default value.
+     * @return the value.
+     */
+    public static int getInt(String name, int def) {
+        return Integer.parseInt(get(name, String.valueOf(def)));
+    }
+
+    /**
+     * Returns the value of an environment variable as a long, or a default if it isn't set.
+     * @param name the name of the environment variable.
+     * @param def the default value.
+     * @return the value.
+     */
+    public static long getLong(String name, long def) {
+        return Long.parseLong(get(name, String.valueOf(def)));
+    }
+
+    /**
+     * Returns the value of an environment variable as a boolean, or a default if it isn't set.
+     * @param name the name of the environment variable.
+     * @param def the default value.
+     * @return the value.
+     */
+    public static boolean getBoolean(String name, boolean def) {
+        return Boolean.parseBoolean(get(name, String.valueOf(def)));
+    }
+}
@@ -0,0 +1,128 @@
+package xyz.knaughts.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static xyz.knaughts.KnaughtsBot.LOG;
+
+/**
+ * A timer for many coarse timeouts that are often rescheduled, keyed so each key has at most one pending timeout.
+ * Timeouts are kept in a ring of buckets, one per tick, that a single thread advances; scheduling, rescheduling and
+ * cancelling a timeout only moves it between buckets, so memory and work stay constant per key no matter how often
+ * it's rescheduled. Timeouts fire up to one tick late and run on the timer's thread, so they should be quick.
+ * @param <K> the type of the keys.
+ */
+public final class HashedWheelTimer<K> {
+
+    private final long tickNanos;
+    private final long start = System.nanoTime();
+    private final List<Set<Timeout<K>>> wheel;
+    private final Map<K, Timeout<K>> timeouts = new HashMap<>();
+    private final ScheduledExecutorService ticker;
+
+    private long tick;
+
+    /**
+     * @param name the name of the timer's thread.
+     * @param tickMillis the length of a tick, which is the precision of the timer, in milliseconds.
+     * @param ticksPerWheel the number of buckets; timeouts further than this many ticks away wait a full turn of the
+     *                      wheel for each multiple.
+     */
+    public HashedWheelTimer(String name, long tickMillis, int ticksPerWheel) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.wheel = new ArrayList<>(ticksPerWheel);
+        for (int i = 0; i < ticksPerWheel; i++)
+            wheel.add(new LinkedHashSet<>());
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules a task to run after a delay, replacing the key's pending timeout if it has one.
+     * @param key the key.
+     * @param delayMillis the delay in milliseconds.
+     * @param task the task.
+     */
+    public synchronized void schedule(K key, long delayMillis, Runnable task) {
+        Timeout<K> timeout = timeouts.get(key);
+        if (timeout == null) {
+            timeout = new Timeout<>(key);
+            timeouts.put(key, timeout);
+        } else {
+            wheel.get(timeout.bucket).remove(timeout);
+        }
+
+        timeout.task = task;
+        // tick n is processed at start + (n + 1) * tickNanos, so this is the first tick at or after the deadline
+        final long deadline = System.nanoTime() - start + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        final long target = Math.max(tick, (deadline + tickNanos - 1) / tickNanos - 1);
+        timeout.rounds = (target - tick) / wheel.size();
+        timeout.bucket = (int) (target % wheel.size());
+        wheel.get(timeout.bucket).add(timeout);
+    }
+
+    /**
+     * Cancels the key's pending timeout.
+     * @param key the key.
+     * @return whether the key had a pending timeout.
+     */
+    public synchronized boolean cancel(K key) {
+        final Timeout<K> timeout = timeouts.remove(key);
+        if (timeout == null) return false;
+        wheel.get(timeout.bucket).remove(timeout);
+        return true;
+    }
+
+    /**
+     * @return the number of pending timeouts.
+     */
+    public synchronized int size() {
+        return timeouts.size();
+    }
+
+    private void tick() {
+        final List<Runnable> expired = new ArrayList<>();
+        synchronized (this) {
+            final var bucket = wheel.get((int) (tick % wheel.size())).iterator();
+            while (bucket.hasNext()) {
+                final Timeout<K> timeout = bucket.next();
+                if (timeout.rounds-- > 0) continue;
+                bucket.remove();
+                timeouts.remove(timeout.key);
+                expired.add(timeout.task);
+            }
+            tick++;
+        }
+
+        for (final Runnable task : expired) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // an exception would cancel the ticker, so it's only logged
+                LOG.error("Timeout task failed: " + e);
+            }
+        }
+    }
+
+    private static final class Timeout<K> {
+        private final K key;
+        private Runnable task;
+        private long rounds;
+        private int bucket;
+
+        private Timeout(K key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package xyz.knaughts.utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The preset dictionary notes are compressed with. A note of a few hundred chars is too short for deflate to find
+ * many repeats within itself, but it mostly shares its words with every other English note, so priming deflate with
+ * common words and phrases lets it back-reference them from the very first byte.
+ * <p>
+ * Deflate encodes closer matches more cheaply, so the most common strings come last. Compressed notes can only be
+ * decompressed with the exact dictionary they were compressed with: this must never change. A better dictionary needs
+ * a new compression flag in {@link Cryptography}.
+ */
+final class NoteDictionary {
+
+    static final byte[] BYTES = (
+            "https://www. .com/ .org .net .io github youtube discord docs.google.com "
+            + "January February March April May June July August September October November December "
+            + "Monday Tuesday Wednesday Thursday Friday Saturday Sunday "
+            + "password username email address phone number birthday anniversary appointment doctor dentist "
+            + "recipe ingredients minutes cups tablespoon teaspoon salt pepper sugar flour butter eggs milk cheese "
+            + "chicken rice bread coffee water oven bake cook until "
+            + "homework assignment exam test quiz study chapter page class teacher project deadline due "
+            + "game server channel role player level quest build team match stream video song music playlist "
+            + "movie book read watch episode season series "
+            + "grocery list shopping buy order pay bill rent price money cost budget "
+            + "meeting call schedule event reminder remember don't forget important idea ideas notes note todo "
+            + "morning afternoon evening tonight today tomorrow yesterday next week month year weekend "
+            + "because before after during about again always never maybe probably really actually "
+            + "something someone everything anything nothing should would could might must "
+            + "first second third last new old good great better best bad small big long little own other "
+            + "people person friend friends family mom dad work home school house room car phone time day "
+            + "think know want need like love make take give find tell ask try keep start stop finish "
+            + "check send fix update change add remove move open close go get put see look come use "
+            + "what when where which who why how there their they them then than this that these those "
+            + "with from into over under about your you're it's I'm can't won't didn't isn't "
+            + "I you he she it we they me him her us my our his its is are was were be been being "
+            + "have has had do does did will can not no yes and or but if so as at by on in to of for "
+            + "the a an the and to of in is for on with that this it you I "
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private NoteDictionary() {
+    }
+}
@@ -0,0 +1,109 @@
+package xyz.knaughts.utils;
+
+import com.goterl.lazysodium.exceptions.SodiumException;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A utility class for the blind index notes are searched with. Titles and contents are split into normalized words,
+ * and each word is stored as its {@link Cryptography#blindIndex} token, so a search can match whole words in the
+ * database without it ever seeing the words.
+ * <p>
+ * Tokens are stored as one string, separated and surrounded by spaces (e.g. <code>" 3f2a... 91bc... "</code>), so a
+ * token is matched by searching for it with a space on each side.
+ */
+public final class SearchTokens {
+
+    /**
+     * Words shorter than this aren't indexed, as they'd match almost every note.
+     */
+    private static final int MIN_WORD_LENGTH = 2;
+
+    /**
+     * Longer words are cut to this length, so searching for a long word's start still matches it.
+     */
+    private static final int MAX_WORD_LENGTH = 32;
+
+    /**
+     * The maximum number of distinct words indexed per note, keeping the stored tokens bounded.
+     */
+    private static final int MAX_WORDS = 256;
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private SearchTokens() {
+    }
+
+    /**
+     * Splits text into normalized words: lower case, without accents and cut to a maximum length.
+     * @param text the text.
+     * @return the distinct words, in the order they first appear.
+     */
+    public static Set<String> words(String text) {
+        final String normalized = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFKD)).replaceAll("")
+                .toLowerCase(Locale.ROOT);
+
+        final Set<String> words = new LinkedHashSet<>();
+        for (final String word : SEPARATORS.split(normalized)) {
+            if (word.length() < MIN_WORD_LENGTH) continue;
+            words.add(word.length() > MAX_WORD_LENGTH ? word.substring(0, MAX_WORD_LENGTH) : word);
+            if (words.size() == MAX_WORDS) break;
+        }
+        return words;
+    }
+
+    /**
+     * Computes the stored search tokens of a note.
+     * @param userId the Discord user ID of the note's owner.
+     * @param title the plaintext title.
+     * @param content the plaintext content.
+     * @return the tokens, separated and surrounded by spaces.
+     * @throws SodiumException if a token couldn't be computed
+     */
+    public static String of(String userId, String title, String content) throws SodiumException {
+        final Set<String> words = words(title);
+        words.addAll(words(content));
+
+        final StringBuilder tokens = new StringBuilder(" ");
+        int count = 0;
+        for (final String word : words) {
+            if (count++ == MAX_WORDS) break;
+            tokens.append(Cryptography.blindIndex(userId, word)).append(' ');
+        }
+        return tokens.toString();
+    }
+
+    /**
+     * Computes the tokens to search a user's notes for. A note matches if it has every token.
+     * @param userId the Discord user ID of the user searching.
+     * @param query the search query.
+     * @return the tokens, which are empty if the query has no indexed words.
+     * @throws SodiumException if a token couldn't be computed
+     */
+    public static List<String> query(String userId, String query) throws SodiumException {
+        final List<String> tokens = new ArrayList<>();
+        for (final String word : words(query))
+            tokens.add(Cryptography.blindIndex(userId, word));
+        return tokens;
+    }
+
+    /**
+     * Checks whether a note contains every word of a query. Used to confirm database matches after decrypting them.
+     * @param query the search query.
+     * @param title the plaintext title.
+     * @param content the plaintext content.
+     * @return whether the note matches.
+     */
+    public static boolean matches(String query, String title, String content) {
+        final Set<String> words = words(title);
+        words.addAll(words(content));
+        return words.containsAll(words(query));
+    }
+}
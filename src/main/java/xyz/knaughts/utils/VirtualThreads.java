@@ -0,0 +1,83 @@
+package xyz.knaughts.utils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static xyz.knaughts.KnaughtsBot.LOG;
+
+/**
+ * A utility class for the opt-in virtual thread mode, enabled with <code>KNAUGHTS_VIRTUAL_THREADS=true</code> on
+ * Java 21 or later. Knaughts bot is built for Java 17, so the virtual thread API is looked up reflectively; on older
+ * runtimes the mode falls back to platform threads with a warning.
+ */
+public final class VirtualThreads {
+
+    private static final MethodHandle OF_VIRTUAL;
+    private static final MethodHandle NAME;
+    private static final MethodHandle FACTORY;
+    private static final MethodHandle NEW_THREAD_PER_TASK_EXECUTOR;
+
+    private static final boolean ENABLED;
+
+    static {
+        MethodHandle ofVirtual = null, name = null, factory = null, newThreadPerTaskExecutor = null;
+        try {
+            final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(Class.forName("java.lang.Thread$Builder$OfVirtual")));
+            name = lookup.findVirtual(builder, "name", MethodType.methodType(builder, String.class, long.class));
+            factory = lookup.findVirtual(builder, "factory", MethodType.methodType(ThreadFactory.class));
+            newThreadPerTaskExecutor = lookup.findStatic(Executors.class, "newThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class, ThreadFactory.class));
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = name = factory = newThreadPerTaskExecutor = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+
+        final boolean requested = Env.getBoolean("KNAUGHTS_VIRTUAL_THREADS", false);
+        if (requested && OF_VIRTUAL == null)
+            LOG.warn("KNAUGHTS_VIRTUAL_THREADS is set but virtual threads need Java 21 or later, using platform threads.");
+        ENABLED = requested && OF_VIRTUAL != null;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return whether the runtime supports virtual threads.
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @return whether the virtual thread mode is enabled and supported.
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Returns an executor that starts a new virtual thread for each task.
+     * @param namePrefix the prefix of the thread names, followed by a counter.
+     * @return the executor.
+     * @throws UnsupportedOperationException if the runtime doesn't support virtual threads.
+     */
+    public static ExecutorService newExecutor(String namePrefix) {
+        if (!isSupported())
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later.");
+
+        try {
+            final Object builder = NAME.invoke(OF_VIRTUAL.invoke(), namePrefix, 0L);
+            return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke((ThreadFactory) FACTORY.invoke(builder));
+        } catch (Throwable e) {
+            throw new IllegalStateException("Failed creating a virtual thread executor: " + e, e);
+        }
+    }
+}
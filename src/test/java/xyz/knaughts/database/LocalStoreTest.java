@@ -0,0 +1,100 @@
+package xyz.knaughts.database;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocalStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void aFailedWriteIsCutOffTheLog() throws Exception {
+        final Path path = dir.resolve("store.log");
+        final AtomicBoolean fail = new AtomicBoolean();
+        final LocalStore store = LocalStore.open(path, 60_000, 60_000, torn(fail, false));
+
+        store.postNote("user", "first", "content", "").get(5, TimeUnit.SECONDS);
+        fail.set(true);
+        assertThrows(ExecutionException.class, () -> store.postNote("user", "lost", "content", "").get(5, TimeUnit.SECONDS));
+        store.postNote("user", "third", "content", "").get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("third", "first"), titles(store));
+        store.close();
+
+        // the write after the failed one starts on its own line, so it's replayed
+        assertEquals(2, Files.readAllLines(path, StandardCharsets.UTF_8).size());
+        final LocalStore reopened = LocalStore.open(path, 60_000, 60_000);
+        assertEquals(List.of("third", "first"), titles(reopened));
+        reopened.close();
+    }
+
+    @Test
+    void writesFailOnceATornWriteCantBeCutOff() throws Exception {
+        final Path path = dir.resolve("store.log");
+        final AtomicBoolean fail = new AtomicBoolean();
+        final LocalStore store = LocalStore.open(path, 60_000, 60_000, torn(fail, true));
+
+        store.postNote("user", "first", "content", "").get(5, TimeUnit.SECONDS);
+        fail.set(true);
+        assertThrows(ExecutionException.class, () -> store.postNote("user", "lost", "content", "").get(5, TimeUnit.SECONDS));
+
+        final ExecutionException e = assertThrows(ExecutionException.class,
+                () -> store.postNote("user", "refused", "content", "").get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause().getMessage().contains("stopped taking writes"), e.getCause().getMessage());
+        assertEquals(List.of("first"), titles(store));
+        store.close();
+    }
+
+    @Test
+    void writesAfterACrashDontMergeIntoItsTornLine() throws Exception {
+        final Path path = dir.resolve("store.log");
+        Files.writeString(path, "{\"op\":\"note\",\"id\":\"abcdefghijklmno\",\"userId\":\"user\",\"title\":\"first\",\"content\":\"content\","
+                + "\"created\":\"2023-11-20 18:42:07.512Z\",\"updated\":\"2023-11-20 18:42:07.512Z\",\"searchTokens\":\"\"}\n"
+                + "{\"op\":\"note\",\"id\":\"pqrstuvwxyz0123\",\"us", StandardCharsets.UTF_8);
+
+        final LocalStore store = LocalStore.open(path, 60_000, 60_000);
+        store.postNote("user", "second", "content", "").get(5, TimeUnit.SECONDS);
+        store.close();
+
+        final LocalStore reopened = LocalStore.open(path, 60_000, 60_000);
+        assertEquals(List.of("second", "first"), titles(reopened));
+        reopened.close();
+    }
+
+    private static List<String> titles(LocalStore store) throws Exception {
+        return store.getNotes("user", 1, 10).get(5, TimeUnit.SECONDS).items().stream().map(NoteRecord::title).toList();
+    }
+
+    /**
+     * Wraps the log so that, once {@code fail} is set, the next write only gets halfway before failing.
+     * @param close whether the failing write also closes the log, so it can't be truncated either.
+     */
+    private static UnaryOperator<OutputStream> torn(AtomicBoolean fail, boolean close) {
+        return stream -> new FilterOutputStream(stream) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (!fail.getAndSet(false)) {
+                    out.write(b, off, len);
+                    return;
+                }
+                out.write(b, off, len / 2);
+                if (close) out.close();
+                throw new IOException("No space left on device");
+            }
+        };
+    }
+}
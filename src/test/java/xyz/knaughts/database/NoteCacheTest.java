@@ -0,0 +1,109 @@
+package xyz.knaughts.database;
+
+import org.junit.jupiter.api.Test;
+import xyz.knaughts.models.Note;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NoteCacheTest {
+
+    private static final long TTL = TimeUnit.MINUTES.toMillis(10);
+
+    private static Note note(String id) {
+        return new Note(id, "title " + id, "content " + id, Instant.EPOCH, Instant.EPOCH);
+    }
+
+    private static NotesWindow window(int window, String... ids) {
+        return new NotesWindow(window, 3, ids.length, Arrays.stream(ids).map(NoteCacheTest::note).toList(), null);
+    }
+
+    @Test
+    void readsAreCachedUntilTheyExpire() {
+        final NoteCache cache = new NoteCache(100, TTL);
+        final Note note = note("a");
+        cache.putNote("user", note, cache.stamp());
+        assertSame(note, cache.getNote("user", "a"));
+
+        // a negative TTL makes every entry stale as soon as it's cached
+        final NoteCache expired = new NoteCache(100, -1);
+        expired.putNote("user", note("a"), expired.stamp());
+        expired.putWindow("user", window(1, "b"), expired.stamp());
+        assertNull(expired.getNote("user", "a"));
+        assertNull(expired.getWindow("user", 1));
+    }
+
+    @Test
+    void notesInACachedWindowCanBeReadOnTheirOwn() {
+        final NoteCache cache = new NoteCache(100, TTL);
+        final NotesWindow window = window(1, "a", "b");
+        cache.putWindow("user", window, cache.stamp());
+        assertSame(window, cache.getWindow("user", 1));
+        assertSame(window.notes().get(1), cache.getNote("user", "b"));
+        assertNull(cache.getWindow("user", 2));
+    }
+
+    @Test
+    void readsStampedBeforeAWriteAreDropped() {
+        final NoteCache cache = new NoteCache(100, TTL);
+        final long stamp = cache.stamp();
+        cache.noteWritten("user", note("a"));
+
+        cache.putNote("user", note("b"), stamp);
+        cache.putWindow("user", window(1, "a", "b"), stamp);
+        assertNull(cache.getNote("user", "b"));
+        assertNull(cache.getWindow("user", 1));
+
+        // but writes of another user don't affect them
+        cache.putNote("other", note("b"), stamp);
+        assertNotNull(cache.getNote("other", "b"));
+    }
+
+    @Test
+    void writesDropTheUsersWindows() {
+        final NoteCache cache = new NoteCache(100, TTL);
+        cache.putWindow("user", window(1, "a", "b"), cache.stamp());
+        final Note written = note("c");
+        cache.noteWritten("user", written);
+        assertNull(cache.getWindow("user", 1));
+        assertSame(written, cache.getNote("user", "c"));
+        assertNotNull(cache.getNote("user", "a"));
+
+        cache.putWindow("user", window(1, "a", "b"), cache.stamp());
+        cache.noteDeleted("user", "a");
+        assertNull(cache.getWindow("user", 1));
+        assertNull(cache.getNote("user", "a"));
+    }
+
+    @Test
+    void leastRecentlyUsedUsersAreEvictedByNoteCount() {
+        // a window counts its notes, on top of the notes themselves
+        final NoteCache cache = new NoteCache(5, TTL);
+        cache.putWindow("old", window(1, "a", "b"), cache.stamp());
+        cache.putNote("recent", note("c"), cache.stamp());
+        assertNotNull(cache.getNote("old", "a"));
+
+        // "old" was read last, so "recent" goes once the maximum is passed
+        cache.putNote("new", note("d"), cache.stamp());
+        assertNull(cache.getNote("recent", "c"));
+        assertNotNull(cache.getWindow("old", 1));
+        assertNotNull(cache.getNote("new", "d"));
+    }
+
+    @Test
+    void readsOfEvictedUsersStampedBeforeTheirLastWriteAreDropped() {
+        final NoteCache cache = new NoteCache(2, TTL);
+        final long stamp = cache.stamp();
+        cache.noteWritten("user", note("a"));
+        // two more notes push the least recently used user out
+        cache.noteWritten("other", note("b"));
+        cache.noteWritten("other", note("c"));
+        assertNull(cache.getNote("user", "a"));
+
+        cache.putNote("user", note("a"), stamp);
+        assertNull(cache.getNote("user", "a"));
+    }
+}
@@ -0,0 +1,57 @@
+package xyz.knaughts.database;
+
+import org.junit.jupiter.api.Test;
+import xyz.knaughts.models.Note;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NoteCursorTest {
+
+    private static final Instant CREATED = Instant.parse("2023-11-20T18:42:07.512Z");
+
+    @Test
+    void cursorsSurviveEncoding() {
+        for (final boolean before : new boolean[]{false, true}) {
+            final NoteCursor cursor = new NoteCursor(before, CREATED, "abcdefghijklmno");
+            assertEquals(cursor, NoteCursor.decode(cursor.encode()));
+        }
+    }
+
+    @Test
+    void encodingIsCompact() {
+        final String encoded = new NoteCursor(false, CREATED, "abcdefghijklmno").encode();
+        assertTrue(encoded.startsWith("a"));
+        assertTrue(encoded.length() <= 1 + 9 + 1 + 15, encoded);
+        assertTrue(new NoteCursor(true, CREATED, "abcdefghijklmno").encode().startsWith("b"));
+    }
+
+    @Test
+    void onlyTheFirstUnderscoreSeparatesTheId() {
+        final NoteCursor cursor = new NoteCursor(false, CREATED, "some_id");
+        assertEquals(cursor, NoteCursor.decode(cursor.encode()));
+    }
+
+    @Test
+    void malformedCursorsDecodeToNull() {
+        assertNull(NoteCursor.decode(null));
+        assertNull(NoteCursor.decode(""));
+        assertNull(NoteCursor.decode("a1_"));
+        assertNull(NoteCursor.decode("c123_abc"));
+        assertNull(NoteCursor.decode("a_abcdef"));
+        assertNull(NoteCursor.decode("a123abc"));
+        assertNull(NoteCursor.decode("a12!_abc"));
+    }
+
+    @Test
+    void notesWithoutACreationTimeHaveNoCursor() {
+        final Note note = new Note("abc", "title", "content", null, null);
+        assertNull(NoteCursor.from(note));
+        assertNull(NoteCursor.before(note));
+
+        final Note dated = new Note("abc", "title", "content", CREATED, CREATED);
+        assertEquals(new NoteCursor(false, CREATED, "abc"), NoteCursor.from(dated));
+        assertEquals(new NoteCursor(true, CREATED, "abc"), NoteCursor.before(dated));
+    }
+}
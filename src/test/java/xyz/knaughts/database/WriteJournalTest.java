@@ -0,0 +1,192 @@
+package xyz.knaughts.database;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteJournalTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void writesAreReplayedInOrderAndTheJournalIsTruncated() throws Exception {
+        final Path path = dir.resolve("journal.log");
+        final FakeStore store = new FakeStore(Set.of());
+        final CountDownLatch replayed = new CountDownLatch(2);
+        final WriteJournal journal = WriteJournal.open(path, store, 1, userId -> replayed.countDown(), record -> fail("rejected"));
+
+        final NoteRecord created = journal.postNote("user", "title", "content", " tokens ").get(5, TimeUnit.SECONDS);
+        journal.patchNote("user", created.id(), "title 2", "content 2", " tokens ", null).get(5, TimeUnit.SECONDS);
+
+        assertTrue(replayed.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("post " + created.id() + " title", "patch " + created.id() + " title 2"), store.puts);
+        assertTrue(journal.replayed(created.id()).isDone());
+        assertEquals(0, journal.pending());
+        assertEquals("1", Files.readString(checkpointOf(path)));
+        assertEquals(0, Files.size(path));
+        journal.close();
+    }
+
+    @Test
+    void reopenedJournalResumesAfterTheCheckpoint() throws Exception {
+        final Path path = dir.resolve("journal.log");
+        Files.writeString(path, String.join("\n",
+                entry(0, "post", "first"),
+                entry(1, "patch", "second"),
+                entry(2, "patch", "third"),
+                // a crash halfway through the last write, which was never acknowledged
+                "{\"seq\":3,\"op\":\"patch\",\"userId\":\"us"), StandardCharsets.UTF_8);
+        Files.writeString(checkpointOf(path), "0", StandardCharsets.UTF_8);
+
+        final FakeStore store = new FakeStore(Set.of());
+        final CountDownLatch replayed = new CountDownLatch(2);
+        final WriteJournal journal = WriteJournal.open(path, store, 1, userId -> replayed.countDown(), record -> fail("rejected"));
+
+        assertTrue(replayed.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("patch note second", "patch note third"), store.puts);
+        assertEquals("2", Files.readString(checkpointOf(path)));
+
+        // sequence numbers carry on after the checkpoint and the journal
+        final CountDownLatch next = new CountDownLatch(1);
+        journal.close();
+        final WriteJournal reopened = WriteJournal.open(path, store, 1, userId -> next.countDown(), record -> fail("rejected"));
+        reopened.patchNote("user", "note", "fourth", "content", "", null).get(5, TimeUnit.SECONDS);
+        assertTrue(next.await(5, TimeUnit.SECONDS));
+        assertEquals("3", Files.readString(checkpointOf(path)));
+        reopened.close();
+    }
+
+    @Test
+    void cancelledWritesAreNotReplayed() throws Exception {
+        final Path path = dir.resolve("journal.log");
+        Files.writeString(path, String.join("\n",
+                entry(0, "post", "kept"),
+                entry(1, "patch", "cancelled"),
+                "{\"seq\":1,\"op\":\"cancel\",\"userId\":\"user\",\"id\":\"note\"}",
+                entry(2, "patch", "also kept")), StandardCharsets.UTF_8);
+
+        final FakeStore store = new FakeStore(Set.of());
+        final CountDownLatch replayed = new CountDownLatch(2);
+        final WriteJournal journal = WriteJournal.open(path, store, 1, userId -> replayed.countDown(), record -> fail("rejected"));
+
+        assertTrue(replayed.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("post note kept", "patch note also kept"), store.puts);
+        journal.close();
+    }
+
+    @Test
+    void rejectedWritesAreSetAsideAndHandedBack() throws Exception {
+        final Path path = dir.resolve("journal.log");
+        final FakeStore store = new FakeStore(Set.of("deleted"));
+        final List<NoteRecord> rejected = new CopyOnWriteArrayList<>();
+        final CountDownLatch replayed = new CountDownLatch(2);
+        final WriteJournal journal = WriteJournal.open(path, store, 1, userId -> replayed.countDown(), rejected::add);
+
+        journal.patchNote("user", "deleted", "lost title", "lost content", "", null).get(5, TimeUnit.SECONDS);
+        journal.patchNote("user", "kept", "title", "content", "", null).get(5, TimeUnit.SECONDS);
+
+        assertTrue(replayed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, rejected.size());
+        assertEquals("deleted", rejected.get(0).id());
+        assertEquals("lost content", rejected.get(0).content());
+        assertEquals(List.of("patch deleted lost title", "patch kept title"), store.puts);
+        assertTrue(Files.readString(path.resolveSibling("journal.log.rejected")).contains("\"id\":\"deleted\""));
+        journal.close();
+    }
+
+    private static Path checkpointOf(Path path) {
+        return path.resolveSibling(path.getFileName() + ".checkpoint");
+    }
+
+    private static String entry(long seq, String op, String title) {
+        return "{\"seq\":" + seq + ",\"op\":\"" + op + "\",\"userId\":\"user\",\"id\":\"note\",\"title\":\"" + title
+                + "\",\"content\":\"content\",\"created\":\"2023-11-20 18:42:07.512Z\",\"updated\":\"2023-11-20 18:42:07.512Z\",\"searchTokens\":\"\"}";
+    }
+
+    /**
+     * Records the writes replayed to it, rejecting those of some notes.
+     */
+    private static final class FakeStore implements NoteStore {
+        private final List<String> puts = new CopyOnWriteArrayList<>();
+        private final Set<String> rejected;
+
+        private FakeStore(Set<String> rejected) {
+            this.rejected = rejected;
+        }
+
+        @Override
+        public CompletableFuture<Boolean> putNote(String userId, NoteRecord record, boolean create) {
+            puts.add((create ? "post " : "patch ") + record.id() + " " + record.title());
+            return CompletableFuture.completedFuture(!rejected.contains(record.id()));
+        }
+
+        @Override
+        public CompletableFuture<NoteRecord> postNote(String userId, String title, String content, String searchTokens) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<NoteRecord> patchNote(String userId, String noteId, String title, String content, String searchTokens) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<RecordList<NoteRecord>> getNotes(String userId, int page, int perPage) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<RecordList<NoteRecord>> getNotesFrom(String userId, NoteCursor cursor, int limit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<RecordList<NoteRecord>> searchNotes(String userId, List<String> tokens, int limit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<RecordList<NoteRecord>> getUnindexedNotes(String afterId, int limit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Boolean> putSearchTokens(String noteId, String searchTokens) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<RecordList<NoteRecord>> getNotesAfter(String afterId, int limit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Boolean> replaceNote(NoteRecord expected, String title, String content, String searchTokens) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Optional<NoteRecord>> getNote(String noteId, String userId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Boolean> deleteNote(String noteId, String userId) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
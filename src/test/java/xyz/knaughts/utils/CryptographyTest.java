@@ -0,0 +1,159 @@
+package xyz.knaughts.utils;
+
+import com.goterl.lazysodium.exceptions.SodiumException;
+import com.goterl.lazysodium.utils.Key;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CryptographyTest {
+
+    /**
+     * The hex a deployment typed in for key 0, and records sealed with the key it was turned into before key IDs
+     * existed.
+     */
+    private static final String TYPED_KEY = "6b6e61756768747320626f74206c6567616379206b6579206669787475726521";
+    private static final String LEGACY_V1 = "3A3B4286ACFD94ADDC11B81BF16116CB5AC16F6DEB55914EC0EAED22DBB17538A805FDE294222E271F02B97EAA88B50EFCC066F6D5C7CD96218F2BD699A753B422D7DE9A31";
+    private static final String LEGACY_V2 = "Arx2-Y4S4TQzUPmK2rYpLKHcNAuJu8Rzrf29qv_dywCAJPNZmnlBxDjMNvDOCzlXjbenYgnrNA";
+    private static final String LEGACY_V3 = "AwC2sH5tKF9uTkZ1DsvC-9c--jdgE04ENwRNlcdKg-0bb00wihXe6J9hY0-kBKLDQQA2k7NekUo";
+
+    private static final String PROSE = "Remember to buy milk, eggs and bread for the recipe tomorrow morning, and don't "
+            + "forget to call the dentist about the appointment next week before the meeting.";
+
+    private static Key legacyKey() {
+        return Cryptography.keyOf(Cryptography.LEGACY_KEY_ID, TYPED_KEY.toCharArray());
+    }
+
+    @Test
+    void legacyKeyDecryptsRecordsWrittenBeforeKeyIds() throws SodiumException {
+        Cryptography.init(Map.of(Cryptography.LEGACY_KEY_ID, legacyKey()), Cryptography.LEGACY_KEY_ID, false);
+
+        assertEquals("A note from before v2", Cryptography.decrypt(LEGACY_V1));
+        assertEquals("A note from v2", Cryptography.decrypt(LEGACY_V2));
+        assertEquals("A note from v3", Cryptography.decrypt(LEGACY_V3));
+    }
+
+    @Test
+    void newKeyIdsUseTheTypedHex() {
+        assertArrayEquals(Key.fromHexString(TYPED_KEY).getAsBytes(), Cryptography.keyOf(1, TYPED_KEY.toCharArray()).getAsBytes());
+    }
+
+    @Test
+    void legacyRecordsRotateToANewKey() throws SodiumException {
+        final Key newKey = Cryptography.keyOf(1, "00112233445566778899aabbccddeeff00112233445566778899aabbccddeeff".toCharArray());
+        Cryptography.init(Map.of(Cryptography.LEGACY_KEY_ID, legacyKey(), 1, newKey), 1, false);
+
+        final String rotated = Cryptography.encrypt(Cryptography.decrypt(LEGACY_V2));
+        assertEquals(1, Cryptography.keyIdOf(rotated));
+        assertEquals(Cryptography.LEGACY_KEY_ID, Cryptography.keyIdOf(LEGACY_V2));
+
+        // once key 0 is dropped, only the rotated record is readable
+        Cryptography.init(Map.of(1, newKey), 1, 1, false);
+        assertEquals("A note from v2", Cryptography.decrypt(rotated));
+        assertThrows(SodiumException.class, () -> Cryptography.decrypt(LEGACY_V2));
+    }
+
+    @Test
+    void searchTokensDontChangeWithTheCurrentKey() throws SodiumException {
+        final Key newKey = Cryptography.keyOf(1, "00112233445566778899aabbccddeeff00112233445566778899aabbccddeeff".toCharArray());
+        Cryptography.init(Map.of(Cryptography.LEGACY_KEY_ID, legacyKey(), 1, newKey), Cryptography.LEGACY_KEY_ID, false);
+        final String before = Cryptography.blindIndex("1234", "groceries");
+
+        Cryptography.init(Map.of(Cryptography.LEGACY_KEY_ID, legacyKey(), 1, newKey), 1, false);
+        assertEquals(before, Cryptography.blindIndex("1234", "groceries"));
+    }
+
+    @Test
+    void searchKeyMustBeLoaded() {
+        final Key newKey = Cryptography.keyOf(1, "00112233445566778899aabbccddeeff00112233445566778899aabbccddeeff".toCharArray());
+        assertThrows(RuntimeException.class, () -> Cryptography.init(Map.of(1, newKey), 1, Cryptography.LEGACY_KEY_ID, false));
+    }
+
+    @Test
+    void uncompressedStringsAreWrittenAsV3() throws SodiumException {
+        Cryptography.init(Map.of(Cryptography.LEGACY_KEY_ID, legacyKey(), 7, newKey()), 7, Cryptography.LEGACY_KEY_ID, false);
+
+        final String encrypted = Cryptography.encrypt(PROSE);
+        final byte[] record = Base64.getUrlDecoder().decode(encrypted);
+        assertEquals(3, record[0]);
+        assertEquals(7, record[1]);
+        assertEquals(7, Cryptography.keyIdOf(encrypted));
+        assertEquals(PROSE, Cryptography.decrypt(encrypted));
+    }
+
+    @Test
+    void compressibleStringsFromTheThresholdOnAreWrittenAsV4() throws SodiumException {
+        Cryptography.init(Map.of(Cryptography.LEGACY_KEY_ID, legacyKey()), Cryptography.LEGACY_KEY_ID, true);
+
+        final String atThreshold = PROSE.substring(0, 64);
+        final String belowThreshold = PROSE.substring(0, 63);
+        assertEquals(4, versionOf(Cryptography.encrypt(PROSE)));
+        assertEquals(4, versionOf(Cryptography.encrypt(atThreshold)));
+        assertEquals(3, versionOf(Cryptography.encrypt(belowThreshold)));
+        assertEquals(PROSE, Cryptography.decrypt(Cryptography.encrypt(PROSE)));
+        assertEquals(atThreshold, Cryptography.decrypt(Cryptography.encrypt(atThreshold)));
+
+        // compression that doesn't pay off is skipped
+        final byte[] noise = new byte[300];
+        new Random(7).nextBytes(noise);
+        final byte[] record = new byte[Cryptography.encryptedLength(noise.length)];
+        final int recordLength = Cryptography.encrypt(noise, noise.length, record);
+        assertEquals(3, record[0]);
+        final byte[] decrypted = new byte[Cryptography.decryptedLength(record, recordLength)];
+        assertEquals(noise.length, Cryptography.decrypt(record, recordLength, decrypted));
+        assertArrayEquals(noise, decrypted);
+
+        // nor are messages too long to inflate within the bound compressed
+        final String tooLong = PROSE.repeat(Cryptography.MAX_DECOMPRESSED_LENGTH / PROSE.length() + 1);
+        assertEquals(3, versionOf(Cryptography.encrypt(tooLong)));
+        assertEquals(tooLong, Cryptography.decrypt(Cryptography.encrypt(tooLong)));
+    }
+
+    @Test
+    void compressedRecordsStayReadableWithCompressionOff() throws SodiumException {
+        Cryptography.init(Map.of(Cryptography.LEGACY_KEY_ID, legacyKey()), Cryptography.LEGACY_KEY_ID, true);
+        final String compressed = Cryptography.encrypt(PROSE);
+
+        Cryptography.init(Map.of(Cryptography.LEGACY_KEY_ID, legacyKey()), Cryptography.LEGACY_KEY_ID, false);
+        assertEquals(PROSE, Cryptography.decrypt(compressed));
+    }
+
+    @Test
+    void bytesRoundTripThroughRawRecords() throws SodiumException {
+        Cryptography.init(Map.of(Cryptography.LEGACY_KEY_ID, legacyKey()), Cryptography.LEGACY_KEY_ID, true);
+        final byte[] message = PROSE.getBytes(StandardCharsets.UTF_8);
+
+        final byte[] record = new byte[Cryptography.encryptedLength(message.length)];
+        final int recordLength = Cryptography.encrypt(message, message.length, record);
+        assertTrue(recordLength < record.length, "compressed record should be shorter than the v3 bound");
+        assertEquals(Cryptography.MAX_DECOMPRESSED_LENGTH, Cryptography.decryptedLength(record, recordLength));
+
+        final byte[] decrypted = new byte[Cryptography.decryptedLength(record, recordLength)];
+        final int length = Cryptography.decrypt(record, recordLength, decrypted);
+        assertEquals(PROSE, new String(decrypted, 0, length, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void tamperedRecordsAreRejected() throws SodiumException {
+        Cryptography.init(Map.of(Cryptography.LEGACY_KEY_ID, legacyKey()), Cryptography.LEGACY_KEY_ID, true);
+        for (final String text : new String[]{"short", PROSE}) {
+            final byte[] record = Base64.getUrlDecoder().decode(Cryptography.encrypt(text));
+            record[record.length - 1] ^= 1;
+            assertThrows(SodiumException.class, () -> Cryptography.decrypt(Base64.getUrlEncoder().withoutPadding().encodeToString(record)));
+        }
+        assertThrows(SodiumException.class, () -> Cryptography.decrypt("BQA"));
+    }
+
+    private static Key newKey() {
+        return Cryptography.keyOf(1, "00112233445566778899aabbccddeeff00112233445566778899aabbccddeeff".toCharArray());
+    }
+
+    private static int versionOf(String encrypted) {
+        return Base64.getUrlDecoder().decode(encrypted)[0];
+    }
+}
@@ -0,0 +1,85 @@
+package xyz.knaughts.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashedWheelTimerTest {
+
+    private static final long TICK = 10;
+    private static final int BUCKETS = 4;
+
+    /**
+     * How late a timeout may fire: a tick, plus room for a busy machine.
+     */
+    private static final long SLACK = 250;
+
+    @Test
+    void timeoutsInTheSameBucketFireInTheirRound() throws InterruptedException {
+        final HashedWheelTimer<Integer> timer = new HashedWheelTimer<>("test-wheel", TICK, BUCKETS);
+        // a full turn of the wheel apart, so every timeout lands in the same bucket, a round later than the last
+        final long[] delays = {15, 15 + TICK * BUCKETS, 15 + 2 * TICK * BUCKETS, 15 + 3 * TICK * BUCKETS};
+        final List<Integer> fired = new CopyOnWriteArrayList<>();
+        final long[] elapsed = new long[delays.length];
+        final CountDownLatch done = new CountDownLatch(delays.length);
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < delays.length; i++) {
+            final int key = i;
+            timer.schedule(key, delays[i], () -> {
+                elapsed[key] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                fired.add(key);
+                done.countDown();
+            });
+        }
+        assertEquals(delays.length, timer.size());
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(0, 1, 2, 3), fired);
+        for (int i = 0; i < delays.length; i++) {
+            assertTrue(elapsed[i] >= delays[i], "timeout " + i + " fired early, after " + elapsed[i] + "ms");
+            assertTrue(elapsed[i] < delays[i] + SLACK, "timeout " + i + " fired late, after " + elapsed[i] + "ms");
+        }
+        assertEquals(0, timer.size());
+    }
+
+    @Test
+    void reschedulingReplacesThePendingTimeout() throws InterruptedException {
+        final HashedWheelTimer<String> timer = new HashedWheelTimer<>("test-wheel", TICK, BUCKETS);
+        final List<String> fired = new CopyOnWriteArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        final long start = System.nanoTime();
+        timer.schedule("key", 20, () -> fired.add("first"));
+        timer.schedule("key", 100, () -> {
+            fired.add("second");
+            done.countDown();
+        });
+        assertEquals(1, timer.size());
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+        assertEquals(List.of("second"), fired);
+    }
+
+    @Test
+    void cancelledTimeoutsNeverFire() throws InterruptedException {
+        final HashedWheelTimer<String> timer = new HashedWheelTimer<>("test-wheel", TICK, BUCKETS);
+        final CountDownLatch fired = new CountDownLatch(1);
+        final CountDownLatch other = new CountDownLatch(1);
+
+        timer.schedule("cancelled", 20, fired::countDown);
+        timer.schedule("other", 60, other::countDown);
+        assertTrue(timer.cancel("cancelled"));
+        assertFalse(timer.cancel("cancelled"));
+
+        assertTrue(other.await(5, TimeUnit.SECONDS));
+        assertEquals(1, fired.getCount());
+        assertEquals(0, timer.size());
+    }
+}
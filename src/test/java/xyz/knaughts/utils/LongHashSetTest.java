@@ -0,0 +1,72 @@
+package xyz.knaughts.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongHashSetTest {
+
+    @Test
+    void removingKeepsTheRestOfAProbeSequenceReachable() {
+        // few distinct values in a small table, so removals keep punching gaps into long, wrapping probe sequences
+        final Random random = new Random(42);
+        final LongHashSet set = new LongHashSet(4);
+        final Set<Long> expected = new HashSet<>();
+        for (int i = 0; i < 200_000; i++) {
+            final long value = snowflake(random.nextInt(64));
+            if (random.nextInt(3) == 0)
+                assertEquals(expected.remove(value), set.remove(value), "removing " + value);
+            else
+                assertEquals(expected.add(value), set.add(value), "adding " + value);
+            assertEquals(expected.size(), set.size());
+        }
+
+        for (int i = 0; i < 64; i++)
+            assertEquals(expected.contains(snowflake(i)), set.contains(snowflake(i)));
+    }
+
+    @Test
+    void removingEveryValueEmptiesTheSet() {
+        final LongHashSet set = new LongHashSet(16);
+        for (int i = 0; i < 1_000; i++)
+            assertTrue(set.add(snowflake(i)));
+        for (int i = 0; i < 1_000; i += 2)
+            assertTrue(set.remove(snowflake(i)));
+        for (int i = 0; i < 1_000; i++)
+            assertEquals(i % 2 == 1, set.contains(snowflake(i)));
+        for (int i = 1; i < 1_000; i += 2)
+            assertTrue(set.remove(snowflake(i)));
+
+        assertEquals(0, set.size());
+        set.forEach(value -> fail("left over: " + value));
+    }
+
+    @Test
+    void zeroIsAValueLikeAnyOther() {
+        final LongHashSet set = new LongHashSet(4);
+        assertFalse(set.contains(0));
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertTrue(set.contains(0));
+        assertEquals(1, set.size());
+
+        final Set<Long> seen = new HashSet<>();
+        set.forEach(seen::add);
+        assertEquals(Set.of(0L), seen);
+
+        assertTrue(set.remove(0));
+        assertFalse(set.remove(0));
+        assertEquals(0, set.size());
+    }
+
+    /**
+     * @return a Discord ID as the nth guild created in the same millisecond would get
+     */
+    private static long snowflake(int n) {
+        return (1_100_000_000_000L << 22) + n;
+    }
+}